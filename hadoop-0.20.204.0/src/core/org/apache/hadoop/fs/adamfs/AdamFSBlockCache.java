@@ -0,0 +1,290 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Process wide cache of file blocks, so files many readers in one JVM open
+ * (map-side join tables, distributed cache style side data) come over the
+ * network once instead of once per reader. Off by default; switched on by
+ * fs.adamfs.blockcache.enabled, and then shared by every adamfs file
+ * system in the JVM with the size the first one was configured with.
+ *
+ * Blocks are fs.adamfs.blockcache.block.size bytes and keyed by (file,
+ * modification time, offset), so a file rewritten elsewhere is cached
+ * afresh once its new status is seen. create(), delete() and rename() drop
+ * the blocks of the paths they touch right away. Only files of at most
+ * fs.adamfs.blockcache.max.file.size bytes are cached; big scans would
+ * only push the hot files out.
+ *
+ * The memory, fs.adamfs.blockcache.size bytes, is direct buffers, one per
+ * slot, allocated as slots are first used and then reused. Eviction is
+ * clock (second chance): a block read since the hand last passed stays.
+ * Readers pin the blocks they copy out of, pinned blocks are never
+ * evicted, and a block being loaded is pinned by its loader; other readers
+ * of it wait for the load instead of fetching it again.
+ */
+class AdamFSBlockCache {
+	public static final Log LOG = LogFactory.getLog(AdamFSBlockCache.class);
+
+	public static final String BLOCKCACHE_ENABLED_KEY = "fs.adamfs.blockcache.enabled";
+	public static final boolean BLOCKCACHE_ENABLED_DEFAULT = false;
+	public static final String BLOCKCACHE_SIZE_KEY = "fs.adamfs.blockcache.size";
+	public static final long BLOCKCACHE_SIZE_DEFAULT = 256 * 1024 * 1024;
+	public static final String BLOCKCACHE_BLOCK_SIZE_KEY = "fs.adamfs.blockcache.block.size";
+	public static final int BLOCKCACHE_BLOCK_SIZE_DEFAULT = 1024 * 1024;
+	public static final String BLOCKCACHE_MAX_FILE_SIZE_KEY = "fs.adamfs.blockcache.max.file.size";
+	public static final long BLOCKCACHE_MAX_FILE_SIZE_DEFAULT = 64 * 1024 * 1024;
+
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+	private static AdamFSBlockCache instance = null;
+
+	private static class Key {
+		final String file;
+		final long modificationTime;
+		final long offset;
+
+		Key(String file, long modificationTime, long offset) {
+			this.file = file;
+			this.modificationTime = modificationTime;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return offset == k.offset && modificationTime == k.modificationTime
+					&& file.equals(k.file);
+		}
+
+		@Override
+		public int hashCode() {
+			return file.hashCode() * 31 + (int) (modificationTime ^ offset ^ (offset >>> 32));
+		}
+	}
+
+	/** A cached block; the bytes are valid once it is loaded. */
+	static class Block {
+		final Key key;
+		final int slot;
+		int length;
+		int pins = 0;
+		boolean loaded = false;
+		boolean referenced = true;
+		boolean dropped = false; // invalidated or failed, gone from the index
+
+		Block(Key key, int slot) {
+			this.key = key;
+			this.slot = slot;
+		}
+	}
+
+	private final int blockSize;
+	private final long maxFileSize;
+	private final ByteBuffer[] buffers;
+	private final Block[] slots;
+	private int hand = 0;
+
+	// guarded by this
+	private final Map<Key, Block> index = new HashMap<Key, Block>();
+	private final Map<String, List<Block>> byFile = new HashMap<String, List<Block>>();
+
+	AdamFSBlockCache(long size, int blockSize, long maxFileSize) {
+		this.blockSize = Math.max(4096, blockSize);
+		this.maxFileSize = maxFileSize;
+		int count = (int) Math.max(1, Math.min(Integer.MAX_VALUE, size / this.blockSize));
+		buffers = new ByteBuffer[count];
+		slots = new Block[count];
+	}
+
+	/** The JVM wide cache, null if fs.adamfs.blockcache.enabled is off. */
+	static synchronized AdamFSBlockCache get(Configuration conf) {
+		if (!conf.getBoolean(BLOCKCACHE_ENABLED_KEY, BLOCKCACHE_ENABLED_DEFAULT)) {
+			return null;
+		}
+		if (instance == null) {
+			instance = new AdamFSBlockCache(
+					conf.getLong(BLOCKCACHE_SIZE_KEY, BLOCKCACHE_SIZE_DEFAULT),
+					conf.getInt(BLOCKCACHE_BLOCK_SIZE_KEY, BLOCKCACHE_BLOCK_SIZE_DEFAULT),
+					conf.getLong(BLOCKCACHE_MAX_FILE_SIZE_KEY, BLOCKCACHE_MAX_FILE_SIZE_DEFAULT));
+		}
+		return instance;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/** True if a file of this length is worth caching. */
+	public boolean accepts(long fileLength) {
+		return fileLength <= maxFileSize;
+	}
+
+	/**
+	 * Pin the block of file at offset. If it is not cached, a slot is taken
+	 * for it and the caller must fill {@link #getBuffer} and call
+	 * {@link #loaded} or {@link #failed}. Returns null if every slot is
+	 * pinned; the caller then reads without the cache.
+	 */
+	public synchronized Block acquire(String file, long modificationTime, long offset)
+			throws IOException {
+		Key key = new Key(file, modificationTime, offset);
+		while (true) {
+			Block block = index.get(key);
+			if (block == null) {
+				break;
+			}
+			if (block.loaded) {
+				block.pins++;
+				block.referenced = true;
+				METRICS.blockCacheHit();
+				return block;
+			}
+			try {
+				wait(); // someone else is loading it
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("<AdamFS:BLOCKCACHE> interrupted waiting for a block");
+			}
+		}
+		METRICS.blockCacheMiss();
+		int slot = takeSlot();
+		if (slot < 0) {
+			return null;
+		}
+		Block block = new Block(key, slot);
+		block.pins = 1;
+		slots[slot] = block;
+		index.put(key, block);
+		List<Block> blocks = byFile.get(file);
+		if (blocks == null) {
+			blocks = new ArrayList<Block>();
+			byFile.put(file, blocks);
+		}
+		blocks.add(block);
+		return block;
+	}
+
+	/**
+	 * The block's memory, positioned at 0 with a limit of its length (of
+	 * the block size while it is being loaded). Each call returns a buffer
+	 * of its own.
+	 */
+	public ByteBuffer getBuffer(Block block) {
+		ByteBuffer buf = buffers[block.slot].duplicate();
+		buf.clear();
+		buf.limit(block.loaded ? block.length : blockSize);
+		return buf;
+	}
+
+	/** The loader filled length bytes of the block; readers may use it. */
+	public synchronized void loaded(Block block, int length) {
+		block.length = length;
+		block.loaded = true;
+		notifyAll();
+	}
+
+	/** The loader could not fill the block; drop it and unpin it. */
+	public synchronized void failed(Block block) {
+		drop(block);
+		release(block);
+		notifyAll();
+	}
+
+	/** Unpin a block from {@link #acquire}. */
+	public synchronized void release(Block block) {
+		block.pins--;
+		if (block.pins == 0 && block.dropped && slots[block.slot] == block) {
+			slots[block.slot] = null;
+		}
+	}
+
+	/** Forget the blocks of a file that was written, deleted or renamed. */
+	public synchronized void invalidate(String file) {
+		List<Block> blocks = byFile.get(file);
+		if (blocks != null) {
+			for (Block block : new ArrayList<Block>(blocks)) {
+				drop(block);
+			}
+		}
+	}
+
+	/** Forget the blocks of a path and everything under it. */
+	public synchronized void invalidateTree(String file) {
+		String prefix = file.endsWith("/") ? file : file + "/";
+		List<Block> blocks = new ArrayList<Block>();
+		for (Map.Entry<String, List<Block>> entry : byFile.entrySet()) {
+			if (entry.getKey().equals(file) || entry.getKey().startsWith(prefix)) {
+				blocks.addAll(entry.getValue());
+			}
+		}
+		for (Block block : blocks) {
+			drop(block);
+		}
+	}
+
+	/** Number of blocks cached. */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/** Free the slot of a dropped block once nobody reads it any more. */
+	private void drop(Block block) {
+		if (block.dropped) {
+			return;
+		}
+		block.dropped = true;
+		index.remove(block.key);
+		List<Block> blocks = byFile.get(block.key.file);
+		if (blocks != null) {
+			blocks.remove(block);
+			if (blocks.isEmpty()) {
+				byFile.remove(block.key.file);
+			}
+		}
+		if (block.pins == 0 && slots[block.slot] == block) {
+			slots[block.slot] = null;
+		}
+	}
+
+	/**
+	 * A free slot, evicting an unpinned block the hand finds unreferenced.
+	 * -1 if two turns of the hand found nothing to evict.
+	 */
+	private int takeSlot() {
+		for (int step = 0; step < 2 * slots.length; step++) {
+			int slot = hand;
+			hand = (hand + 1) % slots.length;
+			Block block = slots[slot];
+			if (block == null) {
+				if (buffers[slot] == null) {
+					buffers[slot] = ByteBuffer.allocateDirect(blockSize);
+				}
+				return slot;
+			}
+			if (block.pins > 0) {
+				continue;
+			}
+			if (block.referenced) {
+				block.referenced = false;
+				continue;
+			}
+			drop(block);
+			METRICS.blockCacheEviction();
+			return slot;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,85 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Recycles the large buffers that stream data passes through, so a busy
+ * reader does not allocate (and the collector does not free) a new chunk
+ * per range request.
+ *
+ * With the NIO transport the buffers are direct, so replies are read from
+ * the socket channel straight into them without an extra copy through a
+ * temporary native buffer. Direct memory is only returned to the system
+ * when the buffer is collected, which is another reason to reuse them.
+ * At most fs.adamfs.nio.buffer.pool.bytes are kept idle.
+ */
+class AdamFSBufferPool {
+
+	public static final String BUFFER_POOL_BYTES_KEY = "fs.adamfs.nio.buffer.pool.bytes";
+	public static final long BUFFER_POOL_BYTES_DEFAULT = 16 * 1024 * 1024;
+
+	private final boolean direct;
+	private final long maxIdleBytes;
+
+	// guarded by this
+	private final LinkedList<ByteBuffer> free = new LinkedList<ByteBuffer>();
+	private long idleBytes = 0;
+	private long allocated = 0;
+	private long reused = 0;
+
+	AdamFSBufferPool(boolean direct, long maxIdleBytes) {
+		this.direct = direct;
+		this.maxIdleBytes = maxIdleBytes;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/** A cleared buffer of at least size bytes, limited to size. */
+	public ByteBuffer get(int size) {
+		ByteBuffer buf = null;
+		synchronized (this) {
+			Iterator<ByteBuffer> it = free.iterator();
+			while (it.hasNext()) {
+				ByteBuffer candidate = it.next();
+				if (candidate.capacity() >= size) {
+					it.remove();
+					idleBytes -= candidate.capacity();
+					buf = candidate;
+					reused++;
+					break;
+				}
+			}
+			if (buf == null) {
+				allocated++;
+			}
+		}
+		if (buf == null) {
+			buf = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		buf.clear();
+		buf.limit(size);
+		return buf;
+	}
+
+	/** Hand a buffer back; it must not be used by the caller afterwards. */
+	public synchronized void release(ByteBuffer buf) {
+		if (buf == null || buf.isDirect() != direct
+				|| idleBytes + buf.capacity() > maxIdleBytes) {
+			return;
+		}
+		free.addFirst(buf);
+		idleBytes += buf.capacity();
+	}
+
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	public synchronized long getReused() {
+		return reused;
+	}
+}
@@ -0,0 +1,155 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * A binary connection shared by many concurrent metadata calls. Requests
+ * are written as soon as they are issued, each with its own request id, and
+ * a reader thread matches replies to callers by id, so replies may come back
+ * in any order and many round trips overlap on one socket.
+ *
+ * At most fs.adamfs.mux.max.inflight requests are outstanding per channel;
+ * further callers block until a reply frees a slot.
+ */
+class AdamFSChannel {
+	public static final Log LOG = LogFactory.getLog(AdamFSChannel.class);
+
+	public static final String MUX_CONNECTIONS_KEY = "fs.adamfs.mux.connections";
+	public static final int MUX_CONNECTIONS_DEFAULT = 2;
+	public static final String MUX_MAX_INFLIGHT_KEY = "fs.adamfs.mux.max.inflight";
+	public static final int MUX_MAX_INFLIGHT_DEFAULT = 64;
+
+	private final AdamFSConnection conn;
+	private final Semaphore inflight;
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+
+	// a request sent whose reply has not arrived yet
+	private static class Call {
+		final AdamFSFuture<AdamFSResponse> future = new AdamFSFuture<AdamFSResponse>();
+		final int opcode;
+		final long start = System.nanoTime();
+
+		Call(int opcode) {
+			this.opcode = opcode;
+		}
+	}
+
+	private final Map<Integer, Call> pending = new ConcurrentHashMap<Integer, Call>();
+	private final Daemon reader;
+	private volatile IOException failure = null;
+
+	AdamFSChannel(AdamFSConnection conn, int maxInflight) {
+		this.conn = conn;
+		this.inflight = new Semaphore(Math.max(1, maxInflight));
+		reader = new Daemon(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		});
+		reader.setName("AdamFS channel reader " + conn);
+		reader.start();
+	}
+
+	/**
+	 * Send a request and return at once. The future completes when the
+	 * reply with the same request id arrives, or fails if the channel dies.
+	 */
+	public AdamFSFuture<AdamFSResponse> call(AdamFSRequest request) throws IOException {
+		try {
+			inflight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("<AdamFS:CHANNEL> interrupted waiting to send");
+		}
+		Call call = new Call(request.getOpcode());
+		try {
+			synchronized (conn) {
+				checkAlive();
+				// the id is assigned by send(), register before the reply can race us
+				int id = conn.peekNextRequestId();
+				pending.put(id, call);
+				try {
+					conn.send(request);
+				} catch (IOException e) {
+					pending.remove(id);
+					throw e;
+				}
+			}
+		} catch (IOException e) {
+			inflight.release();
+			fail(e);
+			throw e;
+		}
+		return call.future;
+	}
+
+	public boolean isAlive() {
+		return failure == null;
+	}
+
+	public int getInflight() {
+		return pending.size();
+	}
+
+	private void checkAlive() throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				AdamFSResponse response = conn.receive();
+				if (response == null) {
+					throw new IOException("<AdamFS:CHANNEL> connection closed by api-server");
+				}
+				Call call = pending.remove(response.getRequestId());
+				if (call == null) {
+					throw new IOException("<AdamFS:CHANNEL> reply to unknown request "
+							+ response.getRequestId());
+				}
+				inflight.release();
+				METRICS.replyReceived(call.opcode, call.start, response.isSuccess());
+				call.future.set(response);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/** Kill the channel and fail every call still waiting for a reply. */
+	private void fail(IOException e) {
+		List<Call> waiting;
+		synchronized (conn) {
+			if (failure != null) {
+				return;
+			}
+			failure = e;
+			conn.markBroken();
+			waiting = new ArrayList<Call>(pending.values());
+			pending.clear();
+		}
+		conn.close();
+		inflight.release(waiting.size());
+		for (Call call : waiting) {
+			METRICS.replyReceived(call.opcode, call.start, false);
+			call.future.setException(e);
+		}
+	}
+
+	public void close() {
+		fail(new IOException("<AdamFS:CHANNEL> channel closed"));
+	}
+}
@@ -0,0 +1,245 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+
+/**
+ * Compression of file data on the wire, for servers with the DEFLATE
+ * capability. "deflate" is the zlib format of Hadoop's DefaultCodec, so the
+ * native zlib is used when it is loaded; compressors and decompressors come
+ * from the CodecPool.
+ *
+ * Reads: OPEN may carry the codec after the path. If the server echoes it
+ * after the file length, every READ reply of that session is one complete
+ * zlib stream that inflates to the requested range (short only at end of
+ * file). Positions and lengths stay in file bytes, so seek() and getPos()
+ * do not notice.
+ *
+ * Writes: with DEFLATE, WRITE_CHUNK and WRITE_AT always carry a codec after
+ * the CRC32, "" for raw data. The CRC32 covers the uncompressed bytes. A
+ * frame that does not get smaller is sent raw.
+ *
+ * fs.adamfs.compression.codec picks the codec (none or deflate). Files
+ * whose names say they are compressed already, by a codec in
+ * io.compression.codecs or a suffix in fs.adamfs.compression.skip.suffixes,
+ * are never compressed again.
+ *
+ * One instance is the codec state of one session or stream and is used by
+ * one thread at a time.
+ */
+class AdamFSCompression {
+	public static final Log LOG = LogFactory.getLog(AdamFSCompression.class);
+
+	public static final String COMPRESSION_CODEC_KEY = "fs.adamfs.compression.codec";
+	public static final String COMPRESSION_CODEC_DEFAULT = "none";
+	public static final String COMPRESSION_SKIP_SUFFIXES_KEY = "fs.adamfs.compression.skip.suffixes";
+	public static final String COMPRESSION_SKIP_SUFFIXES_DEFAULT =
+			".gz,.bz2,.deflate,.zip,.jar,.xz,.lz4,.lzo,.snappy,.zst,.jpg,.jpeg,.png,.gif,.mp3,.mp4";
+
+	public static final String CODEC_NONE = "";
+	public static final String CODEC_DEFLATE = "deflate";
+
+	private static final int SCRATCH_SIZE = 64 * 1024;
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+
+	/** Decides which files are compressed; one per file system. */
+	static class Policy {
+		private final boolean negotiated;
+		private final CompressionCodec codec; // null if fs.adamfs.compression.codec is none
+		private final CompressionCodecFactory compressed;
+		private final String[] skipSuffixes;
+
+		Policy(Configuration conf, int version, Set<String> capabilities) {
+			negotiated = version >= AdamFSProtocol.VERSION_BINARY
+					&& capabilities.contains(AdamFSProtocol.CAP_DEFLATE);
+			String name = conf.get(COMPRESSION_CODEC_KEY, COMPRESSION_CODEC_DEFAULT).trim();
+			if (CODEC_DEFLATE.equalsIgnoreCase(name)) {
+				DefaultCodec deflate = new DefaultCodec();
+				deflate.setConf(conf);
+				codec = deflate;
+			} else {
+				if (!"none".equalsIgnoreCase(name) && name.length() > 0) {
+					LOG.warn("<AdamFS:COMPRESSION> unknown codec " + name + ", not compressing");
+				}
+				codec = null;
+			}
+			compressed = codec != null && negotiated ? new CompressionCodecFactory(conf) : null;
+			skipSuffixes = conf.getStrings(COMPRESSION_SKIP_SUFFIXES_KEY,
+					COMPRESSION_SKIP_SUFFIXES_DEFAULT.split(","));
+		}
+
+		/** True if the server takes codec fields, see the class comment. */
+		boolean isNegotiated() {
+			return negotiated;
+		}
+
+		/**
+		 * Codec state for a stream on path: null if the server has no
+		 * DEFLATE, a pass-through instance if path is not to be compressed.
+		 */
+		AdamFSCompression forPath(String path) {
+			if (!negotiated) {
+				return null;
+			}
+			if (codec == null || isCompressed(path)) {
+				return new AdamFSCompression(CODEC_NONE, null);
+			}
+			return new AdamFSCompression(CODEC_DEFLATE, codec);
+		}
+
+		private boolean isCompressed(String path) {
+			String name = path.toLowerCase();
+			for (String suffix : skipSuffixes) {
+				if (suffix.length() > 0 && name.endsWith(suffix.trim().toLowerCase())) {
+					return true;
+				}
+			}
+			return compressed.getCodec(new Path(path)) != null;
+		}
+	}
+
+	private final String name;
+	private final CompressionCodec codec;
+	private Compressor compressor = null;
+	private Decompressor decompressor = null;
+	private byte[] buffer = null; // compressed bytes
+	private byte[] scratch = null; // inflated bytes bound for a direct buffer
+
+	private AdamFSCompression(String name, CompressionCodec codec) {
+		this.name = name;
+		this.codec = codec;
+	}
+
+	/** The codec's wire name, {@link #CODEC_NONE} for raw data. */
+	public String getName() {
+		return name;
+	}
+
+	public boolean isEnabled() {
+		return codec != null;
+	}
+
+	/** Same codec, state of its own; for another session or thread. */
+	public AdamFSCompression duplicate() {
+		return new AdamFSCompression(name, codec);
+	}
+
+	/**
+	 * Send a WRITE_CHUNK or WRITE_AT request whose fields up to the CRC32 are
+	 * set, with len bytes of b: adds the codec field and the data, deflated
+	 * if that makes the frame smaller.
+	 */
+	public void sendData(AdamFSConnection c, AdamFSRequest request, byte[] b, int off, int len)
+			throws IOException {
+		int n = isEnabled() ? deflate(b, off, len) : -1;
+		if (n < 0) {
+			c.sendWithData(request.addString(CODEC_NONE), b, off, len);
+			return;
+		}
+		c.sendWithData(request.addString(name), buffer, 0, n);
+		METRICS.compressionSaved(len - n);
+	}
+
+	/**
+	 * Read a compressed reply payload of length bytes off c and inflate it
+	 * into the remaining space of dst.
+	 * @return the number of bytes inflated
+	 * @throws IOException if the payload is corrupt or inflates to more than
+	 *         dst has room for
+	 */
+	public int inflate(AdamFSConnection c, int length, ByteBuffer dst) throws IOException {
+		byte[] in = getBuffer(length);
+		c.readFully(ByteBuffer.wrap(in, 0, length));
+		if (decompressor == null) {
+			decompressor = CodecPool.getDecompressor(codec);
+		}
+		decompressor.reset();
+		decompressor.setInput(in, 0, length);
+		int start = dst.position();
+		while (!decompressor.finished()) {
+			int n;
+			if (!dst.hasRemaining()) {
+				// only the stream trailer may be left
+				if (decompressor.decompress(getScratch(), 0, 1) > 0) {
+					throw new IOException("<AdamFS:COMPRESSION> reply inflates past the requested range");
+				}
+				break;
+			}
+			if (dst.hasArray()) {
+				n = decompressor.decompress(dst.array(), dst.arrayOffset() + dst.position(),
+						dst.remaining());
+				dst.position(dst.position() + n);
+			} else {
+				byte[] out = getScratch();
+				n = decompressor.decompress(out, 0, Math.min(out.length, dst.remaining()));
+				dst.put(out, 0, n);
+			}
+			if (n == 0 && (decompressor.needsInput() || decompressor.needsDictionary())) {
+				break;
+			}
+		}
+		if (!decompressor.finished()) {
+			throw new IOException("<AdamFS:COMPRESSION> truncated " + name + " reply");
+		}
+		int n = dst.position() - start;
+		METRICS.compressionSaved(n - length);
+		return n;
+	}
+
+	/** Give the compressor and decompressor back to the CodecPool. */
+	public void close() {
+		if (compressor != null) {
+			CodecPool.returnCompressor(compressor);
+			compressor = null;
+		}
+		if (decompressor != null) {
+			CodecPool.returnDecompressor(decompressor);
+			decompressor = null;
+		}
+	}
+
+	/** Deflate into buffer; -1 if that would not save anything. */
+	private int deflate(byte[] b, int off, int len) throws IOException {
+		if (compressor == null) {
+			compressor = CodecPool.getCompressor(codec);
+		}
+		byte[] out = getBuffer(len);
+		compressor.reset();
+		compressor.setInput(b, off, len);
+		compressor.finish();
+		int n = 0;
+		while (!compressor.finished()) {
+			if (n == len) {
+				return -1;
+			}
+			n += compressor.compress(out, n, len - n);
+		}
+		return n < len ? n : -1;
+	}
+
+	private byte[] getBuffer(int size) {
+		if (buffer == null || buffer.length < size) {
+			buffer = new byte[Math.max(size, SCRATCH_SIZE)];
+		}
+		return buffer;
+	}
+
+	private byte[] getScratch() {
+		if (scratch == null) {
+			scratch = new byte[SCRATCH_SIZE];
+		}
+		return scratch;
+	}
+}
@@ -0,0 +1,473 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A single TCP connection to the adamfs api-server. Connections are handed
+ * out by {@link AdamFSConnectionPool} and may carry many request/response
+ * exchanges over their lifetime. Text replies and raw stream bytes are read
+ * through the same buffered input so neither can swallow the other's data.
+ *
+ * A connection speaks the protocol version it was opened with; version 2
+ * connections announce themselves with {@link AdamFSProtocol#MAGIC}.
+ *
+ * With fs.adamfs.nio.enabled the socket is opened as a blocking
+ * SocketChannel. The stream API keeps working on top of it, and the
+ * ByteBuffer methods ({@link #readFully(ByteBuffer)}, {@link #write(ByteBuffer[])},
+ * {@link #transferFrom(FileChannel, long, long)}) then move data between the
+ * channel and the caller's buffers or files without heap copies. Reads
+ * with a read timeout set go through the socket stream, see
+ * {@link #readFully(ByteBuffer)}.
+ */
+class AdamFSConnection {
+	public static final Log LOG = LogFactory.getLog(AdamFSConnection.class);
+
+	public static final String NIO_ENABLED_KEY = "fs.adamfs.nio.enabled";
+	public static final boolean NIO_ENABLED_DEFAULT = false;
+
+	/** Lets readFully(ByteBuffer) know how much it must drain before using the channel. */
+	private static class PeekableInputStream extends BufferedInputStream {
+		PeekableInputStream(InputStream in) {
+			super(in);
+		}
+
+		synchronized int buffered() {
+			return count - pos;
+		}
+	}
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+
+	private final Socket apiSocket;
+	private final SocketChannel channel; // null unless fs.adamfs.nio.enabled
+	private final PeekableInputStream in;
+	private final OutputStream rawOut;
+	private final PrintWriter out;
+	private final int version;
+	private final DataInputStream dataIn;
+	private final DataOutputStream dataOut;
+	private int nextRequestId = 1;
+	private long lastUsed;
+	private boolean broken = false;
+	private int readTimeout = 0;
+	private byte[] copyBuffer = null;
+	private AdamFSCompression compression = null; // codec of the open read session
+
+	AdamFSConnection(String host, int port, int connectTimeout, int version,
+			boolean useChannel) throws IOException {
+		this.version = version;
+		if (useChannel) {
+			channel = SocketChannel.open();
+			apiSocket = channel.socket();
+		} else {
+			channel = null;
+			apiSocket = new Socket();
+		}
+		apiSocket.setTcpNoDelay(true);
+		apiSocket.setKeepAlive(true);
+		try {
+			apiSocket.connect(new InetSocketAddress(host, port), connectTimeout);
+		} catch (IOException e) {
+			apiSocket.close();
+			throw e;
+		}
+		in = new PeekableInputStream(apiSocket.getInputStream());
+		rawOut = apiSocket.getOutputStream();
+		out = new PrintWriter(new OutputStreamWriter(rawOut, "UTF-8"), true);
+		dataIn = new DataInputStream(in);
+		dataOut = new DataOutputStream(new BufferedOutputStream(rawOut));
+		if (version >= AdamFSProtocol.VERSION_BINARY) {
+			dataOut.write(AdamFSProtocol.MAGIC); // sent with the first request
+		}
+		lastUsed = System.currentTimeMillis();
+		METRICS.connectionOpened();
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean isBinary() {
+		return version >= AdamFSProtocol.VERSION_BINARY;
+	}
+
+	/** True if the connection runs over a SocketChannel. */
+	public boolean hasChannel() {
+		return channel != null;
+	}
+
+	/** The id the next binary request sent on this connection will get. */
+	public int peekNextRequestId() {
+		return nextRequestId;
+	}
+
+	/** Send a request in this connection's protocol. */
+	public void send(AdamFSRequest request) throws IOException {
+		METRICS.requestSent(request.getOpcode());
+		if (isBinary()) {
+			request.setRequestId(nextRequestId++);
+			request.writeFrame(dataOut);
+			dataOut.flush();
+		} else {
+			out.println(request.toText());
+			if (out.checkError()) {
+				throw new IOException("<AdamFS:CONNECTION> error writing request");
+			}
+		}
+	}
+
+	/**
+	 * Send a binary request followed by len raw bytes of b, which end the
+	 * frame. Used for chunks of file data.
+	 */
+	public void sendWithData(AdamFSRequest request, byte[] b, int off, int len)
+			throws IOException {
+		if (!isBinary()) {
+			throw new IOException("<AdamFS:CONNECTION> data frames need protocol version 2");
+		}
+		METRICS.requestSent(request.getOpcode());
+		request.setRequestId(nextRequestId++);
+		request.writeFrame(dataOut, len);
+		dataOut.write(b, off, len);
+		dataOut.flush();
+	}
+
+	/**
+	 * Read a complete reply in this connection's protocol. Returns null if
+	 * the server closed the connection before replying.
+	 */
+	public AdamFSResponse receive() throws IOException {
+		if (!isBinary()) {
+			String line = get_response();
+			return line == null ? null : AdamFSResponse.fromText(line);
+		}
+		int length;
+		try {
+			length = dataIn.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < 3) {
+			throw new IOException("<AdamFS:CONNECTION> bad frame length " + length);
+		}
+		byte[] body = new byte[length];
+		dataIn.readFully(body, 0, length);
+		return AdamFSResponse.fromFrame(body, length);
+	}
+
+	/**
+	 * Send a request and wait for its reply. Returns null if the server
+	 * closed the connection, which usually means it went stale in the pool.
+	 */
+	public AdamFSResponse call(AdamFSRequest request) throws IOException {
+		long start = System.nanoTime();
+		AdamFSResponse response = null;
+		try {
+			send(request);
+			response = receive();
+		} finally {
+			METRICS.replyReceived(request.getOpcode(), start,
+					response != null && response.isSuccess());
+		}
+		if (response != null && isBinary()
+				&& response.getRequestId() != request.getRequestId()) {
+			broken = true;
+			throw new IOException("<AdamFS:CONNECTION> reply " + response.getRequestId()
+					+ " does not match request " + request.getRequestId());
+		}
+		return response;
+	}
+
+	/**
+	 * Read only the header of a binary reply whose payload is raw data. The
+	 * caller must then consume exactly getDataLength() bytes from
+	 * {@link #getInputStream()}. Returns null on end of stream.
+	 */
+	public AdamFSResponse receiveHeader() throws IOException {
+		int length;
+		try {
+			length = dataIn.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		int opcode = dataIn.readUnsignedByte();
+		int requestId = WritableUtils.readVInt(dataIn);
+		int status = dataIn.readUnsignedByte();
+		int dataLength = length - 1 - WritableUtils.getVIntSize(requestId) - 1;
+		if (dataLength < 0) {
+			throw new IOException("<AdamFS:CONNECTION> bad frame length " + length);
+		}
+		return AdamFSResponse.fromHeader(opcode, requestId, status, dataLength);
+	}
+
+	/**
+	 * Fill the remaining space of dst with bytes from the connection. Bytes
+	 * already buffered by the stream API are drained first; the rest comes
+	 * straight off the channel into dst. A blocking channel read ignores
+	 * SO_TIMEOUT, so with a read timeout set everything goes through the
+	 * socket stream instead, which honours it.
+	 * @throws EOFException if the server closes the connection first
+	 * @throws SocketTimeoutException if the read timeout passes first
+	 */
+	public void readFully(ByteBuffer dst) throws IOException {
+		boolean direct = channel != null && readTimeout == 0;
+		while (dst.hasRemaining()) {
+			int buffered = in.buffered();
+			if (direct && buffered == 0) {
+				if (channel.read(dst) < 0) {
+					throw new EOFException("<AdamFS:CONNECTION> connection closed mid-reply");
+				}
+				continue;
+			}
+			int len = dst.remaining();
+			if (direct) {
+				len = Math.min(len, buffered);
+			}
+			int n;
+			if (dst.hasArray()) {
+				n = in.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+				if (n > 0) {
+					dst.position(dst.position() + n);
+				}
+			} else {
+				byte[] tmp = getCopyBuffer();
+				n = in.read(tmp, 0, Math.min(len, tmp.length));
+				if (n > 0) {
+					dst.put(tmp, 0, n);
+				}
+			}
+			if (n < 0) {
+				throw new EOFException("<AdamFS:CONNECTION> connection closed mid-reply");
+			}
+		}
+	}
+
+	/**
+	 * Write the remaining bytes of all srcs, in order. On a channel this is a
+	 * single gathering write, so a header and its payload need not be copied
+	 * into one buffer first.
+	 */
+	public void write(ByteBuffer[] srcs) throws IOException {
+		dataOut.flush();
+		if (channel != null) {
+			long remaining = 0;
+			for (ByteBuffer src : srcs) {
+				remaining += src.remaining();
+			}
+			while (remaining > 0) {
+				remaining -= channel.write(srcs);
+			}
+			return;
+		}
+		for (ByteBuffer src : srcs) {
+			if (src.hasArray()) {
+				rawOut.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				src.position(src.limit());
+			} else {
+				byte[] tmp = getCopyBuffer();
+				while (src.hasRemaining()) {
+					int n = Math.min(src.remaining(), tmp.length);
+					src.get(tmp, 0, n);
+					rawOut.write(tmp, 0, n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send count bytes of a file, starting at position. On a channel this is
+	 * FileChannel.transferTo, which lets the kernel move the data without it
+	 * ever reaching the Java heap.
+	 * @return the number of bytes sent, less than count at end of file
+	 */
+	public long transferFrom(FileChannel src, long position, long count) throws IOException {
+		dataOut.flush();
+		long done = 0;
+		if (channel != null) {
+			while (done < count) {
+				long n = src.transferTo(position + done, count - done, channel);
+				if (n <= 0) {
+					if (position + done >= src.size()) {
+						break;
+					}
+					continue;
+				}
+				done += n;
+			}
+			return done;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(getCopyBuffer());
+		while (done < count) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), count - done));
+			int n = src.read(buf, position + done);
+			if (n < 0) {
+				break;
+			}
+			rawOut.write(buf.array(), 0, n);
+			done += n;
+		}
+		return done;
+	}
+
+	private byte[] getCopyBuffer() {
+		if (copyBuffer == null) {
+			copyBuffer = new byte[COPY_BUFFER_SIZE];
+		}
+		return copyBuffer;
+	}
+
+	public void send_line(String line) {
+		out.println(line);
+	}
+
+	/**
+	 * Read one newline terminated reply. Returns null if the server closed
+	 * the connection, which usually means a pooled connection went stale.
+	 */
+	public String get_response() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+			line.write(c);
+		}
+		if (c == -1 && line.size() == 0) {
+			return null;
+		}
+		String response = line.toString("UTF-8");
+		if (response.endsWith("\r")) {
+			response = response.substring(0, response.length() - 1);
+		}
+		return response;
+	}
+
+	/**
+	 * Socket read timeout in ms, 0 waits forever. With a timeout,
+	 * {@link #readFully(ByteBuffer)} reads through the socket stream rather
+	 * than straight off the channel.
+	 */
+	public void setReadTimeout(int timeout) throws IOException {
+		apiSocket.setSoTimeout(timeout);
+		readTimeout = timeout;
+	}
+
+	/** Codec the READ replies of the current session use, null if raw. */
+	public AdamFSCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Set the codec for the session just opened, or null when it ends. The
+	 * previous one goes back to the CodecPool unless the connection broke,
+	 * since another thread may then still be inside it.
+	 */
+	public void setCompression(AdamFSCompression compression) {
+		if (this.compression != null && !isBroken()) {
+			this.compression.close();
+		}
+		this.compression = compression;
+	}
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public OutputStream getOutputStream() {
+		return rawOut;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Mark the connection as unusable, e.g. after an I/O error or when a
+	 * stream was abandoned mid-transfer. Broken connections are never pooled.
+	 */
+	public void markBroken() {
+		broken = true;
+	}
+
+	public boolean isBroken() {
+		return broken || apiSocket.isClosed() || !apiSocket.isConnected()
+				|| apiSocket.isInputShutdown() || apiSocket.isOutputShutdown();
+	}
+
+	/**
+	 * Cheap health check for an idle connection: there must be no unread
+	 * bytes waiting and the server must not have closed its end. Peeks with
+	 * a 1ms timeout, so a timeout means the connection is still good.
+	 */
+	public boolean isHealthy() {
+		if (isBroken()) {
+			return false;
+		}
+		int oldTimeout = 0;
+		try {
+			if (in.available() > 0) {
+				return false; // unsolicited data, connection is out of sync
+			}
+			oldTimeout = apiSocket.getSoTimeout();
+			apiSocket.setSoTimeout(1);
+			in.read();
+			// either EOF (server closed its end) or bytes nobody asked for
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				apiSocket.setSoTimeout(oldTimeout);
+			} catch (IOException e) {
+				broken = true;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AdamFSConnection[" + apiSocket.getRemoteSocketAddress()
+				+ ", local port " + apiSocket.getLocalPort()
+				+ (channel != null ? ", nio" : "") + "]";
+	}
+
+	public void close() {
+		compression = null;
+		try {
+			out.close();
+			in.close();
+			apiSocket.close();
+		} catch (IOException e) {
+			LOG.debug("<AdamFS:CONNECTION> error closing connection", e);
+		}
+	}
+}
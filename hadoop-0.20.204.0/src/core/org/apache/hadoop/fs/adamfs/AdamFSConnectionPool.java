@@ -0,0 +1,355 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Bounded, thread-safe pool of long-lived connections to one api-server.
+ *
+ * Metadata calls borrow a connection, do one exchange and release it again,
+ * so a busy client reuses a handful of sockets instead of opening one per
+ * request. Idle connections are validated before reuse once they have sat
+ * unused for a while, and are closed by a background evictor after
+ * fs.adamfs.pool.idle.timeout.
+ *
+ * With the binary protocol the pool also keeps fs.adamfs.mux.connections
+ * multiplexed channels (see {@link AdamFSChannel}) that metadata calls
+ * share instead of borrowing a connection each. Channels live outside the
+ * bounded set and are reopened when they die.
+ *
+ * Streams returned by open/create also borrow from the pool but must never
+ * block on it (a task may hold more open files than the pool has slots), so
+ * they get an overflow connection when the pool is exhausted. Overflow
+ * connections are closed on release instead of being kept idle.
+ *
+ * The pool also owns the {@link AdamFSBufferPool} that streams on its
+ * connections take their data buffers from.
+ */
+class AdamFSConnectionPool {
+	public static final Log LOG = LogFactory.getLog(AdamFSConnectionPool.class);
+
+	public static final String POOL_MAX_SIZE_KEY = "fs.adamfs.pool.max.size";
+	public static final int POOL_MAX_SIZE_DEFAULT = 16;
+	public static final String POOL_IDLE_TIMEOUT_KEY = "fs.adamfs.pool.idle.timeout";
+	public static final long POOL_IDLE_TIMEOUT_DEFAULT = 60000; // ms
+	public static final String POOL_VALIDATE_AFTER_KEY = "fs.adamfs.pool.validate.after";
+	public static final long POOL_VALIDATE_AFTER_DEFAULT = 2000; // ms
+	public static final String POOL_BORROW_TIMEOUT_KEY = "fs.adamfs.pool.borrow.timeout";
+	public static final long POOL_BORROW_TIMEOUT_DEFAULT = 30000; // ms
+	public static final String POOL_CONNECT_TIMEOUT_KEY = "fs.adamfs.pool.connect.timeout";
+	public static final int POOL_CONNECT_TIMEOUT_DEFAULT = 10000; // ms
+
+	private final String host;
+	private final int port;
+	private final int maxSize;
+	private final long idleTimeout;
+	private final long validateAfter;
+	private final long borrowTimeout;
+	private final int connectTimeout;
+	private final boolean useChannels;
+	private final AdamFSBufferPool buffers;
+	private volatile int version = AdamFSProtocol.VERSION_TEXT;
+
+	// most recently used connection first, so the tail ages out
+	private final LinkedList<AdamFSConnection> idle = new LinkedList<AdamFSConnection>();
+	private int total = 0; // idle + borrowed
+	private boolean closed = false;
+	private Daemon evictor;
+
+	private final AdamFSChannel[] channels;
+	private final int maxInflight;
+	private int nextChannel = 0;
+
+	AdamFSConnectionPool(String host, int port, Configuration conf) {
+		this.host = host;
+		this.port = port;
+		this.maxSize = Math.max(1, conf.getInt(POOL_MAX_SIZE_KEY, POOL_MAX_SIZE_DEFAULT));
+		this.idleTimeout = conf.getLong(POOL_IDLE_TIMEOUT_KEY, POOL_IDLE_TIMEOUT_DEFAULT);
+		this.validateAfter = conf.getLong(POOL_VALIDATE_AFTER_KEY, POOL_VALIDATE_AFTER_DEFAULT);
+		this.borrowTimeout = conf.getLong(POOL_BORROW_TIMEOUT_KEY, POOL_BORROW_TIMEOUT_DEFAULT);
+		this.connectTimeout = conf.getInt(POOL_CONNECT_TIMEOUT_KEY, POOL_CONNECT_TIMEOUT_DEFAULT);
+		this.useChannels = conf.getBoolean(AdamFSConnection.NIO_ENABLED_KEY,
+				AdamFSConnection.NIO_ENABLED_DEFAULT);
+		this.buffers = new AdamFSBufferPool(useChannels, conf.getLong(
+				AdamFSBufferPool.BUFFER_POOL_BYTES_KEY, AdamFSBufferPool.BUFFER_POOL_BYTES_DEFAULT));
+		this.channels = new AdamFSChannel[Math.max(1, conf.getInt(
+				AdamFSChannel.MUX_CONNECTIONS_KEY, AdamFSChannel.MUX_CONNECTIONS_DEFAULT))];
+		this.maxInflight = conf.getInt(AdamFSChannel.MUX_MAX_INFLIGHT_KEY,
+				AdamFSChannel.MUX_MAX_INFLIGHT_DEFAULT);
+		if (idleTimeout > 0) {
+			evictor = new Daemon(new Runnable() {
+				public void run() {
+					evictLoop();
+				}
+			});
+			evictor.setName("AdamFS connection evictor " + host + ":" + port);
+			evictor.start();
+		}
+	}
+
+	/**
+	 * Protocol version for connections opened from now on, as agreed in the
+	 * hello. Idle connections speaking another version are dropped.
+	 */
+	public void setProtocolVersion(int version) {
+		LinkedList<AdamFSConnection> toClose = new LinkedList<AdamFSConnection>();
+		synchronized (this) {
+			this.version = version;
+			Iterator<AdamFSConnection> it = idle.iterator();
+			while (it.hasNext()) {
+				AdamFSConnection conn = it.next();
+				if (conn.getVersion() != version) {
+					it.remove();
+					toClose.add(conn);
+				}
+			}
+		}
+		for (AdamFSConnection conn : toClose) {
+			invalidate(conn);
+		}
+	}
+
+	public int getProtocolVersion() {
+		return version;
+	}
+
+	/** Data buffers for streams; direct when connections use NIO. */
+	public AdamFSBufferPool getBufferPool() {
+		return buffers;
+	}
+
+	/**
+	 * Borrow a connection for a metadata exchange, waiting up to
+	 * fs.adamfs.pool.borrow.timeout if all connections are in use.
+	 */
+	public AdamFSConnection borrow() throws IOException {
+		return borrow(true);
+	}
+
+	/**
+	 * Borrow a connection for a long-lived stream. Never waits; opens an
+	 * overflow connection if the pool is exhausted.
+	 */
+	public AdamFSConnection borrowForStream() throws IOException {
+		return borrow(false);
+	}
+
+	/**
+	 * Open a brand new connection that counts against the pool, bypassing
+	 * the idle list. Used to retry after a pooled connection turned out stale.
+	 */
+	public AdamFSConnection borrowFresh() throws IOException {
+		synchronized (this) {
+			checkOpen();
+			total++;
+		}
+		return connect();
+	}
+
+	private AdamFSConnection borrow(boolean wait) throws IOException {
+		long deadline = System.currentTimeMillis() + borrowTimeout;
+		while (true) {
+			AdamFSConnection candidate = null;
+			synchronized (this) {
+				checkOpen();
+				if (!idle.isEmpty()) {
+					candidate = idle.removeFirst();
+				} else if (total < maxSize || !wait) {
+					total++;
+				} else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new IOException("<AdamFS:POOL> timed out waiting for a connection to "
+								+ host + ":" + port + " (" + POOL_MAX_SIZE_KEY + "=" + maxSize + ")");
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("<AdamFS:POOL> interrupted waiting for a connection");
+					}
+					continue;
+				}
+			}
+			if (candidate == null) {
+				return connect(); // slot reserved above
+			}
+			// validate outside the lock, the peek may take a millisecond
+			if (System.currentTimeMillis() - candidate.getLastUsed() < validateAfter
+					|| candidate.isHealthy()) {
+				AdamFSMetrics.get().connectionReused();
+				return candidate;
+			}
+			//LOG.info("<AdamFS:POOL> discarding stale connection");
+			invalidate(candidate);
+		}
+	}
+
+	/**
+	 * A live multiplexed channel, round robin over the configured number.
+	 * Only valid once a binary protocol version has been set.
+	 */
+	public AdamFSChannel getChannel() throws IOException {
+		int i;
+		synchronized (this) {
+			checkOpen();
+			i = nextChannel;
+			nextChannel = (nextChannel + 1) % channels.length;
+			if (channels[i] != null && channels[i].isAlive()) {
+				return channels[i];
+			}
+		}
+		// connect outside the lock, another thread may beat us to it
+		AdamFSChannel fresh = new AdamFSChannel(
+				new AdamFSConnection(host, port, connectTimeout, version, useChannels), maxInflight);
+		AdamFSChannel existing;
+		boolean open;
+		synchronized (this) {
+			open = !closed; // close() has already walked channels otherwise
+			existing = channels[i];
+			if (open && (existing == null || !existing.isAlive())) {
+				channels[i] = fresh;
+				existing = null;
+			}
+		}
+		if (!open) {
+			fresh.close();
+			throw new IOException("<AdamFS:POOL> connection pool is closed");
+		}
+		if (existing != null) {
+			fresh.close();
+			return existing;
+		}
+		return fresh;
+	}
+
+	private AdamFSConnection connect() throws IOException {
+		try {
+			return new AdamFSConnection(host, port, connectTimeout, version, useChannels);
+		} catch (IOException e) {
+			synchronized (this) {
+				total--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Give a connection back. Broken connections, overflow connections and
+	 * anything released after the pool was closed are torn down instead.
+	 */
+	public void release(AdamFSConnection conn) {
+		conn.setCompression(null); // the session it belonged to is over
+		if (conn.isBroken()) {
+			invalidate(conn);
+			return;
+		}
+		synchronized (this) {
+			if (!closed && total <= maxSize) {
+				conn.touch();
+				idle.addFirst(conn);
+				notifyAll();
+				return;
+			}
+		}
+		invalidate(conn);
+	}
+
+	/** Close a borrowed connection and free its slot. */
+	public void invalidate(AdamFSConnection conn) {
+		conn.close();
+		synchronized (this) {
+			total--;
+			notifyAll();
+		}
+	}
+
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	public synchronized int getTotalCount() {
+		return total;
+	}
+
+	private synchronized void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("<AdamFS:POOL> connection pool is closed");
+		}
+	}
+
+	private void evictLoop() {
+		long interval = Math.max(1000, idleTimeout / 2);
+		while (true) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				try {
+					wait(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed) {
+					return;
+				}
+			}
+			evictIdle();
+		}
+	}
+
+	private void evictIdle() {
+		LinkedList<AdamFSConnection> expired = new LinkedList<AdamFSConnection>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<AdamFSConnection> it = idle.iterator();
+			while (it.hasNext()) {
+				AdamFSConnection conn = it.next();
+				if (now - conn.getLastUsed() >= idleTimeout) {
+					it.remove();
+					expired.add(conn);
+				}
+			}
+		}
+		for (AdamFSConnection conn : expired) {
+			invalidate(conn);
+		}
+	}
+
+	/** Close all idle connections; borrowed ones are closed on release. */
+	public void close() {
+		LinkedList<AdamFSConnection> toClose;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			toClose = new LinkedList<AdamFSConnection>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		for (AdamFSConnection conn : toClose) {
+			invalidate(conn);
+		}
+		for (int i = 0; i < channels.length; i++) {
+			AdamFSChannel channel;
+			synchronized (this) {
+				channel = channels[i];
+				channels[i] = null;
+			}
+			if (channel != null) {
+				channel.close();
+			}
+		}
+		if (evictor != null) {
+			evictor.interrupt();
+		}
+	}
+}
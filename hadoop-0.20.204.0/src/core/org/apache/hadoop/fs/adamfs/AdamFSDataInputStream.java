@@ -0,0 +1,38 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * What {@link AdamFileSystem#open} returns. Adds a ByteBuffer read, so
+ * readers that check for this class can have data delivered into their own
+ * (ideally direct) buffers instead of a byte[].
+ */
+public class AdamFSDataInputStream extends FSDataInputStream {
+	private final AdamFSInputStream stream;
+
+	AdamFSDataInputStream(AdamFSInputStream stream) throws IOException {
+		super(stream);
+		this.stream = stream;
+	}
+
+	/**
+	 * Read into the remaining space of buf, advancing its position.
+	 * @return the number of bytes read, or -1 at end of file
+	 */
+	public int read(ByteBuffer buf) throws IOException {
+		return stream.read(buf);
+	}
+
+	/**
+	 * Read many ranges of the file with a few pipelined, merged requests.
+	 * Returns right away; wait on each range's {@link AdamFSFileRange#getData}.
+	 * The stream position does not change.
+	 */
+	public void readVectored(List<? extends AdamFSFileRange> ranges) throws IOException {
+		stream.readVectored(ranges);
+	}
+}
@@ -0,0 +1,45 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One range of a vectored read, see
+ * {@link AdamFSDataInputStream#readVectored}. The data future completes
+ * with a buffer holding exactly the range's bytes, or fails; ranges past
+ * the end of the file fail with an EOFException.
+ */
+public class AdamFSFileRange {
+	private final long offset;
+	private final int length;
+	private volatile AdamFSFuture<ByteBuffer> data = new AdamFSFuture<ByteBuffer>();
+
+	public AdamFSFileRange(long offset, int length) {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("<AdamFS> bad range " + offset + "+" + length);
+		}
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/** Where the data arrives; a new future every time the range is read. */
+	public AdamFSFuture<ByteBuffer> getData() {
+		return data;
+	}
+
+	void reset() {
+		data = new AdamFSFuture<ByteBuffer>();
+	}
+
+	@Override
+	public String toString() {
+		return offset + "+" + length;
+	}
+}
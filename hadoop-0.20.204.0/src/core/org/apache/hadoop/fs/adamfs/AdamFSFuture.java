@@ -0,0 +1,186 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous adamfs call. Completed exactly once, either by
+ * the thread that reads the matching reply off a multiplexed connection or
+ * directly by the caller for synchronous (version 1) connections.
+ *
+ * Callbacks run on the completing thread, so they must be short and must
+ * not block on other replies.
+ */
+public class AdamFSFuture<T> implements Future<T> {
+
+	/** Invoked once the future is done, successfully or not. */
+	public interface Callback<V> {
+		void done(AdamFSFuture<V> future);
+	}
+
+	/** Converts a successful result, e.g. a raw reply into a FileStatus. */
+	public interface Function<F, V> {
+		V apply(F input) throws IOException;
+	}
+
+	private T value;
+	private Throwable error;
+	private boolean done = false;
+	private List<Callback<T>> callbacks;
+
+	public static <V> AdamFSFuture<V> completed(V value) {
+		AdamFSFuture<V> future = new AdamFSFuture<V>();
+		future.set(value);
+		return future;
+	}
+
+	public static <V> AdamFSFuture<V> failed(Throwable error) {
+		AdamFSFuture<V> future = new AdamFSFuture<V>();
+		future.setException(error);
+		return future;
+	}
+
+	/** @return false if the future was already completed */
+	public boolean set(T value) {
+		return complete(value, null);
+	}
+
+	/** @return false if the future was already completed */
+	public boolean setException(Throwable error) {
+		return complete(null, error);
+	}
+
+	private boolean complete(T value, Throwable error) {
+		List<Callback<T>> toRun;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.value = value;
+			this.error = error;
+			this.done = true;
+			toRun = callbacks;
+			callbacks = null;
+			notifyAll();
+		}
+		if (toRun != null) {
+			for (Callback<T> callback : toRun) {
+				callback.done(this);
+			}
+		}
+		return true;
+	}
+
+	public void addCallback(Callback<T> callback) {
+		synchronized (this) {
+			if (!done) {
+				if (callbacks == null) {
+					callbacks = new ArrayList<Callback<T>>(2);
+				}
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.done(this);
+	}
+
+	/**
+	 * A future for fn applied to this future's result. Failures of this
+	 * future, and exceptions thrown by fn, fail the returned future.
+	 */
+	public <V> AdamFSFuture<V> then(final Function<? super T, V> fn) {
+		final AdamFSFuture<V> result = new AdamFSFuture<V>();
+		addCallback(new Callback<T>() {
+			public void done(AdamFSFuture<T> future) {
+				Throwable e = future.getException();
+				if (e != null) {
+					result.setException(e);
+					return;
+				}
+				try {
+					result.set(fn.apply(future.value));
+				} catch (IOException ioe) {
+					result.setException(ioe);
+				} catch (RuntimeException re) {
+					result.setException(re);
+				}
+			}
+		});
+		return result;
+	}
+
+	/** Calls cannot be withdrawn once they are on the wire. */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			wait(remaining);
+		}
+		return result();
+	}
+
+	private T result() throws ExecutionException {
+		if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return value;
+	}
+
+	/**
+	 * Wait for the result the way the synchronous FileSystem methods need
+	 * it: IOExceptions come out unwrapped, interrupts as InterruptedIOException.
+	 */
+	public T getChecked() throws IOException {
+		try {
+			return get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("<AdamFS> interrupted waiting for reply");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			IOException ioe = new IOException("<AdamFS> call failed: " + cause);
+			ioe.initCause(cause);
+			throw ioe;
+		}
+	}
+
+	/** The error the future failed with, or null. Only valid once done. */
+	public synchronized Throwable getException() {
+		return error;
+	}
+}
@@ -0,0 +1,200 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * A hedged READ. When the reply to a READ is not complete
+ * fs.adamfs.read.hedge.delay ms after its reader started waiting for it,
+ * an {@link AdamFSInputStream} asks for the same range again on another of
+ * its read sessions. That is another connection and, on a server with
+ * several event loops or threads, usually another thread on the server,
+ * so a stall that holds up one connection does not hold up the read.
+ *
+ * Whichever reply is complete first is used. The other connection is
+ * closed, which also wakes whoever is still blocked reading from it: the
+ * reader of the first request calls {@link #primaryDone} once it has its
+ * reply and, if that returns false or its read failed, takes the bytes
+ * from {@link #await} instead.
+ *
+ * The delays are kept by one timer thread for the JVM; the second request
+ * runs on the file system's transfer threads.
+ */
+class AdamFSHedgedRead implements Runnable {
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+
+	private static ScheduledThreadPoolExecutor timer = null;
+
+	private final AdamFSInputStream stream;
+	private final AdamFSConnection primary;
+	private final Executor executor;
+	private final long pos;
+	private final int len;
+
+	// guarded by this
+	private ScheduledFuture<?> trigger = null;
+	private boolean started = false; // the second request is or was under way
+	private AdamFSConnection session = null; // the hedge's, while it reads
+	private ByteBuffer data = null;
+	private boolean primaryWon = false;
+	private boolean hedgeWon = false;
+	private boolean done = false;
+	private IOException error = null;
+
+	/**
+	 * @param primary connection the first request for the range went out on
+	 */
+	private AdamFSHedgedRead(AdamFSInputStream stream, AdamFSConnection primary,
+			Executor executor, long pos, int len) {
+		this.stream = stream;
+		this.primary = primary;
+		this.executor = executor;
+		this.pos = pos;
+		this.len = len;
+	}
+
+	/**
+	 * Race the reply to the READ of len bytes at pos on primary with a
+	 * second request on another session of stream, unless the reply is
+	 * in within delay ms.
+	 */
+	static AdamFSHedgedRead schedule(AdamFSInputStream stream, AdamFSConnection primary,
+			Executor executor, long pos, int len, int delay) {
+		final AdamFSHedgedRead hedge = new AdamFSHedgedRead(stream, primary, executor, pos, len);
+		ScheduledFuture<?> f = timer().schedule(new Runnable() {
+			public void run() {
+				hedge.start();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		synchronized (hedge) {
+			hedge.trigger = f;
+		}
+		return hedge;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Daemon(r);
+					t.setName("AdamFS hedge timer");
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	/** Send the second request, unless the first one is answered. */
+	private synchronized void start() {
+		if (primaryWon || started) {
+			return;
+		}
+		started = true;
+		try {
+			executor.execute(this);
+			METRICS.readHedged();
+		} catch (RejectedExecutionException e) {
+			done = true;
+			error = new IOException("<AdamFS:HEDGE> file system is closed");
+			notifyAll();
+		}
+	}
+
+	public void run() {
+		AdamFSConnection s = null;
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		IOException failure = null;
+		try {
+			s = stream.borrow_pread_session();
+			synchronized (this) {
+				if (primaryWon) {
+					return;
+				}
+				session = s;
+			}
+			while (buf.hasRemaining()) {
+				if (stream.read_range_plain(s, pos + buf.position(), buf) < 0) {
+					break; // end of file
+				}
+			}
+			// a shorter answer than the primary's is no win
+			if (buf.position() < Math.min(len, stream.getFileLength() - pos)) {
+				throw new EOFException("<AdamFS:HEDGE> end of file reached at "
+						+ (pos + buf.position()));
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			synchronized (this) {
+				session = null;
+				done = true;
+				error = failure;
+				data = buf;
+				if (failure == null && !primaryWon) {
+					hedgeWon = true;
+					METRICS.hedgeWon();
+					primary.markBroken();
+					primary.close(); // wakes the primary's reader
+				}
+				notifyAll();
+			}
+			if (s != null) {
+				stream.release_pread_session(s);
+			}
+		}
+	}
+
+	/**
+	 * The first request's reply is in. Returns true if it is the one to
+	 * use, and calls off the second request; false if that was answered
+	 * first.
+	 */
+	synchronized boolean primaryDone() {
+		if (hedgeWon) {
+			return false;
+		}
+		primaryWon = true;
+		if (trigger != null) {
+			trigger.cancel(false);
+		}
+		if (session != null) {
+			session.markBroken();
+			session.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for the second request, sending it now if the first one failed
+	 * before the delay was up. Returns the bytes read, short only at end of
+	 * file, or throws its failure.
+	 */
+	synchronized ByteBuffer await() throws IOException {
+		start();
+		while (!done) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("<AdamFS:HEDGE> interrupted waiting for a hedged read");
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		ByteBuffer result = data.duplicate();
+		result.flip();
+		return result;
+	}
+}
@@ -1,13 +1,20 @@
 package org.apache.hadoop.fs.adamfs;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 class AdamFSInputStream extends FSInputStream {
@@ -17,17 +24,159 @@ class AdamFSInputStream extends FSInputStream {
 	private long fileLength;
 	private String defaultname;
 
-	private Socket apiSocket;
-	private PrintWriter out = null;
-	private InputStream in = null;
+	public static final String PREAD_SESSIONS_KEY = "fs.adamfs.pread.sessions";
+	public static final int PREAD_SESSIONS_DEFAULT = 4;
+	// how long a read session waits for reply bytes before giving up, 0 forever
+	public static final String READ_TIMEOUT_KEY = "fs.adamfs.read.timeout";
+	public static final int READ_TIMEOUT_DEFAULT = 60000; // ms
+	// times a failed read is tried again on a new connection
+	public static final String READ_RETRIES_KEY = "fs.adamfs.read.retries";
+	public static final int READ_RETRIES_DEFAULT = 1;
+	// a READ not answered this soon is raced by a second one, 0 never
+	public static final String READ_HEDGE_DELAY_KEY = "fs.adamfs.read.hedge.delay";
+	public static final int READ_HEDGE_DELAY_DEFAULT = 0; // ms
+	// how sequential reads go out: sequential, random or adaptive
+	public static final String INPUT_POLICY_KEY = "fs.adamfs.input.policy";
+	public static final String INPUT_POLICY_DEFAULT = "adaptive";
+	public static final String POLICY_SEQUENTIAL = "sequential";
+	public static final String POLICY_RANDOM = "random";
+	public static final String POLICY_ADAPTIVE = "adaptive";
+	// random mode fetches at least this much per read, 0 exactly what is asked
+	public static final String INPUT_RANDOM_REQUEST_SIZE_KEY = "fs.adamfs.input.random.request.size";
+	public static final int INPUT_RANDOM_REQUEST_SIZE_DEFAULT = 64 * 1024;
 
-	public AdamFSInputStream(String fsDefaultName, Socket s, long flen)
-			throws IOException {
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+
+	private AdamFSConnectionPool pool;
+	private AdamFSConnection conn;
+	private String path;
+	private volatile boolean closed = false;
+	// streaming mode, null if fs.adamfs.readahead.enabled is off or in random mode
+	private AdamFSReadAhead readAhead = null;
+	// multi-connection mode for large files, replaces readAhead
+	private AdamFSParallelReader parallel = null;
+	// adaptive policy: streaming is off while the reads look random
+	private final boolean adaptive;
+	private boolean random;
+	private long sequentialRun = 0; // bytes read back to back in random mode
+	private boolean readSinceOpen = false;
+	// random mode: the last small read's request, at randomBufferPos
+	private final int randomRequestSize;
+	private ByteBuffer randomBuffer = null;
+	private long randomBufferPos = 0;
+	private int randomBufferLen = 0;
+	// idle read sessions on this file for positional reads, guarded by itself
+	private final LinkedList<AdamFSConnection> preadSessions = new LinkedList<AdamFSConnection>();
+	private int maxPreadSessions;
+	// codec of the stream's session, offered for pread sessions too; null if raw
+	private final AdamFSCompression compression;
+	private final FileSystem.Statistics statistics;
+	private final Executor executor;
+	// cached mode: reads go through the block cache, null otherwise
+	private final AdamFSBlockCache cache;
+	private final String cacheName; // the file's qualified name
+	private final long modificationTime;
+	private final int vectoredGap;
+	private final int vectoredMaxMerged;
+	private final long vectoredWindow;
+	private final int readTimeout;
+	private final int readRetries;
+	private final int hedgeDelay;
+	private final boolean readAheadEnabled;
+	private final int readAheadRequestSize;
+	private final long readAheadWindow;
+	private final int parallelPartSize;
+	private final int parallelConcurrency; // 0 if the file is read without parallel parts
+	private long bytesRead = 0; // sequential and positional, updated by readers
+
+	/**
+	 * @param executor runs vectored and hedged reads, and part fetches for
+	 *        files large enough for parallel transfer
+	 * @param statistics counts the bytes read, may be null
+	 */
+	public AdamFSInputStream(String fsDefaultName, AdamFSConnectionPool pool,
+			AdamFSConnection conn, String path, long flen, Configuration conf,
+			Executor executor, FileSystem.Statistics statistics) throws IOException {
+		this(fsDefaultName, pool, conn, path, flen, conn.getCompression(), null, null, 0,
+				conf, executor, statistics);
+	}
+
+	/**
+	 * A stream in cached mode: every read is served from cache, blocks it
+	 * misses are fetched with positional reads, and no read session is
+	 * opened before the first miss.
+	 * @param cacheName the file's qualified name, which keys its blocks
+	 * @param compression codec to offer for read sessions, null for none
+	 */
+	AdamFSInputStream(String fsDefaultName, AdamFSConnectionPool pool, String path,
+			long flen, long modificationTime, AdamFSCompression compression,
+			AdamFSBlockCache cache, String cacheName, Configuration conf, Executor executor,
+			FileSystem.Statistics statistics) throws IOException {
+		this(fsDefaultName, pool, null, path, flen, compression, cache, cacheName,
+				modificationTime, conf, executor, statistics);
+	}
+
+	private AdamFSInputStream(String fsDefaultName, AdamFSConnectionPool pool,
+			AdamFSConnection conn, String path, long flen, AdamFSCompression compression,
+			AdamFSBlockCache cache, String cacheName, long modificationTime, Configuration conf,
+			Executor executor, FileSystem.Statistics statistics) throws IOException {
 		defaultname = fsDefaultName;
-		apiSocket = s;
+		this.statistics = statistics;
+		this.executor = executor;
+		this.pool = pool;
+		this.conn = conn;
+		this.path = path;
 		fileLength = flen;
-		in = apiSocket.getInputStream();
-		out = new PrintWriter(apiSocket.getOutputStream(), true);
+		this.compression = compression;
+		this.cache = cache;
+		this.cacheName = cacheName;
+		this.modificationTime = modificationTime;
+		maxPreadSessions = conf.getInt(PREAD_SESSIONS_KEY, PREAD_SESSIONS_DEFAULT);
+		vectoredGap = conf.getInt(AdamFSVectoredRead.VECTORED_MERGE_GAP_KEY,
+				AdamFSVectoredRead.VECTORED_MERGE_GAP_DEFAULT);
+		vectoredMaxMerged = conf.getInt(AdamFSVectoredRead.VECTORED_MERGE_MAX_KEY,
+				AdamFSVectoredRead.VECTORED_MERGE_MAX_DEFAULT);
+		vectoredWindow = conf.getLong(AdamFSReadAhead.READAHEAD_WINDOW_KEY,
+				AdamFSReadAhead.READAHEAD_WINDOW_DEFAULT);
+		readTimeout = Math.max(0, conf.getInt(READ_TIMEOUT_KEY, READ_TIMEOUT_DEFAULT));
+		readRetries = Math.max(0, conf.getInt(READ_RETRIES_KEY, READ_RETRIES_DEFAULT));
+		hedgeDelay = Math.max(0, conf.getInt(READ_HEDGE_DELAY_KEY, READ_HEDGE_DELAY_DEFAULT));
+		readAheadRequestSize = conf.getInt(AdamFSReadAhead.READAHEAD_REQUEST_SIZE_KEY,
+				AdamFSReadAhead.READAHEAD_REQUEST_SIZE_DEFAULT);
+		readAheadWindow = conf.getLong(AdamFSReadAhead.READAHEAD_WINDOW_KEY,
+				AdamFSReadAhead.READAHEAD_WINDOW_DEFAULT);
+		if (conn != null) {
+			conn.setReadTimeout(readTimeout);
+		}
+		readAheadEnabled = conf.getBoolean(AdamFSReadAhead.READAHEAD_ENABLED_KEY,
+				AdamFSReadAhead.READAHEAD_ENABLED_DEFAULT);
+		parallelPartSize = conf.getInt(AdamFileSystem.PARALLEL_PART_SIZE_KEY,
+				AdamFileSystem.PARALLEL_PART_SIZE_DEFAULT);
+		if (cache == null
+				&& conf.getBoolean(AdamFileSystem.PARALLEL_ENABLED_KEY, AdamFileSystem.PARALLEL_ENABLED_DEFAULT)
+				&& fileLength >= conf.getLong(AdamFileSystem.PARALLEL_THRESHOLD_KEY,
+						AdamFileSystem.PARALLEL_THRESHOLD_DEFAULT)) {
+			parallelConcurrency = Math.max(1, conf.getInt(AdamFileSystem.PARALLEL_CONCURRENCY_KEY,
+					AdamFileSystem.PARALLEL_CONCURRENCY_DEFAULT));
+			// keep a session per part fetch around between parts
+			maxPreadSessions = Math.max(maxPreadSessions, parallelConcurrency);
+		} else {
+			parallelConcurrency = 0;
+		}
+		randomRequestSize = Math.max(0, conf.getInt(INPUT_RANDOM_REQUEST_SIZE_KEY,
+				INPUT_RANDOM_REQUEST_SIZE_DEFAULT));
+		String policy = conf.get(INPUT_POLICY_KEY, INPUT_POLICY_DEFAULT).trim();
+		if (!POLICY_SEQUENTIAL.equalsIgnoreCase(policy) && !POLICY_RANDOM.equalsIgnoreCase(policy)
+				&& !POLICY_ADAPTIVE.equalsIgnoreCase(policy)) {
+			LOG.warn("<AdamFS:INPUTSTREAM> unknown " + INPUT_POLICY_KEY + " " + policy
+					+ ", using " + POLICY_ADAPTIVE);
+			policy = POLICY_ADAPTIVE;
+		}
+		adaptive = POLICY_ADAPTIVE.equalsIgnoreCase(policy);
+		random = POLICY_RANDOM.equalsIgnoreCase(policy);
+		if (cache == null && !random) {
+			start_streaming(position);
+		}
 //		LOG.info("<AdamFS:INPUTSTREAM> Constructed!");
 //		LOG.info("<AdamFS:INPUTSTREAM> file size: "+fileLength);
 	}
@@ -61,48 +210,607 @@ class AdamFSInputStream extends FSInputStream {
 		} else if (length == 0) {
 			return 0;
 		}
-		
-		// send request command to fsapi-server
-		// prompt read bytes
-		out.println(position + ":" + length); // *** RP6 ***
-		// immediately receive data, *** RP8 ***
-		int c = in.read(); // read first byte
-		if (c == -1) {
-			return -1;
+		if (closed) {
+			throw new IOException("<AdamFS:INPUTSTREAM> stream is closed");
+		}
+		if (cache != null) {
+			int n = read_cached(position, ByteBuffer.wrap(b, off, length));
+			if (n > 0) {
+				position += n;
+				count_read(n);
+			}
+			return n;
+		}
+		if (readAhead != null || parallel != null) {
+			int n = parallel != null ? parallel.read(ByteBuffer.wrap(b, off, length))
+					: readAhead.read(b, off, length);
+			if (n > 0) {
+				position += n;
+				count_read(n);
+			}
+			readSinceOpen = true;
+			return n;
 		}
-		b[off] = (byte) c;
-		int i = 1;
-		if (length > 1) {
-			off += i;
-			length -= off;
-			i += in.read(b, off, length);
+		int i = read_direct(ByteBuffer.wrap(b, off, length));
+		if (i > 0) {
+			position += i; // update position in file
+			count_read(i);
+			read_in_random_mode(i);
 		}
-		position += i; // update position in file
+		readSinceOpen = true;
 //		LOG.info("<AdamFS:INPUTSTREAM:read-b-off-length> read "+i+"bytes");
 		return i;
 	}
 
+	/**
+	 * Read into the remaining space of buf at the current position. With the
+	 * NIO transport and a direct buf the data goes from the socket channel
+	 * straight into buf.
+	 * @return the number of bytes read, or -1 at end of file
+	 */
+	public int read(ByteBuffer buf) throws IOException {
+		if (closed) {
+			throw new IOException("<AdamFS:INPUTSTREAM> stream is closed");
+		}
+		if (!buf.hasRemaining()) {
+			return 0;
+		}
+		int i;
+		if (cache != null) {
+			i = read_cached(position, buf);
+		} else if (parallel != null) {
+			i = parallel.read(buf);
+		} else if (readAhead != null) {
+			i = readAhead.read(buf);
+		} else {
+			i = read_direct(buf);
+		}
+		if (i > 0) {
+			position += i;
+			count_read(i);
+			if (readAhead == null && parallel == null && cache == null) {
+				read_in_random_mode(i);
+			}
+		}
+		readSinceOpen = true;
+		return i;
+	}
+
+	/**
+	 * A sequential read without streaming: one READ for the space in dst,
+	 * or in random mode for at least fs.adamfs.input.random.request.size
+	 * bytes, which serve the small reads that follow, e.g. a footer parsed
+	 * a field at a time.
+	 */
+	private int read_direct(ByteBuffer dst) throws IOException {
+		if (!random || dst.remaining() >= randomRequestSize) {
+			return read_range(stream_session(), position, dst);
+		}
+		if (position < randomBufferPos || position >= randomBufferPos + randomBufferLen) {
+			if (randomBuffer == null) {
+				randomBuffer = ByteBuffer.allocate(randomRequestSize);
+			}
+			randomBufferLen = 0;
+			randomBuffer.clear();
+			int n = read_range(stream_session(), position, randomBuffer);
+			if (n < 0) {
+				return -1;
+			}
+			randomBufferPos = position;
+			randomBufferLen = n;
+		}
+		int start = (int) (position - randomBufferPos);
+		int n = Math.min(dst.remaining(), randomBufferLen - start);
+		randomBuffer.limit(start + n);
+		randomBuffer.position(start);
+		dst.put(randomBuffer);
+		return n;
+	}
+
+	/**
+	 * Adaptive policy: n bytes were read up to position in random mode. Once
+	 * fs.adamfs.readahead.window bytes were read back to back the reads
+	 * look sequential again and streaming restarts; a smaller run would
+	 * restart it for every large random read.
+	 */
+	private void read_in_random_mode(int n) throws IOException {
+		if (!adaptive || !random) {
+			return;
+		}
+		sequentialRun += n;
+		if (sequentialRun >= readAheadWindow) {
+			LOG.debug("<AdamFS:INPUTSTREAM> " + path + " is read sequentially, streaming");
+			METRICS.inputPolicySwitched();
+			random = false;
+			start_streaming(position);
+		}
+	}
+
+	/**
+	 * Adaptive policy: the reader seeks from position to pos. A backward
+	 * seek, or a forward one past what streaming would have prefetched,
+	 * stops streaming until the reads look sequential again. Seeks before
+	 * the first read, e.g. to the start of a split, do not count.
+	 */
+	private void seek_adaptive(long pos) {
+		if (!adaptive || !readSinceOpen || pos == position) {
+			return;
+		}
+		sequentialRun = 0;
+		if (!random && (pos < position || pos - position > readAheadWindow)) {
+			LOG.debug("<AdamFS:INPUTSTREAM> " + path + " is read at random, exact-range reads");
+			METRICS.inputPolicySwitched();
+			random = true;
+			stop_streaming();
+		}
+	}
+
+	/** Start streaming at pos: parallel parts for large files, else readahead if it is on. */
+	private void start_streaming(long pos) throws IOException {
+		if (parallelConcurrency > 0) {
+			parallel = new AdamFSParallelReader(this, pool.getBufferPool(), executor,
+					fileLength, pos, parallelPartSize, parallelConcurrency);
+		} else if (readAheadEnabled) {
+			readAhead = new AdamFSReadAhead(this, stream_session(), pool.getBufferPool(),
+					fileLength, pos, readAheadRequestSize, readAheadWindow);
+		}
+	}
+
+	private void stop_streaming() {
+		if (readAhead != null) {
+			readAhead.stop(); // may break conn, stream_session() replaces it
+			readAhead = null;
+		}
+		if (parallel != null) {
+			parallel.stop();
+			parallel = null;
+		}
+	}
+
+	/**
+	 * Positional read. Leaves the stream position alone and runs on a read
+	 * session of its own, so it is safe to call from several threads at once
+	 * and does not disturb the sequential stream or its readahead.
+	 */
 	@Override
 	public int read(long position, byte[] buffer, int offset, int length)
 			throws IOException {
 //		LOG.info("<AdamFS:INPUTSTREAM:read-pos-buffer-offset-length>");
-		this.position = position;
-		return read(buffer, offset, length);
+		if (buffer == null) {
+			throw new NullPointerException();
+		} else if (offset < 0 || length < 0 || length > buffer.length - offset) {
+			throw new IndexOutOfBoundsException();
+		} else if (length == 0) {
+			return 0;
+		}
+		if (position < 0 || position >= fileLength) {
+			return -1;
+		}
+		if (cache != null) {
+			int n = read_cached(position, ByteBuffer.wrap(buffer, offset, length));
+			if (n > 0) {
+				count_read(n);
+			}
+			return n;
+		}
+		AdamFSConnection session = borrow_pread_session();
+		try {
+			int n = read_range(session, position, ByteBuffer.wrap(buffer, offset, length));
+			if (n > 0) {
+				count_read(n);
+			}
+			return n;
+		} finally {
+			release_pread_session(session);
+		}
 	}
 
 	@Override
 	public void readFully(long position, byte[] buffer, int offset, int length)
 			throws IOException {
+		if (buffer == null) {
+			throw new NullPointerException();
+		} else if (offset < 0 || length < 0 || length > buffer.length - offset) {
+			throw new IndexOutOfBoundsException();
+		} else if (length == 0) {
+			return;
+		}
+		if (position < 0 || position + length > fileLength) {
+			throw new EOFException("<AdamFS:INPUTSTREAM> end of file reached before reading fully");
+		}
+		if (cache != null) {
+			ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+			while (dst.hasRemaining()) {
+				if (read_cached(position + dst.position() - offset, dst) < 0) {
+					throw new EOFException("<AdamFS:INPUTSTREAM> end of file reached before reading fully");
+				}
+			}
+			count_read(length);
+			return;
+		}
+		AdamFSConnection session = borrow_pread_session();
+		try {
+			int n = 0;
+			while (n < length) {
+				int i = read_range(session, position + n, ByteBuffer.wrap(buffer, offset + n, length - n));
+				if (i < 0) {
+					throw new EOFException("<AdamFS:INPUTSTREAM> end of file reached before reading fully");
+				}
+				n += i;
+			}
+			count_read(n);
+		} finally {
+			release_pread_session(session);
+		}
 	}
 
 	@Override
 	public void readFully(long position, byte[] buffer) throws IOException {
 //		LOG.info("<AdamFS:INPUTSTREAM:readFully-pos-buffer>");
+		readFully(position, buffer, 0, buffer.length);
+	}
+
+	/**
+	 * Start reading all ranges, see {@link AdamFSVectoredRead}. Returns
+	 * right away; the ranges' futures complete as their data arrives. Like a
+	 * positional read it leaves the stream position alone.
+	 */
+	public void readVectored(List<? extends AdamFSFileRange> ranges) throws IOException {
+		if (closed) {
+			throw new IOException("<AdamFS:INPUTSTREAM> stream is closed");
+		}
+		for (AdamFSFileRange range : ranges) {
+			range.reset();
+		}
+		AdamFSVectoredRead read = new AdamFSVectoredRead(this, ranges, fileLength,
+				vectoredGap, vectoredMaxMerged, vectoredWindow);
+		if (read.getReadCount() == 0) {
+			return;
+		}
+		try {
+			executor.execute(read);
+		} catch (RejectedExecutionException e) {
+			throw new IOException("<AdamFS:INPUTSTREAM> file system is closed");
+		}
+	}
+
+	/**
+	 * One READ exchange on a connection with an open read session, into the
+	 * remaining space of dst. The server answers with exactly
+	 * min(dst.remaining(), bytes left) bytes, deflated if the session is
+	 * compressed; all of them must be consumed or the next reply on the
+	 * connection would be garbage.
+	 *
+	 * A reply that is not in fs.adamfs.read.hedge.delay ms after the
+	 * request is raced by an {@link AdamFSHedgedRead}. A read that
+	 * fails, e.g. after fs.adamfs.read.timeout, is tried again on another
+	 * session up to fs.adamfs.read.retries times; c is then left broken,
+	 * for its owner to replace.
+	 * @return the number of bytes read, or -1 at end of file
+	 */
+	int read_range(AdamFSConnection c, long pos, ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		IOException failure;
+		try {
+			return read_range_hedged(c, pos, dst);
+		} catch (IOException e) {
+			failure = e;
+		}
+		for (int i = 0; i < readRetries && !closed && is_retriable(failure); i++) {
+			LOG.debug("<AdamFS:INPUTSTREAM> read of " + path + " at " + pos
+					+ " failed, trying another connection: " + failure);
+			METRICS.readFailedOver();
+			dst.position(start);
+			AdamFSConnection session = borrow_pread_session();
+			try {
+				return read_range_hedged(session, pos, dst);
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				release_pread_session(session);
+			}
+		}
+		throw failure;
+	}
+
+	/** One READ exchange, without hedging or retries. */
+	int read_range_plain(AdamFSConnection c, long pos, ByteBuffer dst) throws IOException {
+		int expected = (int) Math.min(dst.remaining(), fileLength - pos);
+		if (expected <= 0) {
+			return -1;
+		}
+		long started = System.nanoTime();
+		// send request command to fsapi-server
+		// prompt read bytes
+		request_range(c, pos, expected); // *** RP6 ***
+		// immediately receive data, *** RP8 ***
+		return receive_range(c, pos, expected, dst, started);
+	}
+
+	private int read_range_hedged(AdamFSConnection c, long pos, ByteBuffer dst)
+			throws IOException {
+		int expected = (int) Math.min(dst.remaining(), fileLength - pos);
+		if (expected <= 0) {
+			return -1;
+		}
+		long started = System.nanoTime();
+		request_range(c, pos, expected);
+		AdamFSHedgedRead hedge = hedge(c, pos, expected);
+		if (hedge == null) {
+			return receive_range(c, pos, expected, dst, started);
+		}
+		int start = dst.position();
+		try {
+			// short if the hedge won and closed c under us
+			int n = receive_range(c, pos, expected, dst, started);
+			if (n == expected && hedge.primaryDone()) {
+				return n;
+			}
+		} catch (IOException e) {
+			// the hedge may still make it
+		}
+		c.markBroken();
+		ByteBuffer data = hedge.await();
+		dst.position(start);
+		if (!data.hasRemaining()) {
+			return -1;
+		}
+		int n = data.remaining();
+		dst.put(data);
+		return n;
+	}
+
+	/**
+	 * Have the READ of len bytes at pos just sent on c sent again on
+	 * another session if its reply is not in within
+	 * fs.adamfs.read.hedge.delay ms. Returns the race, or null with hedged
+	 * reads off.
+	 */
+	AdamFSHedgedRead hedge(AdamFSConnection c, long pos, int len) {
+		if (hedgeDelay <= 0 || closed) {
+			return null;
+		}
+		return AdamFSHedgedRead.schedule(this, c, executor, pos, len, hedgeDelay);
+	}
+
+	/** True unless the read failed because the thread was interrupted. */
+	static boolean is_retriable(IOException e) {
+		return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+	}
+
+	int getReadRetries() {
+		return readRetries;
+	}
+
+	long getFileLength() {
+		return fileLength;
+	}
+
+	/**
+	 * Send a READ of len bytes at pos; its reply is read with
+	 * {@link #receive_range}. Replies come back in request order, so several
+	 * can be in flight on one session.
+	 */
+	void request_range(AdamFSConnection c, long pos, int len) throws IOException {
+		try {
+			c.send(new AdamFSRequest(AdamFSProtocol.OP_READ).addLong(pos).addLong(len));
+		} catch (IOException e) {
+			c.markBroken();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the reply to a READ of expected bytes at pos, sent at started
+	 * (System.nanoTime), into dst, which has room for at least expected.
+	 * Short only if the file shrank; a server that hangs up is an
+	 * EOFException, not end of file, and leaves c broken.
+	 * @return the number of bytes read, or -1 at end of file
+	 */
+	int receive_range(AdamFSConnection c, long pos, int expected, ByteBuffer dst, long started)
+			throws IOException {
+		int start = dst.position();
+		int limit = dst.limit();
+		boolean ok = false;
+		try {
+			if (c.isBinary()) {
+				AdamFSResponse header = c.receiveHeader();
+				if (header == null) {
+					c.markBroken();
+					throw new EOFException("<AdamFS:INPUTSTREAM> connection closed by api-server at "
+							+ pos);
+				}
+				AdamFSCompression codec = c.getCompression();
+				if (!header.isSuccess()
+						|| (codec == null && header.getDataLength() > expected)) {
+					c.markBroken(); // can't tell what else is on the wire
+					throw new IOException("<AdamFS:INPUTSTREAM> read failed at " + pos);
+				}
+				if (header.getDataLength() == 0) {
+					ok = true;
+					return -1;
+				}
+				if (codec != null) {
+					dst.limit(start + expected);
+					if (codec.inflate(c, header.getDataLength(), dst) == 0) {
+						return -1;
+					}
+					ok = true;
+					return dst.position() - start;
+				}
+				expected = header.getDataLength(); // short at end of file
+			}
+			dst.limit(start + expected);
+			c.readFully(dst);
+			ok = true;
+		} catch (EOFException e) {
+			c.markBroken();
+			throw new EOFException("<AdamFS:INPUTSTREAM> connection closed mid-reply at " + pos);
+		} catch (IOException e) {
+			c.markBroken();
+			throw e;
+		} finally {
+			dst.limit(limit);
+			METRICS.replyReceived(AdamFSProtocol.OP_READ, started, ok);
+		}
+		return dst.position() - start;
+	}
+
+	/**
+	 * Copy bytes at pos out of the cached block that holds them, into the
+	 * remaining space of dst; a block that is not cached is loaded first.
+	 * @return the number of bytes copied, or -1 at end of file
+	 */
+	private int read_cached(long pos, ByteBuffer dst) throws IOException {
+		if (pos >= fileLength) {
+			return -1;
+		}
+		long start = pos - pos % cache.getBlockSize();
+		AdamFSBlockCache.Block block = cache.acquire(cacheName, modificationTime, start);
+		if (block == null) { // every slot is being read, go around the cache
+			AdamFSConnection session = borrow_pread_session();
+			try {
+				return read_range(session, pos, dst);
+			} finally {
+				release_pread_session(session);
+			}
+		}
+		try {
+			ByteBuffer buf = cache.getBuffer(block);
+			if (!block.loaded) { // ours to load
+				boolean ok = false;
+				try {
+					buf.limit((int) Math.min(buf.limit(), fileLength - start));
+					AdamFSConnection session = borrow_pread_session();
+					try {
+						while (buf.hasRemaining()) {
+							if (read_range(session, start + buf.position(), buf) < 0) {
+								throw new EOFException("<AdamFS:INPUTSTREAM> " + path
+										+ " is shorter than its status says");
+							}
+						}
+					} finally {
+						release_pread_session(session);
+					}
+					ok = true;
+				} finally {
+					if (!ok) {
+						cache.failed(block);
+						block = null;
+					}
+				}
+				cache.loaded(block, buf.position());
+				buf = cache.getBuffer(block);
+			}
+			buf.position((int) (pos - start));
+			int n = Math.min(dst.remaining(), buf.remaining());
+			buf.limit(buf.position() + n);
+			dst.put(buf);
+			return n;
+		} finally {
+			if (block != null) {
+				cache.release(block);
+			}
+		}
+	}
+
+	/** An idle read session on this file, or a newly opened one. */
+	AdamFSConnection borrow_pread_session() throws IOException {
+		if (closed) {
+			throw new IOException("<AdamFS:INPUTSTREAM> stream is closed");
+		}
+		synchronized (preadSessions) {
+			if (!preadSessions.isEmpty()) {
+				return preadSessions.removeFirst();
+			}
+		}
+		return new_session(pool.borrowForStream());
+	}
+
+	/**
+	 * Open a read session on the file on session. A pooled connection that
+	 * turns out stale is swapped for a brand new one.
+	 */
+	private AdamFSConnection new_session(AdamFSConnection session) throws IOException {
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_OPEN).addString(path);
+		if (compression != null) {
+			request.addString(compression.getName());
+		}
+		AdamFSResponse response = open_session(session, request);
+		if (response == null) { // stale pooled connection, retry on a new one
+			pool.invalidate(session);
+			session = pool.borrowFresh();
+			response = open_session(session, request);
+		}
+		if (response == null) {
+			pool.invalidate(session);
+			throw new IOException("<AdamFS:INPUTSTREAM> api-server closed the connection");
+		}
+		if (!response.isSuccess()) {
+			pool.release(session);
+			throw new IOException("<AdamFS:INPUTSTREAM> file system failed to open " + path);
+		}
+		if (compression != null) {
+			response.nextLong();
+			if (response.hasMore() && compression.getName().equals(response.nextString())) {
+				session.setCompression(compression.duplicate());
+			}
+		}
+		return session;
+	}
+
+	private AdamFSResponse open_session(AdamFSConnection c, AdamFSRequest request) {
+		try {
+			c.setReadTimeout(readTimeout);
+			AdamFSResponse response = c.call(request);
+			if (response == null) {
+				c.markBroken();
+			}
+			return response;
+		} catch (IOException e) {
+			c.markBroken();
+			return null;
+		}
+	}
+
+	/** Keep the session for the next positional read, or end it. */
+	void release_pread_session(AdamFSConnection session) {
+		if (!session.isBroken() && !closed) {
+			synchronized (preadSessions) {
+				if (preadSessions.size() < maxPreadSessions) {
+					preadSessions.addFirst(session);
+					return;
+				}
+			}
+		}
+		end_session(session);
+	}
+
+	/** Tell the api-server the read session is over and return the connection. */
+	private void end_session(AdamFSConnection c) {
+		if (!c.isBroken()) {
+			// end the read session so the api-server goes back to reading
+			// commands and the connection can be reused from the pool
+			try {
+				c.send(new AdamFSRequest(AdamFSProtocol.OP_END_STREAM));
+				c.setReadTimeout(0); // metadata calls may take longer
+			} catch (IOException e) {
+				c.markBroken();
+			}
+		}
+		pool.release(c);
 	}
 
 	@Override
 	public void seek(long pos) throws IOException {
 //		LOG.info("<AdamFS:INPUTSTREAM:seek> to position: " + pos);
+		seek_adaptive(pos);
+		if (readAhead != null) {
+			readAhead.seek(pos);
+		}
+		if (parallel != null) {
+			parallel.seek(pos);
+		}
 		position = pos;
 	}
 
@@ -112,12 +820,118 @@ class AdamFSInputStream extends FSInputStream {
 		return position;
 	}
 
+	/** Bytes this stream has returned to readers, positional reads included. */
+	public synchronized long getBytesRead() {
+		return bytesRead;
+	}
+
+	void count_read(int n) {
+		synchronized (this) {
+			bytesRead += n;
+		}
+		METRICS.bytesRead(n);
+		if (statistics != null) {
+			statistics.incrementBytesRead(n);
+		}
+	}
+
+	/** Reads served from the readahead buffer without waiting. */
+	public long getReadAheadHits() {
+		return readAhead == null ? 0 : readAhead.getHits();
+	}
+
+	/** Reads that had to wait for the api-server to deliver data. */
+	public long getReadAheadMisses() {
+		return readAhead == null ? 0 : readAhead.getMisses();
+	}
+
+	/**
+	 * End the read session and hand the connection back to the pool. If the
+	 * connection broke during a read it is closed instead.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (readAhead != null) {
+			readAhead.stop();
+			//LOG.info("<AdamFS:INPUTSTREAM> readahead hits: " + readAhead.getHits()
+			//		+ ", misses: " + readAhead.getMisses());
+		}
+		if (parallel != null) {
+			parallel.stop();
+		}
+		AdamFSConnection c;
+		synchronized (this) { // not while the readahead is replacing it
+			c = conn;
+		}
+		if (c != null) {
+			end_session(c);
+		}
+		synchronized (preadSessions) {
+			while (!preadSessions.isEmpty()) {
+				end_session(preadSessions.removeFirst());
+			}
+		}
+	}
+
 	/**
-	 * Most likely will not need to use this function
+	 * A file lives on one api-server, so the new source is a new connection
+	 * to it, which a server with several event loops or threads serves on
+	 * another one: the stream's session and its readahead start over on a
+	 * fresh connection at targetPos, and idle positional read sessions are
+	 * dropped. False in cached mode, which reads through the block cache.
 	 */
 	@Override
-	public boolean seekToNewSource(long targetPos) throws IOException {
-		return false;
+	public synchronized boolean seekToNewSource(long targetPos) throws IOException {
+		if (closed || cache != null) {
+			return false;
+		}
+		synchronized (preadSessions) {
+			while (!preadSessions.isEmpty()) {
+				end_session(preadSessions.removeFirst());
+			}
+		}
+		if (conn != null) {
+			if (readAhead != null) {
+				readAhead.stop();
+			}
+			AdamFSConnection old = conn;
+			conn = new_session(pool.borrowFresh());
+			end_session(old);
+			if (readAhead != null) {
+				readAhead = new AdamFSReadAhead(this, conn, pool.getBufferPool(), fileLength,
+						targetPos, readAheadRequestSize, readAheadWindow);
+			}
+		}
+		METRICS.readFailedOver();
+		seek(targetPos);
+		return true;
+	}
+
+	/** The stream's own read session; a new one if a read broke it. */
+	private AdamFSConnection stream_session() throws IOException {
+		if (conn.isBroken()) {
+			replace_session(conn);
+		}
+		return conn;
+	}
+
+	/**
+	 * Give up on the stream's read session old, e.g. after a read on it
+	 * failed, and go on with a new one on a new connection.
+	 */
+	synchronized AdamFSConnection replace_session(AdamFSConnection old) throws IOException {
+		if (closed || conn != old) { // closed, or replaced by seekToNewSource
+			throw new IOException("<AdamFS:INPUTSTREAM> stream is closed");
+		}
+		conn = new_session(pool.borrowFresh());
+		old.markBroken();
+		pool.release(old);
+		METRICS.readFailedOver();
+		return conn;
 	}
 
 	private Path makeAbsolute(Path f) {
@@ -0,0 +1,123 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+
+/**
+ * Bounded LRU cache of BLOCK_LOCATIONS results, keyed by absolute path.
+ *
+ * The whole file's block list is fetched once and the ranges asked for by
+ * getFileBlockLocations() are cut out of it locally, so computing splits
+ * for a file costs one round trip no matter how many ranges are asked for.
+ * An entry is only used while the file still has the length and mod time
+ * it had when the locations were fetched, and for at most
+ * fs.adamfs.location.cache.ttl ms, since blocks can move between hosts.
+ */
+class AdamFSLocationCache {
+
+	public static final String LOCATION_CACHE_SIZE_KEY = "fs.adamfs.location.cache.size";
+	public static final int LOCATION_CACHE_SIZE_DEFAULT = 1000;
+	public static final String LOCATION_CACHE_TTL_KEY = "fs.adamfs.location.cache.ttl";
+	public static final long LOCATION_CACHE_TTL_DEFAULT = 60000; // ms
+
+	private static class CachedLocations {
+		final long length;
+		final long modTime;
+		final long expires;
+		final BlockLocation[] blocks;
+
+		CachedLocations(long length, long modTime, long expires, BlockLocation[] blocks) {
+			this.length = length;
+			this.modTime = modTime;
+			this.expires = expires;
+			this.blocks = blocks;
+		}
+	}
+
+	private final long ttl;
+	private final LinkedHashMap<String, CachedLocations> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	AdamFSLocationCache(Configuration conf) {
+		final int maxSize = Math.max(1, conf.getInt(LOCATION_CACHE_SIZE_KEY,
+				LOCATION_CACHE_SIZE_DEFAULT));
+		this.ttl = conf.getLong(LOCATION_CACHE_TTL_KEY, LOCATION_CACHE_TTL_DEFAULT);
+		this.entries = new LinkedHashMap<String, CachedLocations>(
+				Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedLocations> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return every block of the file, or null if nothing usable is cached
+	 *         for this version of it
+	 */
+	public synchronized BlockLocation[] get(String path, FileStatus file) {
+		CachedLocations entry = entries.get(path);
+		if (entry == null || entry.expires <= System.currentTimeMillis()
+				|| entry.length != file.getLen()
+				|| entry.modTime != file.getModificationTime()) {
+			if (entry != null) {
+				entries.remove(path);
+			}
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.blocks;
+	}
+
+	public synchronized void put(String path, FileStatus file, BlockLocation[] blocks) {
+		if (ttl > 0) {
+			entries.put(path, new CachedLocations(file.getLen(), file.getModificationTime(),
+					System.currentTimeMillis() + ttl, blocks));
+		}
+	}
+
+	/** Forget a path and everything under it. */
+	public synchronized void invalidateTree(String path) {
+		entries.remove(path);
+		String prefix = path.endsWith("/") ? path : path + "/";
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** The blocks of a whole-file list that overlap [start, start + len). */
+	static BlockLocation[] overlapping(BlockLocation[] blocks, long start, long len) {
+		long end = start + len;
+		List<BlockLocation> ret = new ArrayList<BlockLocation>();
+		for (BlockLocation block : blocks) {
+			long blockEnd = block.getOffset() + block.getLength();
+			if (block.getOffset() < end && blockEnd > start) {
+				ret.add(block);
+			}
+		}
+		return ret.toArray(new BlockLocation[ret.size()]);
+	}
+}
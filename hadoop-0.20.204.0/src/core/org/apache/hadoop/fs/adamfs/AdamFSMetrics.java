@@ -0,0 +1,404 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics2.MetricsBuilder;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+
+/**
+ * Client side metrics for every adamfs file system in the JVM, published to
+ * the Hadoop metrics system as source "AdamFS" (context "adamfs") unless
+ * fs.adamfs.metrics.enabled is false.
+ *
+ * Per op code: requests sent, failed replies, and reply latency as p50, p99
+ * and max in microseconds over the last metrics period. Also bytes read and
+ * written, streams opened and created, connections opened versus reused
+ * from the pool, the round trips each open() and create() took, the bytes
+ * wire compression saved, block cache hits, misses and evictions, and how
+ * often reads were hedged, how often the hedge won, how often a read
+ * failed over to a new connection and how often an adaptive stream
+ * switched between streaming and random reads.
+ *
+ * Recording is a few atomic adds on preallocated arrays and never
+ * allocates, so it stays on all the time. Latencies go into log-linear
+ * buckets (four per power of two, so percentiles are within 25%); the
+ * metrics thread diffs them against the previous period when it snapshots.
+ *
+ * Bytes read and written also go to the file system's Statistics, which is
+ * what shows up as job counters.
+ */
+public class AdamFSMetrics implements MetricsSource {
+	public static final Log LOG = LogFactory.getLog(AdamFSMetrics.class);
+
+	public static final String METRICS_ENABLED_KEY = "fs.adamfs.metrics.enabled";
+	public static final boolean METRICS_ENABLED_DEFAULT = true;
+
+	private static final String SOURCE_NAME = "AdamFS";
+	private static final String CONTEXT = "adamfs";
+
+	// round trips started by the current thread, for per-call counts
+	private static final ThreadLocal<long[]> THREAD_ROUND_TRIPS = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private static final int OPCODES = AdamFSProtocol.MAX_OPCODE + 1;
+	// latency buckets: exact below 16us, then 4 per power of two up to 2^63
+	private static final int LINEAR = 16;
+	private static final int BUCKETS = LINEAR + (64 - 4) * 4;
+
+	private static final AdamFSMetrics INSTANCE = new AdamFSMetrics(); // after OPCODES
+	private static boolean registered = false;
+
+	private final AtomicLongArray requests = new AtomicLongArray(OPCODES);
+	private final AtomicLongArray errors = new AtomicLongArray(OPCODES);
+	private final AtomicLongArray latency = new AtomicLongArray(OPCODES * BUCKETS);
+	private final AtomicLongArray maxLatency = new AtomicLongArray(OPCODES); // this period
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong streamsOpened = new AtomicLong();
+	private final AtomicLong streamsCreated = new AtomicLong();
+	private final AtomicLong openRoundTrips = new AtomicLong();
+	private final AtomicLong createRoundTrips = new AtomicLong();
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	private final AtomicLong connectionsReused = new AtomicLong();
+	private final AtomicLong compressionSaved = new AtomicLong();
+	private final AtomicLong blockCacheHits = new AtomicLong();
+	private final AtomicLong blockCacheMisses = new AtomicLong();
+	private final AtomicLong blockCacheEvictions = new AtomicLong();
+	private final AtomicLong hedgedReads = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+	private final AtomicLong readFailovers = new AtomicLong();
+	private final AtomicLong policySwitches = new AtomicLong();
+
+	// owned by the metrics thread
+	private final long[] lastLatency = new long[OPCODES * BUCKETS];
+	private final long[] period = new long[BUCKETS];
+
+	// metric names, built once
+	private final String[] requestNames = new String[OPCODES];
+	private final String[] errorNames = new String[OPCODES];
+	private final String[] p50Names = new String[OPCODES];
+	private final String[] p99Names = new String[OPCODES];
+	private final String[] maxNames = new String[OPCODES];
+
+	private AdamFSMetrics() {
+		for (int op = 0; op < OPCODES; op++) {
+			String name = AdamFSProtocol.opcodeName(op);
+			requestNames[op] = name + "Requests";
+			errorNames[op] = name + "Errors";
+			p50Names[op] = name + "LatencyP50Us";
+			p99Names[op] = name + "LatencyP99Us";
+			maxNames[op] = name + "LatencyMaxUs";
+		}
+	}
+
+	/** The JVM wide instance. */
+	public static AdamFSMetrics get() {
+		return INSTANCE;
+	}
+
+	/** Publish the metrics, once per JVM. */
+	static synchronized void register() {
+		if (registered) {
+			return;
+		}
+		registered = true;
+		try {
+			DefaultMetricsSystem.registerSource(SOURCE_NAME, "adamfs client", INSTANCE);
+		} catch (MetricsException e) {
+			LOG.warn("<AdamFS:METRICS> could not register metrics source", e);
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Recording
+	// ---------------------------------------------------------------
+
+	/** A request went out. Counts as a round trip of the calling thread. */
+	void requestSent(int opcode) {
+		if (opcode > 0 && opcode < OPCODES) {
+			requests.incrementAndGet(opcode);
+			THREAD_ROUND_TRIPS.get()[0]++;
+		}
+	}
+
+	/**
+	 * The reply to a request sent at startNanos (System.nanoTime) arrived, or
+	 * failed to if success is false.
+	 */
+	void replyReceived(int opcode, long startNanos, boolean success) {
+		if (opcode < 0 || opcode >= OPCODES) {
+			return;
+		}
+		if (!success) {
+			errors.incrementAndGet(opcode);
+		}
+		long micros = Math.max(0, (System.nanoTime() - startNanos) / 1000);
+		latency.incrementAndGet(opcode * BUCKETS + bucket(micros));
+		while (true) {
+			long max = maxLatency.get(opcode);
+			if (micros <= max || maxLatency.compareAndSet(opcode, max, micros)) {
+				break;
+			}
+		}
+	}
+
+	void bytesRead(long n) {
+		bytesRead.addAndGet(n);
+	}
+
+	void bytesWritten(long n) {
+		bytesWritten.addAndGet(n);
+	}
+
+	void connectionOpened() {
+		connectionsOpened.incrementAndGet();
+	}
+
+	void connectionReused() {
+		connectionsReused.incrementAndGet();
+	}
+
+	/** A compressed frame was n bytes shorter than its data, negative if longer. */
+	void compressionSaved(long n) {
+		compressionSaved.addAndGet(n);
+	}
+
+	void blockCacheHit() {
+		blockCacheHits.incrementAndGet();
+	}
+
+	void blockCacheMiss() {
+		blockCacheMisses.incrementAndGet();
+	}
+
+	void blockCacheEviction() {
+		blockCacheEvictions.incrementAndGet();
+	}
+
+	/** A read was late and sent again on a second connection. */
+	void readHedged() {
+		hedgedReads.incrementAndGet();
+	}
+
+	/** The second request of a hedged read was answered first. */
+	void hedgeWon() {
+		hedgeWins.incrementAndGet();
+	}
+
+	/** A read session was given up on and replaced by a new connection. */
+	void readFailedOver() {
+		readFailovers.incrementAndGet();
+	}
+
+	/** An adaptive stream switched between streaming and random reads. */
+	void inputPolicySwitched() {
+		policySwitches.incrementAndGet();
+	}
+
+	/** Round trips the current thread has started so far. */
+	long threadRoundTrips() {
+		return THREAD_ROUND_TRIPS.get()[0];
+	}
+
+	/** An open() finished, roundTrips after it started. */
+	void streamOpened(long roundTrips) {
+		streamsOpened.incrementAndGet();
+		openRoundTrips.addAndGet(roundTrips);
+	}
+
+	/** A create() finished, roundTrips after it started. */
+	void streamCreated(long roundTrips) {
+		streamsCreated.incrementAndGet();
+		createRoundTrips.addAndGet(roundTrips);
+	}
+
+	// ---------------------------------------------------------------
+	// Reading
+	// ---------------------------------------------------------------
+
+	public long getRequests(int opcode) {
+		return requests.get(opcode);
+	}
+
+	public long getErrors(int opcode) {
+		return errors.get(opcode);
+	}
+
+	/**
+	 * Latency percentile (0 to 100) of all replies to opcode since the JVM
+	 * started, in microseconds; 0 if there were none.
+	 */
+	public long getLatencyPercentile(int opcode, double percentile) {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = latency.get(opcode * BUCKETS + i);
+		}
+		return percentile(counts, percentile);
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	public long getConnectionsReused() {
+		return connectionsReused.get();
+	}
+
+	/** Bytes compression kept off the wire, both directions. */
+	public long getCompressionSaved() {
+		return compressionSaved.get();
+	}
+
+	public long getBlockCacheHits() {
+		return blockCacheHits.get();
+	}
+
+	public long getBlockCacheMisses() {
+		return blockCacheMisses.get();
+	}
+
+	public long getBlockCacheEvictions() {
+		return blockCacheEvictions.get();
+	}
+
+	public long getHedgedReads() {
+		return hedgedReads.get();
+	}
+
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	/** Share of hedged reads the hedge won, 0 before the first. */
+	public double getHedgeWinRate() {
+		long n = hedgedReads.get();
+		return n == 0 ? 0 : hedgeWins.get() / (double) n;
+	}
+
+	public long getReadFailovers() {
+		return readFailovers.get();
+	}
+
+	public long getInputPolicySwitches() {
+		return policySwitches.get();
+	}
+
+	/** Average round trips per open(), 0 before the first. */
+	public double getRoundTripsPerOpen() {
+		long n = streamsOpened.get();
+		return n == 0 ? 0 : openRoundTrips.get() / (double) n;
+	}
+
+	/** Average round trips per create(), 0 before the first. */
+	public double getRoundTripsPerCreate() {
+		long n = streamsCreated.get();
+		return n == 0 ? 0 : createRoundTrips.get() / (double) n;
+	}
+
+	public synchronized void getMetrics(MetricsBuilder builder, boolean all) {
+		MetricsRecordBuilder rb = builder.addRecord(SOURCE_NAME).setContext(CONTEXT);
+		rb.addCounter("BytesRead", "bytes read from api-servers", bytesRead.get());
+		rb.addCounter("BytesWritten", "bytes written to api-servers", bytesWritten.get());
+		rb.addCounter("StreamsOpened", "files opened for reading", streamsOpened.get());
+		rb.addCounter("StreamsCreated", "files opened for writing", streamsCreated.get());
+		rb.addGauge("RoundTripsPerOpen", "average round trips per open", getRoundTripsPerOpen());
+		rb.addGauge("RoundTripsPerCreate", "average round trips per create", getRoundTripsPerCreate());
+		rb.addCounter("ConnectionsOpened", "connections opened", connectionsOpened.get());
+		rb.addCounter("ConnectionsReused", "pooled connections reused", connectionsReused.get());
+		rb.addCounter("CompressionBytesSaved", "bytes kept off the wire by compression",
+				compressionSaved.get());
+		rb.addCounter("BlockCacheHits", "reads served from the block cache", blockCacheHits.get());
+		rb.addCounter("BlockCacheMisses", "blocks loaded into the block cache", blockCacheMisses.get());
+		rb.addCounter("BlockCacheEvictions", "blocks evicted from the block cache",
+				blockCacheEvictions.get());
+		rb.addCounter("HedgedReads", "reads sent again on a second connection", hedgedReads.get());
+		rb.addCounter("HedgeWins", "hedged reads the second connection answered first",
+				hedgeWins.get());
+		rb.addGauge("HedgeWinRate", "share of hedged reads won by the hedge", getHedgeWinRate());
+		rb.addCounter("ReadFailovers", "read sessions replaced by a new connection",
+				readFailovers.get());
+		rb.addCounter("InputPolicySwitches", "streams switched between streaming and random reads",
+				policySwitches.get());
+		for (int op = 0; op < OPCODES; op++) {
+			long sent = requests.get(op);
+			if (sent == 0 && !all) {
+				continue;
+			}
+			rb.addCounter(requestNames[op], "requests sent", sent);
+			rb.addCounter(errorNames[op], "failed requests", errors.get(op));
+			long replies = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				long now = latency.get(op * BUCKETS + i);
+				period[i] = now - lastLatency[op * BUCKETS + i];
+				lastLatency[op * BUCKETS + i] = now;
+				replies += period[i];
+			}
+			long max = maxLatency.getAndSet(op, 0);
+			if (replies > 0 || all) {
+				rb.addGauge(p50Names[op], "median latency this period", percentile(period, 50));
+				rb.addGauge(p99Names[op], "99th percentile latency this period", percentile(period, 99));
+				rb.addGauge(maxNames[op], "max latency this period", max);
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Buckets
+	// ---------------------------------------------------------------
+
+	private static int bucket(long micros) {
+		if (micros < LINEAR) {
+			return (int) micros;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(micros); // >= 4
+		int sub = (int) (micros >>> (exp - 2)) & 3;
+		return LINEAR + (exp - 4) * 4 + sub;
+	}
+
+	/** Largest value that falls in bucket i. */
+	private static long bucketLimit(int i) {
+		if (i < LINEAR) {
+			return i;
+		}
+		int exp = (i - LINEAR) / 4 + 4;
+		int sub = (i - LINEAR) % 4;
+		return ((4L + sub + 1) << (exp - 2)) - 1;
+	}
+
+	private static long percentile(long[] counts, double percentile) {
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, rank)) {
+				return bucketLimit(i);
+			}
+		}
+		return bucketLimit(counts.length - 1);
+	}
+}
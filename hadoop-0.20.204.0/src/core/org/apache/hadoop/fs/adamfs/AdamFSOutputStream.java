@@ -1,19 +1,292 @@
 package org.apache.hadoop.fs.adamfs;
 
-import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Syncable;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Write side of a file on the api-server. Works in one of two modes:
+ *
+ * Raw (SETUP_WRITE): the original protocol, file bytes go down the socket
+ * as they are and the server treats end of stream as end of file. There is
+ * no way to tell a complete file from a truncated one.
+ *
+ * Chunked (WRITE_OPEN, servers with the CWRITE capability, or WRITE_APPEND
+ * with APPEND, which starts at the end of the file): writes are
+ * collected into fs.adamfs.write.chunk.size chunks, each sent as a
+ * WRITE_CHUNK frame with its offset and CRC32. The server acks every chunk
+ * once it has checked and stored it; a background thread collects the acks
+ * while up to fs.adamfs.write.window chunks are in flight. close() sends
+ * WRITE_CLOSE and only returns once the server has acked it, i.e. once the
+ * whole file is durable; any failed or missing ack makes close() (or the
+ * next write) throw. sync() pushes the partial chunk and waits for all
+ * outstanding acks. The connection goes back to the pool afterwards.
+ * Servers with DEFLATE get the chunks compressed, see
+ * {@link AdamFSCompression}.
+ */
+public class AdamFSOutputStream extends OutputStream implements Syncable {
+	public static final Log LOG = LogFactory.getLog(AdamFSOutputStream.class);
+
+	public static final String WRITE_CHUNK_SIZE_KEY = "fs.adamfs.write.chunk.size";
+	public static final int WRITE_CHUNK_SIZE_DEFAULT = 64 * 1024;
+	public static final String WRITE_WINDOW_KEY = "fs.adamfs.write.window";
+	public static final int WRITE_WINDOW_DEFAULT = 16; // chunks
+
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+
+	// a request sent whose ack has not arrived yet
+	private static class Unacked {
+		final int requestId;
+		final int opcode;
+		final long offset;
+		final long sent = System.nanoTime();
+
+		Unacked(int requestId, int opcode, long offset) {
+			this.requestId = requestId;
+			this.opcode = opcode;
+			this.offset = offset;
+		}
+	}
 
-public class AdamFSOutputStream extends DataOutputStream {
-	// This class is used to wrap a SocketOutputStream in case
-	// there is extra functionality needed
 	private String path;
+	private AdamFSConnectionPool pool;
+	private AdamFSConnection conn;
+	private AdamFSStatusCache statusCache;
+	private boolean closed = false;
+
+	private final boolean chunked;
+	private final OutputStream rawOut; // raw mode only
+	private final byte[] chunk; // chunked mode only
+	private final AdamFSCompression compression; // null unless the server has DEFLATE
+	private int chunkLen = 0;
+	private long offset; // file offset of the next chunk
+	private final CRC32 crc = new CRC32();
+	private final int window;
+	private long bytesWritten = 0;
 
-	protected AdamFSOutputStream(OutputStream out, String f) throws IOException, SecurityException {
-		super(out);
+	// guarded by unacked
+	private final LinkedList<Unacked> unacked = new LinkedList<Unacked>();
+	private IOException ackError = null;
+	private boolean finished = false;
+	private Daemon ackReader = null;
+
+	/**
+	 * @param chunked true if the connection was set up with WRITE_OPEN or
+	 *        WRITE_APPEND, false for a raw SETUP_WRITE session
+	 * @param offset where the first byte goes in the file: 0, or its length
+	 *        for WRITE_APPEND
+	 * @param compression codec for the chunks, null if the server has no
+	 *        DEFLATE; chunked mode only
+	 */
+	protected AdamFSOutputStream(AdamFSConnectionPool pool, AdamFSConnection conn,
+			String f, AdamFSStatusCache statusCache, boolean chunked, long offset,
+			AdamFSCompression compression, Configuration conf)
+			throws IOException, SecurityException {
+		this.pool = pool;
+		this.conn = conn;
+		this.statusCache = statusCache;
+		this.chunked = chunked;
+		this.offset = offset;
+		this.compression = compression;
 		setPath(f);
-		// TODO Auto-generated constructor stub
+		int chunkSize = Math.max(1, conf.getInt(WRITE_CHUNK_SIZE_KEY, WRITE_CHUNK_SIZE_DEFAULT));
+		if (chunked) {
+			rawOut = null;
+			chunk = new byte[chunkSize];
+			window = Math.max(1, conf.getInt(WRITE_WINDOW_KEY, WRITE_WINDOW_DEFAULT));
+			ackReader = new Daemon(new Runnable() {
+				public void run() {
+					ackLoop();
+				}
+			});
+			ackReader.setName("AdamFS write acks " + f);
+			ackReader.start();
+		} else {
+			// coalesce small record writes instead of one segment per write()
+			rawOut = new BufferedOutputStream(conn.getOutputStream(), chunkSize);
+			chunk = null;
+			window = 0;
+		}
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		checkOpen();
+		count_written(1);
+		if (!chunked) {
+			rawOut.write(b);
+			return;
+		}
+		chunk[chunkLen++] = (byte) b;
+		if (chunkLen == chunk.length) {
+			sendChunk();
+		}
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		count_written(len);
+		if (!chunked) {
+			rawOut.write(b, off, len);
+			return;
+		}
+		while (len > 0) {
+			int n = Math.min(len, chunk.length - chunkLen);
+			System.arraycopy(b, off, chunk, chunkLen, n);
+			chunkLen += n;
+			off += n;
+			len -= n;
+			if (chunkLen == chunk.length) {
+				sendChunk();
+			}
+		}
+	}
+
+	/**
+	 * Write the remaining bytes of buf. In raw mode with the NIO transport
+	 * this goes straight from buf to the socket channel.
+	 */
+	public synchronized void write(ByteBuffer buf) throws IOException {
+		checkOpen();
+		count_written(buf.remaining());
+		if (!chunked) {
+			rawOut.flush();
+			conn.write(new ByteBuffer[] { buf });
+			return;
+		}
+		while (buf.hasRemaining()) {
+			int n = Math.min(buf.remaining(), chunk.length - chunkLen);
+			buf.get(chunk, chunkLen, n);
+			chunkLen += n;
+			if (chunkLen == chunk.length) {
+				sendChunk();
+			}
+		}
+	}
+
+	/**
+	 * Send count bytes of a local file, starting at position. In raw mode
+	 * with the NIO transport the kernel copies them from the file to the
+	 * socket; chunked mode has to read them to checksum them.
+	 * @return the number of bytes sent, less than count at end of file
+	 */
+	public synchronized long transferFrom(FileChannel src, long position, long count)
+			throws IOException {
+		checkOpen();
+		if (!chunked) {
+			rawOut.flush();
+			long sent = conn.transferFrom(src, position, count);
+			count_written(sent);
+			return sent;
+		}
+		long done = 0;
+		while (done < count) {
+			ByteBuffer buf = ByteBuffer.wrap(chunk, chunkLen,
+					(int) Math.min(chunk.length - chunkLen, count - done));
+			int n = src.read(buf, position + done);
+			if (n < 0) {
+				break;
+			}
+			chunkLen += n;
+			done += n;
+			if (chunkLen == chunk.length) {
+				sendChunk();
+			}
+		}
+		count_written(done);
+		return done;
+	}
+
+	/**
+	 * Raw mode pushes buffered bytes to the socket. Chunked mode keeps
+	 * collecting a full chunk, use {@link #sync()} to push a partial one.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		checkOpen();
+		if (!chunked) {
+			rawOut.flush();
+		}
+	}
+
+	/**
+	 * Send everything written so far and, in chunked mode, wait until the
+	 * server has acked all of it.
+	 */
+	public synchronized void sync() throws IOException {
+		checkOpen();
+		if (!chunked) {
+			rawOut.flush();
+			return;
+		}
+		sendChunk();
+		waitForAcks(0);
+	}
+
+	/**
+	 * Finish the file. In chunked mode this returns only after the server
+	 * acked WRITE_CLOSE, and throws if any part of the file was not stored.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		boolean reusable = false;
+		try {
+			if (!chunked) {
+				rawOut.flush();
+				// the api-server treats end of stream as end of file, so the
+				// raw write session cannot be handed back to the pool
+				return;
+			}
+			checkError();
+			sendChunk();
+			AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_WRITE_CLOSE).addLong(offset);
+			expectAck(AdamFSProtocol.OP_WRITE_CLOSE);
+			conn.send(request);
+			waitForAcks(0);
+			reusable = true;
+		} catch (IOException e) {
+			conn.markBroken();
+			throw e;
+		} finally {
+			closed = true;
+			stopAckReader();
+			if (compression != null) {
+				compression.close();
+			}
+			if (reusable) {
+				pool.release(conn);
+			} else {
+				pool.invalidate(conn); // also unblocks the ack reader
+			}
+			if (statusCache != null) {
+				statusCache.invalidate(path); // length and mod time changed
+			}
+		}
+	}
+
+	/** Bytes written to this stream so far. */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	private void count_written(long n) {
+		bytesWritten += n;
+		METRICS.bytesWritten(n);
 	}
 
 	/**
@@ -29,5 +302,129 @@ public class AdamFSOutputStream extends DataOutputStream {
 	public void setPath(String path) {
 		this.path = path;
 	}
-	
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("<AdamFS:OUTPUTSTREAM> stream is closed");
+		}
+		if (chunked) {
+			checkError();
+		}
+	}
+
+	private void checkError() throws IOException {
+		synchronized (unacked) {
+			if (ackError != null) {
+				throw ackError;
+			}
+		}
+	}
+
+	/** Frame and send the collected chunk, once the window has room. */
+	private void sendChunk() throws IOException {
+		if (chunkLen == 0) {
+			return;
+		}
+		waitForAcks(window - 1);
+		crc.reset();
+		crc.update(chunk, 0, chunkLen);
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_WRITE_CHUNK)
+				.addLong(offset).addLong(crc.getValue());
+		expectAck(AdamFSProtocol.OP_WRITE_CHUNK);
+		try {
+			if (compression != null) {
+				compression.sendData(conn, request, chunk, 0, chunkLen);
+			} else {
+				conn.sendWithData(request, chunk, 0, chunkLen);
+			}
+		} catch (IOException e) {
+			conn.markBroken();
+			throw e;
+		}
+		offset += chunkLen;
+		chunkLen = 0;
+	}
+
+	/** Register the next request before sending it, so its ack is never early. */
+	private void expectAck(int opcode) {
+		synchronized (unacked) {
+			unacked.addLast(new Unacked(conn.peekNextRequestId(), opcode, offset));
+			unacked.notifyAll();
+		}
+	}
+
+	/** Block until at most max requests are waiting for their ack. */
+	private void waitForAcks(int max) throws IOException {
+		synchronized (unacked) {
+			while (ackError == null && unacked.size() > max) {
+				try {
+					unacked.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("<AdamFS:OUTPUTSTREAM> interrupted waiting for acks");
+				}
+			}
+			if (ackError != null) {
+				throw ackError;
+			}
+		}
+	}
+
+	private void stopAckReader() {
+		synchronized (unacked) {
+			finished = true;
+			unacked.notifyAll();
+		}
+	}
+
+	private void ackLoop() {
+		try {
+			while (true) {
+				Unacked expected;
+				synchronized (unacked) {
+					while (unacked.isEmpty() && !finished) {
+						unacked.wait();
+					}
+					if (unacked.isEmpty() || ackError != null) {
+						return;
+					}
+					expected = unacked.getFirst();
+				}
+				AdamFSResponse response = conn.receive();
+				METRICS.replyReceived(expected.opcode, expected.sent,
+						response != null && response.isSuccess());
+				if (response == null) {
+					throw new IOException("<AdamFS:OUTPUTSTREAM> api-server closed the connection");
+				}
+				if (response.getRequestId() != expected.requestId) {
+					throw new IOException("<AdamFS:OUTPUTSTREAM> ack " + response.getRequestId()
+							+ " does not match request " + expected.requestId);
+				}
+				if (!response.isSuccess()) {
+					throw new IOException(expected.opcode == AdamFSProtocol.OP_WRITE_CLOSE
+							? "<AdamFS:OUTPUTSTREAM> api-server failed to finish " + path
+							: "<AdamFS:OUTPUTSTREAM> api-server rejected data at offset "
+									+ expected.offset + " of " + path);
+				}
+				synchronized (unacked) {
+					unacked.removeFirst();
+					unacked.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			fail(new InterruptedIOException("<AdamFS:OUTPUTSTREAM> ack reader interrupted"));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		conn.markBroken();
+		synchronized (unacked) {
+			if (ackError == null && !finished) {
+				ackError = e;
+			}
+			unacked.notifyAll();
+		}
+	}
 }
@@ -0,0 +1,372 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Syncable;
+
+/**
+ * Upload mode for servers with the PWRITE capability. Data is collected
+ * into parts of fs.adamfs.parallel.part.size bytes, and each full part is
+ * uploaded on a pooled connection of its own with WRITE_AT frames (offset,
+ * CRC32, data), which the server acks once stored. Until
+ * fs.adamfs.parallel.threshold bytes have been written one part is in
+ * flight at a time; past it up to fs.adamfs.parallel.concurrency parts go
+ * at once, so large files are not limited by one connection's throughput.
+ *
+ * close() waits for every part and then sends COMMIT with the final
+ * length, which the server acks once the file has exactly that content and
+ * is durable. A failed part fails the next write, sync() or close().
+ * Servers with DEFLATE get the frames compressed, see
+ * {@link AdamFSCompression}.
+ */
+public class AdamFSParallelOutputStream extends OutputStream implements Syncable {
+	public static final Log LOG = LogFactory.getLog(AdamFSParallelOutputStream.class);
+
+	private static final int INITIAL_PART_BUFFER = 64 * 1024;
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
+
+	private final AdamFSConnectionPool pool;
+	private final String path;
+	private final AdamFSStatusCache statusCache;
+	private final Executor executor;
+	private final int partSize;
+	private final int frameSize;
+	private final int concurrency;
+	private final long threshold;
+	private final AdamFSCompression compression; // null unless the server has DEFLATE
+	private boolean closed = false;
+
+	private byte[] part; // grows up to partSize, so small files stay small
+	private int partLen = 0;
+	private long partPos = 0; // file offset of the part being filled
+	private long bytesWritten = 0;
+
+	// guarded by this
+	private int inflight = 0;
+	private IOException error = null;
+	private final LinkedList<byte[]> spare = new LinkedList<byte[]>();
+
+	AdamFSParallelOutputStream(AdamFSConnectionPool pool, String path,
+			AdamFSStatusCache statusCache, Executor executor, int partSize, int frameSize,
+			int concurrency, long threshold, AdamFSCompression compression) {
+		this.pool = pool;
+		this.path = path;
+		this.statusCache = statusCache;
+		this.executor = executor;
+		this.partSize = Math.max(1, partSize);
+		this.frameSize = Math.max(1, Math.min(frameSize, this.partSize));
+		this.concurrency = Math.max(1, concurrency);
+		this.threshold = threshold;
+		this.compression = compression;
+		this.part = new byte[Math.min(INITIAL_PART_BUFFER, this.partSize)];
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		checkOpen();
+		count_written(1);
+		ensureRoom(1);
+		part[partLen++] = (byte) b;
+		if (partLen == partSize) {
+			uploadPart();
+		}
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		count_written(len);
+		while (len > 0) {
+			int n = Math.min(len, partSize - partLen);
+			ensureRoom(n);
+			System.arraycopy(b, off, part, partLen, n);
+			partLen += n;
+			off += n;
+			len -= n;
+			if (partLen == partSize) {
+				uploadPart();
+			}
+		}
+	}
+
+	/** Write the remaining bytes of buf. */
+	public synchronized void write(ByteBuffer buf) throws IOException {
+		checkOpen();
+		count_written(buf.remaining());
+		while (buf.hasRemaining()) {
+			int n = Math.min(buf.remaining(), partSize - partLen);
+			ensureRoom(n);
+			buf.get(part, partLen, n);
+			partLen += n;
+			if (partLen == partSize) {
+				uploadPart();
+			}
+		}
+	}
+
+	/**
+	 * Send count bytes of a local file, starting at position.
+	 * @return the number of bytes sent, less than count at end of file
+	 */
+	public synchronized long transferFrom(FileChannel src, long position, long count)
+			throws IOException {
+		checkOpen();
+		long done = 0;
+		while (done < count) {
+			int n = (int) Math.min(partSize - partLen, count - done);
+			ensureRoom(n);
+			n = src.read(ByteBuffer.wrap(part, partLen, n), position + done);
+			if (n < 0) {
+				break;
+			}
+			partLen += n;
+			done += n;
+			if (partLen == partSize) {
+				uploadPart();
+			}
+		}
+		count_written(done);
+		return done;
+	}
+
+	/** Parts are only sent once full, use {@link #sync()} to push a partial one. */
+	@Override
+	public synchronized void flush() throws IOException {
+		checkOpen();
+	}
+
+	/**
+	 * Upload everything written so far and wait until the server acked it.
+	 * The file's length is only final after close().
+	 */
+	public synchronized void sync() throws IOException {
+		checkOpen();
+		uploadPart();
+		waitForParts(0);
+	}
+
+	/**
+	 * Upload the last part, wait for all of them and commit the file. Throws
+	 * if any part failed or the server could not commit.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			checkError();
+			uploadPart();
+			waitForParts(0);
+			commit(partPos);
+		} finally {
+			closed = true;
+			if (statusCache != null) {
+				statusCache.invalidate(path); // length and mod time changed
+			}
+		}
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/** Bytes written to this stream so far. */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	private void count_written(long n) {
+		bytesWritten += n;
+		METRICS.bytesWritten(n);
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("<AdamFS:OUTPUTSTREAM> stream is closed");
+		}
+		checkError();
+	}
+
+	private synchronized void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void ensureRoom(int n) {
+		if (partLen + n > part.length) {
+			byte[] bigger = new byte[Math.min(partSize, Math.max(partLen + n, part.length * 2))];
+			System.arraycopy(part, 0, bigger, 0, partLen);
+			part = bigger;
+		}
+	}
+
+	/** Hand the filled part to a worker, once fewer than the limit are in flight. */
+	private void uploadPart() throws IOException {
+		if (partLen == 0) {
+			return;
+		}
+		waitForParts((partPos >= threshold ? concurrency : 1) - 1);
+		final byte[] data = part;
+		final long pos = partPos;
+		final int len = partLen;
+		synchronized (this) {
+			inflight++;
+			part = spare.isEmpty() ? new byte[partSize] : spare.removeFirst();
+		}
+		partPos += len;
+		partLen = 0;
+		Runnable upload = new Runnable() {
+			public void run() {
+				IOException failure = null;
+				try {
+					send(data, pos, len);
+				} catch (IOException e) {
+					failure = e;
+				}
+				synchronized (AdamFSParallelOutputStream.this) {
+					inflight--;
+					if (failure != null && error == null) {
+						error = failure;
+					}
+					if (data.length == partSize && spare.size() < concurrency) {
+						spare.addLast(data);
+					}
+					AdamFSParallelOutputStream.this.notifyAll();
+				}
+			}
+		};
+		try {
+			executor.execute(upload);
+		} catch (RejectedExecutionException e) {
+			IOException failure = new IOException("<AdamFS:OUTPUTSTREAM> file system is closed");
+			synchronized (this) {
+				inflight--; // the part never went out
+				if (error == null) {
+					error = failure;
+				}
+				notifyAll();
+			}
+			throw failure;
+		}
+	}
+
+	private void waitForParts(int max) throws IOException {
+		while (error == null && inflight > max) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("<AdamFS:OUTPUTSTREAM> interrupted waiting for parts");
+			}
+		}
+		checkError();
+	}
+
+	/** Upload one part, retrying once on a fresh connection if a pooled one was stale. */
+	private void send(byte[] data, long pos, int len) throws IOException {
+		// parts run on several threads, each needs codec state of its own
+		AdamFSCompression codec = compression == null ? null : compression.duplicate();
+		AdamFSConnection conn = pool.borrowForStream();
+		try {
+			sendFrames(conn, codec, data, pos, len);
+		} catch (IOException e) {
+			pool.invalidate(conn);
+			conn = pool.borrowFresh();
+			try {
+				sendFrames(conn, codec, data, pos, len);
+			} catch (IOException e2) {
+				pool.invalidate(conn);
+				throw e2;
+			}
+		} finally {
+			if (codec != null) {
+				codec.close();
+			}
+		}
+		pool.release(conn);
+	}
+
+	/** Pipeline the part's WRITE_AT frames, then collect their acks in order. */
+	private void sendFrames(AdamFSConnection conn, AdamFSCompression codec, byte[] data,
+			long pos, int len) throws IOException {
+		CRC32 crc = new CRC32();
+		int frames = 0;
+		int firstId = conn.peekNextRequestId();
+		long[] sent = new long[(len + frameSize - 1) / frameSize];
+		for (int off = 0; off < len; off += frameSize) {
+			int n = Math.min(frameSize, len - off);
+			crc.reset();
+			crc.update(data, off, n);
+			sent[frames] = System.nanoTime();
+			AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_WRITE_AT)
+					.addString(path).addLong(pos + off).addLong(crc.getValue());
+			if (codec != null) {
+				codec.sendData(conn, request, data, off, n);
+			} else {
+				conn.sendWithData(request, data, off, n);
+			}
+			frames++;
+		}
+		for (int i = 0; i < frames; i++) {
+			AdamFSResponse response = conn.receive();
+			METRICS.replyReceived(AdamFSProtocol.OP_WRITE_AT, sent[i],
+					response != null && response.isSuccess());
+			if (response == null) {
+				conn.markBroken();
+				throw new IOException("<AdamFS:OUTPUTSTREAM> api-server closed the connection");
+			}
+			if (response.getRequestId() != firstId + i) {
+				conn.markBroken();
+				throw new IOException("<AdamFS:OUTPUTSTREAM> ack " + response.getRequestId()
+						+ " does not match request " + (firstId + i));
+			}
+			if (!response.isSuccess()) {
+				throw new IOException("<AdamFS:OUTPUTSTREAM> api-server rejected data at offset "
+						+ (pos + (long) i * frameSize) + " of " + path);
+			}
+		}
+	}
+
+	private void commit(long length) throws IOException {
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_COMMIT)
+				.addString(path).addLong(length);
+		AdamFSConnection conn = pool.borrow();
+		AdamFSResponse response;
+		try {
+			response = conn.call(request);
+		} catch (IOException e) {
+			conn.markBroken();
+			response = null;
+		}
+		if (response == null) { // stale pooled connection, retry on a new one
+			pool.invalidate(conn);
+			conn = pool.borrowFresh();
+			try {
+				response = conn.call(request);
+			} catch (IOException e) {
+				conn.markBroken();
+				pool.release(conn);
+				throw e;
+			}
+		}
+		pool.release(conn);
+		if (response == null) {
+			throw new IOException("<AdamFS:OUTPUTSTREAM> api-server closed the connection");
+		}
+		if (!response.isSuccess()) {
+			throw new IOException("<AdamFS:OUTPUTSTREAM> api-server failed to commit " + path);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Download mode for large files. The file is cut into parts of
+ * fs.adamfs.parallel.part.size bytes, and up to fs.adamfs.parallel.concurrency
+ * parts ahead of the reader are fetched at once, each with one range read
+ * on a read session of its own. A single TCP connection no longer bounds
+ * the throughput of a sequential reader.
+ *
+ * {@link AdamFSInputStream} switches to this mode for files of at least
+ * fs.adamfs.parallel.threshold bytes. Seeks inside the parts already
+ * scheduled keep them; any other seek drops them and starts over at the
+ * new position. Parts still being fetched for an old position are thrown
+ * away when they arrive.
+ */
+class AdamFSParallelReader {
+
+	private static class Part {
+		final long pos;
+		final int len;
+		ByteBuffer data;
+		IOException error;
+		boolean done = false;
+		boolean abandoned = false;
+
+		Part(long pos, int len) {
+			this.pos = pos;
+			this.len = len;
+		}
+	}
+
+	private final AdamFSInputStream stream;
+	private final AdamFSBufferPool buffers;
+	private final Executor executor;
+	private final long fileLength;
+	private final int partSize;
+	private final int concurrency;
+
+	// guarded by this
+	private final LinkedList<Part> parts = new LinkedList<Part>(); // in file order
+	private long nextPart; // offset of the next part to schedule
+	private long consumerPos;
+	private boolean stopped = false;
+
+	AdamFSParallelReader(AdamFSInputStream stream, AdamFSBufferPool buffers,
+			Executor executor, long fileLength, long startPos, int partSize, int concurrency) {
+		this.stream = stream;
+		this.buffers = buffers;
+		this.executor = executor;
+		this.fileLength = fileLength;
+		this.partSize = Math.max(1, partSize);
+		this.concurrency = Math.max(1, concurrency);
+		this.consumerPos = startPos;
+		this.nextPart = startPos;
+	}
+
+	/**
+	 * Copy bytes at the current position into the remaining space of dst,
+	 * waiting for the part that holds them if it is still in flight.
+	 * @return the number of bytes copied, or -1 at end of file
+	 */
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		if (consumerPos >= fileLength) {
+			return -1;
+		}
+		schedule();
+		Part part = parts.getFirst(); // always holds consumerPos
+		while (!part.done) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("<AdamFS:PARALLEL> interrupted waiting for data");
+			}
+		}
+		if (part.error != null) {
+			throw part.error;
+		}
+		int start = (int) (consumerPos - part.pos);
+		int n = Math.min(dst.remaining(), part.len - start);
+		part.data.limit(start + n);
+		part.data.position(start);
+		dst.put(part.data);
+		consumerPos += n;
+		if (consumerPos >= part.pos + part.len) {
+			parts.removeFirst();
+			buffers.release(part.data);
+			try {
+				schedule();
+			} catch (IOException e) {
+				// n bytes are the caller's; the next read() reports it
+			}
+		}
+		return n;
+	}
+
+	/** Move the read position, keeping scheduled parts that cover it. */
+	public synchronized void seek(long pos) {
+		while (!parts.isEmpty() && parts.getFirst().pos + parts.getFirst().len <= pos) {
+			drop(parts.removeFirst());
+		}
+		if (parts.isEmpty() || pos < parts.getFirst().pos) {
+			while (!parts.isEmpty()) {
+				drop(parts.removeFirst());
+			}
+			nextPart = pos;
+		}
+		consumerPos = pos;
+	}
+
+	/** Stop scheduling and throw away everything fetched or in flight. */
+	public synchronized void stop() {
+		stopped = true;
+		while (!parts.isEmpty()) {
+			drop(parts.removeFirst());
+		}
+	}
+
+	private void schedule() throws IOException {
+		while (!stopped && parts.size() < concurrency && nextPart < fileLength) {
+			final Part part = new Part(nextPart, (int) Math.min(partSize, fileLength - nextPart));
+			parts.addLast(part);
+			nextPart += part.len;
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						fetch(part);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				parts.removeLast();
+				nextPart -= part.len;
+				throw new IOException("<AdamFS:PARALLEL> file system is closed");
+			}
+		}
+	}
+
+	private void drop(Part part) {
+		if (part.done) {
+			if (part.data != null) {
+				buffers.release(part.data);
+			}
+		} else {
+			part.abandoned = true; // fetch() releases the buffer
+		}
+	}
+
+	private void fetch(Part part) {
+		ByteBuffer buf = null;
+		IOException error = null;
+		try {
+			buf = buffers.get(part.len);
+			AdamFSConnection session = stream.borrow_pread_session();
+			try {
+				while (buf.hasRemaining()) {
+					if (stream.read_range(session, part.pos + buf.position(), buf) < 0) {
+						throw new EOFException("<AdamFS:PARALLEL> unexpected end of file at "
+								+ (part.pos + buf.position()));
+					}
+				}
+			} finally {
+				stream.release_pread_session(session);
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (Throwable t) {
+			// the reader waits for the part to be done, whatever went wrong
+			error = new IOException("<AdamFS:PARALLEL> read failed at " + part.pos + ": " + t);
+			error.initCause(t);
+		}
+		synchronized (this) {
+			if (part.abandoned) {
+				if (buf != null) {
+					buffers.release(buf);
+				}
+				return;
+			}
+			if (buf != null) {
+				buf.flip();
+			}
+			part.data = buf;
+			part.error = error;
+			part.done = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Op codes and wire constants shared by the adamfs client classes.
+ *
+ * Version 1 is the original text protocol: a two digit op code followed by
+ * the request data on one line, answered by one line of
+ * op code + success code + data. Range reads on an open stream are sent as
+ * "position:length" and answered with raw bytes.
+ *
+ * Version 2 is binary. Every message is a frame:
+ * <pre>
+ *   int32   length of the rest of the frame
+ *   byte    op code
+ *   vint    request id, echoed back in the reply
+ *   byte    status (0 failure, 1 success; always 0 in requests)
+ *   fields  strings as vint length + UTF-8 bytes, longs as vlongs
+ *           (see org.apache.hadoop.io.WritableUtils)
+ * </pre>
+ * Range read replies carry the file bytes raw after the header, up to the
+ * end of the frame. A client that negotiated version 2 starts every new
+ * connection with the 4 byte {@link #MAGIC} so the server knows which
+ * protocol to speak on it.
+ *
+ * Op codes above {@link #OP_READ} are optional and only sent to servers
+ * that listed the matching capability in their hello reply. Servers with
+ * DEFLATE also take the codec fields described in {@link AdamFSCompression}.
+ */
+final class AdamFSProtocol {
+
+	public static final int VERSION_TEXT = 1;
+	public static final int VERSION_BINARY = 2;
+
+	public static final String PROTOCOL_VERSION_KEY = "fs.adamfs.protocol.version";
+	public static final int PROTOCOL_VERSION_DEFAULT = VERSION_BINARY;
+	public static final String HELLO_TIMEOUT_KEY = "fs.adamfs.hello.timeout";
+	public static final int HELLO_TIMEOUT_DEFAULT = 1000; // ms
+
+	public static final byte[] MAGIC = { 'H', 'F', 'A', '2' };
+
+	public static final String HELLO = "AdamFS SAYS HI, URI: ";
+	public static final String HELLO_VERSION = " PROTO: ";
+	// reply to a versioned hello: "HI <version>[ <capability>...]"
+	public static final String HELLO_REPLY = "HI ";
+
+	public static final int OP_END_STREAM = 0;
+	public static final int OP_LOOKUP = 1;
+	public static final int OP_LIST = 2;
+	public static final int OP_DELETE = 3;
+	public static final int OP_MKDIR = 4;
+	public static final int OP_CREATE = 5;
+	public static final int OP_SETUP_WRITE = 6;
+	// path[, codec] -> file length[, codec used for READ replies]
+	public static final int OP_OPEN = 7;
+	// path, start, length -> per block: offset, length, host count, hosts
+	public static final int OP_BLOCK_LOCATIONS = 8;
+	public static final int OP_RENAME = 9;
+	public static final int OP_READ = 10;
+	// path, continuation token ("" to start), max entries ->
+	// next token ("" when done), then per entry: name + LOOKUP fields
+	public static final int OP_LIST_STATUS = 11;
+	// path -> deletes a file, or a directory and everything under it
+	public static final int OP_DELETE_RECURSIVE = 12;
+	// recursive flag, then paths -> one boolean result per path
+	public static final int OP_DELETE_BATCH = 13;
+	// path -> truncates the file and puts the connection in chunked write
+	// mode, where it accepts only WRITE_CHUNK and WRITE_CLOSE
+	public static final int OP_WRITE_OPEN = 14;
+	// offset, CRC32 of the data, [codec with DEFLATE,] then the data raw to
+	// the end of the frame -> acked in order once the server has checked and
+	// stored the chunk
+	public static final int OP_WRITE_CHUNK = 15;
+	// total length -> acked once every chunk is durable on the server; the
+	// connection then takes commands again
+	public static final int OP_WRITE_CLOSE = 16;
+	// path, offset, CRC32, [codec with DEFLATE,] then the data raw to the end
+	// of the frame -> acked once stored; creates the file, never truncates it
+	public static final int OP_WRITE_AT = 17;
+	// path, length -> acked once the file is exactly length bytes and durable
+	public static final int OP_COMMIT = 18;
+	// entries to the end of the frame, each: flags (COMPOUND_*), op code,
+	// field bytes as vint length + bytes -> runs them in order and stops at
+	// the first that fails; per entry run: status, reply field bytes. The
+	// reply succeeds if no entry stopped the run. Only the last entry may
+	// start a session (WRITE_OPEN, SETUP_WRITE, WRITE_APPEND), which then
+	// goes on after the compound reply.
+	public static final int OP_COMPOUND = 19;
+	// path -> current length; the connection is in chunked write mode as
+	// after WRITE_OPEN, but the file is kept and chunks go after its end
+	public static final int OP_WRITE_APPEND = 20;
+	// path -> total length, file count and directory count of the tree
+	// under it, the directory itself included
+	public static final int OP_CONTENT_SUMMARY = 21;
+	// path -> bytes per CRC, CRCs per block, MD5 of the block MD5s as hex:
+	// the fields of an MD5MD5CRC32FileChecksum; fails if path is not a file.
+	// Not allowed in COMPOUND, since the server may have to read the file
+	public static final int OP_CHECKSUM = 22;
+
+	public static final int STATUS_FAILURE = 0;
+	public static final int STATUS_SUCCESS = 1;
+
+	// a failed compound entry does not stop the run
+	public static final int COMPOUND_CONTINUE = 1;
+	// a compound entry succeeds if its op fails, e.g. LOOKUP as "must not exist"
+	public static final int COMPOUND_NEGATE = 2;
+
+	public static final Set<String> NO_CAPABILITIES = Collections.emptySet();
+	public static final String CAP_LIST_STATUS = "LISTSTATUS";
+	public static final String CAP_DELETE_RECURSIVE = "RDELETE";
+	public static final String CAP_DELETE_BATCH = "BDELETE";
+	public static final String CAP_CHUNKED_WRITE = "CWRITE";
+	public static final String CAP_PARALLEL_WRITE = "PWRITE";
+	public static final String CAP_DEFLATE = "DEFLATE";
+	public static final String CAP_COMPOUND = "COMPOUND";
+	public static final String CAP_APPEND = "APPEND";
+	public static final String CAP_CONTENT_SUMMARY = "SUMMARY";
+	public static final String CAP_CHECKSUM = "CHECKSUM";
+
+	private AdamFSProtocol() {
+	}
+
+	// names for logs and metrics, indexed by op code
+	private static final String[] OPCODE_NAMES = {
+		"EndStream", "Lookup", "List", "Delete", "Mkdir", "Create", "SetupWrite",
+		"Open", "BlockLocations", "Rename", "Read", "ListStatus", "DeleteRecursive",
+		"DeleteBatch", "WriteOpen", "WriteChunk", "WriteClose", "WriteAt", "Commit",
+		"Compound", "WriteAppend", "ContentSummary", "Checksum"
+	};
+
+	/** Highest op code the client knows about. */
+	public static final int MAX_OPCODE = OPCODE_NAMES.length - 1;
+
+	/** Readable name of an op code, e.g. 1 becomes "Lookup". */
+	public static String opcodeName(int opcode) {
+		if (opcode < 0 || opcode > MAX_OPCODE) {
+			return "Op" + opcode;
+		}
+		return OPCODE_NAMES[opcode];
+	}
+
+	/** Two digit text form of an op code, e.g. 7 becomes "07". */
+	public static String opcodeText(int opcode) {
+		return opcode < 10 ? "0" + opcode : Integer.toString(opcode);
+	}
+
+	/**
+	 * Parse the server's answer to a versioned hello. Returns the agreed
+	 * version, or {@link #VERSION_TEXT} for anything an old server might say.
+	 */
+	public static int parseHelloVersion(String reply, int clientVersion) {
+		if (reply == null || !reply.startsWith(HELLO_REPLY)) {
+			return VERSION_TEXT;
+		}
+		String[] words = reply.substring(HELLO_REPLY.length()).trim().split(" +");
+		try {
+			return Math.max(VERSION_TEXT,
+					Math.min(clientVersion, Integer.parseInt(words[0])));
+		} catch (NumberFormatException e) {
+			return VERSION_TEXT;
+		}
+	}
+
+	/** Optional features listed after the version in the hello reply. */
+	public static Set<String> parseHelloCapabilities(String reply) {
+		if (reply == null || !reply.startsWith(HELLO_REPLY)) {
+			return NO_CAPABILITIES;
+		}
+		String[] words = reply.substring(HELLO_REPLY.length()).trim().split(" +");
+		Set<String> caps = new HashSet<String>();
+		for (int i = 1; i < words.length; i++) {
+			caps.add(words[i]);
+		}
+		return caps;
+	}
+}
@@ -0,0 +1,410 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Streaming read mode for {@link AdamFSInputStream}.
+ *
+ * Instead of one round trip per read() call, a background thread keeps up to
+ * fs.adamfs.readahead.window bytes ahead of the reader requested from the
+ * api-server, in range requests of fs.adamfs.readahead.request.size bytes.
+ * Requests are pipelined on the stream's own connection and the replies are
+ * collected into chunk buffers; read() copies out of those and only blocks
+ * when the reader has caught up with the network.
+ *
+ * Forward seeks inside the prefetched range just skip bytes. Any other seek
+ * drops the buffered chunks and restarts the window at the new position;
+ * replies already on the wire for the old position are drained and thrown
+ * away by the background thread.
+ *
+ * A reply not in fs.adamfs.read.hedge.delay ms after the fetch thread
+ * started waiting for it is raced by an {@link AdamFSHedgedRead}, and when
+ * the session fails (a timeout, or a hedge that won and closed it) the
+ * fetch thread goes on with a new one from the stream and asks again for
+ * what was in flight, up to fs.adamfs.read.retries times in a row.
+ *
+ * Both protocol versions pipeline: text replies are exactly
+ * min(length, bytes left in the file) long, so they need no framing.
+ * Compressed replies are inflated by the fetch thread, see
+ * {@link AdamFSCompression}.
+ *
+ * Chunk buffers come from the connection pool's {@link AdamFSBufferPool};
+ * with the NIO transport they are direct and filled straight from the
+ * socket channel.
+ */
+class AdamFSReadAhead {
+	public static final Log LOG = LogFactory.getLog(AdamFSReadAhead.class);
+
+	public static final String READAHEAD_ENABLED_KEY = "fs.adamfs.readahead.enabled";
+	public static final boolean READAHEAD_ENABLED_DEFAULT = true;
+	public static final String READAHEAD_REQUEST_SIZE_KEY = "fs.adamfs.readahead.request.size";
+	public static final int READAHEAD_REQUEST_SIZE_DEFAULT = 1024 * 1024;
+	public static final String READAHEAD_WINDOW_KEY = "fs.adamfs.readahead.window";
+	public static final long READAHEAD_WINDOW_DEFAULT = 4 * 1024 * 1024;
+
+	private static class Chunk {
+		long pos;
+		int len;
+		ByteBuffer data; // [0, len) holds the bytes at pos
+	}
+
+	// a range request sent by the fetch thread whose reply is not read yet
+	private static class Pending {
+		final long pos;
+		final int len;
+		final int generation;
+		final long sent = System.nanoTime();
+
+		Pending(long pos, int len, int generation) {
+			this.pos = pos;
+			this.len = len;
+			this.generation = generation;
+		}
+	}
+
+	private final AdamFSInputStream stream;
+	private volatile AdamFSConnection conn; // replaced by the fetch thread on failover
+	private final AdamFSBufferPool buffers;
+	private final long fileLength;
+	private final int requestSize;
+	private final long window;
+
+	// owned by the fetch thread
+	private final LinkedList<Pending> requested = new LinkedList<Pending>();
+
+	// guarded by this
+	private final LinkedList<Chunk> ready = new LinkedList<Chunk>();
+	private long readyBytes = 0;
+	private long inflightBytes = 0;
+	private long nextRequest;
+	private long consumerPos;
+	private int generation = 0;
+	private boolean stopped = false;
+	private IOException error = null;
+	private long hits = 0;
+	private long misses = 0;
+	private Daemon fetcher = null;
+
+	AdamFSReadAhead(AdamFSInputStream stream, AdamFSConnection conn, AdamFSBufferPool buffers,
+			long fileLength, long startPos, int requestSize, long window) {
+		this.stream = stream;
+		this.conn = conn;
+		this.buffers = buffers;
+		this.fileLength = fileLength;
+		this.requestSize = Math.max(1, requestSize);
+		this.window = Math.max(this.requestSize, window);
+		this.nextRequest = startPos;
+		this.consumerPos = startPos;
+	}
+
+	/**
+	 * Copy up to len bytes at the current position into b, waiting for the
+	 * fetch thread if nothing is buffered yet.
+	 * @return the number of bytes copied, or -1 at end of file
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		return read(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Copy bytes at the current position into the remaining space of dst,
+	 * waiting for the fetch thread if nothing is buffered yet.
+	 * @return the number of bytes copied, or -1 at end of file
+	 */
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		if (fetcher == null) {
+			startFetcher();
+		}
+		boolean waited = false;
+		Chunk chunk;
+		while (true) {
+			if (error != null) {
+				throw error;
+			}
+			if (consumerPos >= fileLength) {
+				return -1;
+			}
+			chunk = ready.peek();
+			if (chunk != null && chunk.pos + chunk.len <= consumerPos) {
+				recycle(ready.removeFirst()); // skipped over by a forward seek
+				continue;
+			}
+			if (chunk != null) {
+				break;
+			}
+			waited = true;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("<AdamFS:READAHEAD> interrupted waiting for data");
+			}
+		}
+		if (waited) {
+			misses++;
+		} else {
+			hits++;
+		}
+		int start = (int) (consumerPos - chunk.pos);
+		int n = Math.min(dst.remaining(), chunk.len - start);
+		chunk.data.limit(start + n);
+		chunk.data.position(start);
+		dst.put(chunk.data);
+		consumerPos += n;
+		if (consumerPos >= chunk.pos + chunk.len) {
+			recycle(ready.removeFirst());
+			notifyAll(); // room in the window
+		}
+		return n;
+	}
+
+	/**
+	 * Move the read position. Forward seeks into the prefetched range (and
+	 * back into the current chunk) keep the buffer; anything else drops it.
+	 */
+	public synchronized void seek(long pos) {
+		if (pos == consumerPos) {
+			return;
+		}
+		Chunk head = ready.peek();
+		long keepFrom = head != null ? Math.min(head.pos, consumerPos) : consumerPos;
+		if (pos >= keepFrom && pos < nextRequest) {
+			consumerPos = pos;
+			return;
+		}
+		// non-sequential: forget what we have, in-flight replies get drained
+		generation++;
+		while (!ready.isEmpty()) {
+			recycle(ready.removeFirst());
+		}
+		consumerPos = pos;
+		nextRequest = pos;
+		notifyAll();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Stop prefetching. If replies were still outstanding the connection is
+	 * closed, since draining them could take a while.
+	 */
+	public void stop() {
+		Daemon t;
+		synchronized (this) {
+			stopped = true;
+			t = fetcher;
+			if (inflightBytes > 0) {
+				conn.markBroken();
+				conn.close(); // unblocks the fetch thread
+			}
+			notifyAll();
+		}
+		if (t != null) {
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void startFetcher() {
+		fetcher = new Daemon(new Runnable() {
+			public void run() {
+				fetchLoop();
+			}
+		});
+		fetcher.setName("AdamFS readahead " + conn);
+		fetcher.start();
+	}
+
+	private boolean canRequest() {
+		return nextRequest < fileLength && readyBytes + inflightBytes < window;
+	}
+
+	private void fetchLoop() {
+		int failures = 0; // in a row
+		try {
+			while (true) {
+				Pending next = null;
+				synchronized (this) {
+					while (!stopped && !canRequest() && requested.isEmpty()) {
+						wait();
+					}
+					if (stopped) {
+						return;
+					}
+					if (canRequest()) {
+						int len = (int) Math.min(requestSize, fileLength - nextRequest);
+						next = new Pending(nextRequest, len, generation);
+						nextRequest += len;
+						inflightBytes += len;
+					}
+				}
+				try {
+					if (next != null) {
+						// keep filling the window before waiting on replies
+						requested.addLast(next);
+						conn.send(new AdamFSRequest(AdamFSProtocol.OP_READ)
+								.addLong(next.pos).addLong(next.len));
+						continue;
+					}
+					if (receive(requested.getFirst())) {
+						failover(null);
+					}
+					failures = 0;
+				} catch (IOException e) {
+					if (stopped || ++failures > stream.getReadRetries()
+							|| !AdamFSInputStream.is_retriable(e)) {
+						throw e;
+					}
+					failover(e);
+				}
+			}
+		} catch (InterruptedException e) {
+			fail(new IOException("<AdamFS:READAHEAD> interrupted"));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Go on with a new session from the stream after conn failed, and ask
+	 * it again for everything that was in flight on the old one.
+	 */
+	private void failover(IOException cause) throws IOException {
+		LOG.debug("<AdamFS:READAHEAD> going on with a new connection after " + conn
+				+ (cause == null ? " lost a hedged read" : " failed: " + cause));
+		AdamFSConnection fresh = stream.replace_session(conn);
+		synchronized (this) {
+			conn = fresh;
+			if (stopped && inflightBytes > 0) {
+				conn.markBroken();
+				conn.close();
+			}
+		}
+		for (Pending p : requested) {
+			conn.send(new AdamFSRequest(AdamFSProtocol.OP_READ).addLong(p.pos).addLong(p.len));
+		}
+	}
+
+	/**
+	 * Read the reply to p, the oldest request in flight, and make it a
+	 * chunk. A reply that is late is raced by a hedged read; returns true if
+	 * the hedge won, which closes conn and loses the replies after p.
+	 */
+	private boolean receive(Pending p) throws IOException {
+		AdamFSHedgedRead hedge = stream.hedge(conn, p.pos, p.len);
+		ByteBuffer buf = buffers.get(requestSize);
+		int n = -1;
+		try {
+			n = receive(p, buf);
+		} catch (IOException e) {
+			if (hedge == null) {
+				buffers.release(buf);
+				throw e;
+			}
+		}
+		boolean lost = hedge != null && (n < 0 || !hedge.primaryDone());
+		if (lost) {
+			conn.markBroken();
+			ByteBuffer data;
+			try {
+				data = hedge.await();
+			} catch (IOException e) {
+				buffers.release(buf);
+				throw e;
+			}
+			buf.clear();
+			n = data.remaining();
+			buf.put(data);
+			buf.flip();
+		}
+		requested.removeFirst();
+		synchronized (this) {
+			inflightBytes -= p.len;
+			if (p.generation == generation && n > 0) {
+				Chunk chunk = new Chunk();
+				chunk.pos = p.pos;
+				chunk.len = n;
+				chunk.data = buf;
+				ready.addLast(chunk);
+				readyBytes += n;
+			} else {
+				buffers.release(buf); // reply for a position we seeked away from
+			}
+			notifyAll();
+		}
+		return lost;
+	}
+
+	/** Read the reply to p into buf; returns its length. */
+	private int receive(Pending p, ByteBuffer buf) throws IOException {
+		int expected = p.len;
+		AdamFSCompression codec = conn.getCompression();
+		int compressed = 0;
+		if (conn.isBinary()) {
+			AdamFSResponse header = conn.receiveHeader();
+			if (header == null) {
+				throw new IOException("<AdamFS:READAHEAD> connection closed by api-server");
+			}
+			if (!header.isSuccess() || (codec == null && (header.getDataLength() > p.len
+					|| (header.getDataLength() < p.len && p.pos + header.getDataLength() < fileLength)))) {
+				AdamFSMetrics.get().replyReceived(AdamFSProtocol.OP_READ, p.sent, false);
+				throw new IOException("<AdamFS:READAHEAD> read failed at " + p.pos);
+			}
+			if (codec == null) {
+				expected = header.getDataLength();
+			} else {
+				compressed = header.getDataLength();
+				if (compressed == 0) {
+					expected = 0; // nothing left at end of file
+				}
+			}
+		}
+		buf.limit(expected);
+		try {
+			if (compressed > 0) {
+				expected = codec.inflate(conn, compressed, buf);
+				if (expected < p.len && p.pos + expected < fileLength) {
+					AdamFSMetrics.get().replyReceived(AdamFSProtocol.OP_READ, p.sent, false);
+					throw new IOException("<AdamFS:READAHEAD> short compressed reply at " + p.pos);
+				}
+				buf.limit(expected);
+			} else {
+				conn.readFully(buf);
+			}
+		} catch (EOFException e) {
+			AdamFSMetrics.get().replyReceived(AdamFSProtocol.OP_READ, p.sent, false);
+			throw new IOException("<AdamFS:READAHEAD> connection closed mid-reply");
+		}
+		AdamFSMetrics.get().replyReceived(AdamFSProtocol.OP_READ, p.sent, true);
+		return expected;
+	}
+
+	private synchronized void fail(IOException e) {
+		conn.markBroken();
+		if (!stopped) {
+			error = e;
+		}
+		notifyAll();
+	}
+
+	private void recycle(Chunk chunk) {
+		readyBytes -= chunk.len;
+		buffers.release(chunk.data);
+	}
+}
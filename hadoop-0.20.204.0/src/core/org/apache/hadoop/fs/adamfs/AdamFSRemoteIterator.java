@@ -0,0 +1,15 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+
+/**
+ * An iterator whose elements come from the api-servers as it goes, so
+ * hasNext() and next() may block and fail; see
+ * {@link AdamFileSystem#listFiles}.
+ */
+public interface AdamFSRemoteIterator<E> {
+	boolean hasNext() throws IOException;
+
+	/** @throws java.util.NoSuchElementException if there is no next element */
+	E next() throws IOException;
+}
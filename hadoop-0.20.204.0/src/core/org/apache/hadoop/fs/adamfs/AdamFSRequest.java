@@ -0,0 +1,102 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * One request to the api-server. Fields are recorded in both wire forms so
+ * the same request can go out over a text (version 1) or binary (version 2)
+ * connection; see {@link AdamFSProtocol} for the formats.
+ */
+class AdamFSRequest {
+	private final int opcode;
+	private int requestId = 0;
+	private final DataOutputBuffer body = new DataOutputBuffer(64);
+	private final StringBuilder text = new StringBuilder();
+
+	AdamFSRequest(int opcode) {
+		this.opcode = opcode;
+	}
+
+	public AdamFSRequest addString(String value) throws IOException {
+		Text.writeString(body, value);
+		appendText(value);
+		return this;
+	}
+
+	public AdamFSRequest addLong(long value) throws IOException {
+		WritableUtils.writeVLong(body, value);
+		appendText(Long.toString(value));
+		return this;
+	}
+
+	public AdamFSRequest addBoolean(boolean value) throws IOException {
+		body.writeBoolean(value);
+		appendText(value ? "1" : "0");
+		return this;
+	}
+
+	/**
+	 * Add an entry to a COMPOUND request: flags, the op code and the fields
+	 * of request. Binary only.
+	 */
+	public AdamFSRequest addRequest(AdamFSRequest request, int flags) throws IOException {
+		WritableUtils.writeVInt(body, flags);
+		WritableUtils.writeVInt(body, request.opcode);
+		WritableUtils.writeVInt(body, request.body.getLength());
+		body.write(request.body.getData(), 0, request.body.getLength());
+		return this;
+	}
+
+	private void appendText(String value) {
+		if (text.length() > 0) {
+			text.append(':');
+		}
+		text.append(value);
+	}
+
+	public int getOpcode() {
+		return opcode;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Version 1 form: op code then the fields separated by ':'. Range reads
+	 * are the exception, they are sent as a bare "position:length".
+	 */
+	public String toText() {
+		if (opcode == AdamFSProtocol.OP_READ) {
+			return text.toString();
+		}
+		return AdamFSProtocol.opcodeText(opcode) + text;
+	}
+
+	/** Version 2 form, see {@link AdamFSProtocol}. Does not flush. */
+	public void writeFrame(DataOutputStream out) throws IOException {
+		writeFrame(out, 0);
+	}
+
+	/**
+	 * Version 2 form for a request that carries dataLength raw bytes after
+	 * its fields; the caller writes them right after this.
+	 */
+	public void writeFrame(DataOutputStream out, int dataLength) throws IOException {
+		int length = 1 + WritableUtils.getVIntSize(requestId) + 1 + body.getLength() + dataLength;
+		out.writeInt(length);
+		out.writeByte(opcode);
+		WritableUtils.writeVInt(out, requestId);
+		out.writeByte(0); // status is only meaningful in replies
+		out.write(body.getData(), 0, body.getLength());
+	}
+}
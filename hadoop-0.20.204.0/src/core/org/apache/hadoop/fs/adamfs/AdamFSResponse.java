@@ -0,0 +1,177 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * One reply from the api-server. Fields are consumed in order with the
+ * next* methods, which read typed values from a binary (version 2) frame or
+ * the space separated data of a text (version 1) reply, so callers parse
+ * both protocols with the same code.
+ */
+class AdamFSResponse {
+	private final int opcode;
+	private final int requestId;
+	private final int status;
+
+	// version 2
+	private final DataInputBuffer fields;
+	private final int dataLength;
+
+	// version 1
+	private final String data;
+	private final String[] tokens;
+	private int next = 0;
+
+	private AdamFSResponse(int opcode, int requestId, int status,
+			DataInputBuffer fields, int dataLength, String data) {
+		this.opcode = opcode;
+		this.requestId = requestId;
+		this.status = status;
+		this.fields = fields;
+		this.dataLength = dataLength;
+		this.data = data;
+		if (data == null || data.length() == 0) {
+			this.tokens = new String[0];
+		} else {
+			this.tokens = data.split("[ ]");
+		}
+	}
+
+	/** Parse a version 1 reply line: op code, success code, data. */
+	static AdamFSResponse fromText(String line) {
+		if (line.length() < 3) {
+			return new AdamFSResponse(-1, 0, AdamFSProtocol.STATUS_FAILURE, null, 0, null);
+		}
+		int opcode;
+		try {
+			opcode = Integer.parseInt(line.substring(0, 2));
+		} catch (NumberFormatException e) {
+			opcode = -1;
+		}
+		int status = line.substring(2, 3).compareTo("1") == 0
+				? AdamFSProtocol.STATUS_SUCCESS : AdamFSProtocol.STATUS_FAILURE;
+		return new AdamFSResponse(opcode, 0, status, null, 0, line.substring(3));
+	}
+
+	/** Parse a version 2 frame body (everything after the length). */
+	static AdamFSResponse fromFrame(byte[] frame, int length) throws IOException {
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(frame, length);
+		int opcode = in.readUnsignedByte();
+		int requestId = WritableUtils.readVInt(in);
+		int status = in.readUnsignedByte();
+		return new AdamFSResponse(opcode, requestId, status, in, 0, null);
+	}
+
+	/**
+	 * A version 2 reply whose payload is raw file bytes still waiting on the
+	 * connection; only the header has been read.
+	 */
+	static AdamFSResponse fromHeader(int opcode, int requestId, int status,
+			int dataLength) {
+		return new AdamFSResponse(opcode, requestId, status, null, dataLength, null);
+	}
+
+	public int getOpcode() {
+		return opcode;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public boolean isSuccess() {
+		return status == AdamFSProtocol.STATUS_SUCCESS;
+	}
+
+	/** Number of raw data bytes following a header-only reply. */
+	public int getDataLength() {
+		return dataLength;
+	}
+
+	/** Raw data of a version 1 reply, for logging. */
+	public String getData() {
+		return data == null ? "" : data;
+	}
+
+	public boolean hasMore() {
+		if (fields != null) {
+			return fields.getPosition() < fields.getLength();
+		}
+		return next < tokens.length;
+	}
+
+	public String nextString() throws IOException {
+		if (fields != null) {
+			return Text.readString(fields);
+		}
+		return nextToken();
+	}
+
+	public long nextLong() throws IOException {
+		if (fields != null) {
+			return WritableUtils.readVLong(fields);
+		}
+		try {
+			return Long.parseLong(nextToken());
+		} catch (NumberFormatException e) {
+			throw new IOException("<AdamFS> malformed reply: " + data);
+		}
+	}
+
+	/**
+	 * The reply of the next entry that ran in a COMPOUND reply, for the
+	 * entry that sent opcode.
+	 */
+	public AdamFSResponse nextResponse(int opcode) throws IOException {
+		if (fields == null) {
+			throw new IOException("<AdamFS> compound replies need protocol version 2");
+		}
+		int status = WritableUtils.readVInt(fields);
+		int length = WritableUtils.readVInt(fields);
+		if (length < 0 || length > fields.getLength() - fields.getPosition()) {
+			throw new IOException("<AdamFS> malformed compound reply: entry of " + length + " bytes");
+		}
+		byte[] entry = new byte[length];
+		fields.readFully(entry);
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(entry, length);
+		return new AdamFSResponse(opcode, requestId, status, in, 0, null);
+	}
+
+	public boolean nextBoolean() throws IOException {
+		if (fields != null) {
+			return fields.readBoolean();
+		}
+		return nextToken().compareTo("1") == 0;
+	}
+
+	/** Binary replies send the permission bits, text replies "rwxr-xr-x". */
+	public FsPermission nextPermission() throws IOException {
+		if (fields != null) {
+			return new FsPermission((short) WritableUtils.readVInt(fields));
+		}
+		String token = nextToken();
+		try {
+			return new FsPermission(token);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("<AdamFS> malformed reply: " + data);
+		}
+	}
+
+	private String nextToken() throws IOException {
+		if (next >= tokens.length) {
+			throw new IOException("<AdamFS> reply is missing fields: " + data);
+		}
+		return tokens[next++];
+	}
+}
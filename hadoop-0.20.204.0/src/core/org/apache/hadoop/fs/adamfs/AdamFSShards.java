@@ -0,0 +1,135 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.MD5Hash;
+
+/**
+ * The api-servers behind one adamfs URI, each with a connection pool of its
+ * own.
+ *
+ * By default that is the one server named by the URI's authority, on port
+ * {@link #DEFAULT_PORT} if the URI has none, and {@link #DEFAULT_HOST} for
+ * a URI without an authority (adamfs:///). fs.adamfs.endpoints.&lt;authority&gt;,
+ * or fs.adamfs.endpoints for every adamfs URI, lists several servers as
+ * host:port,... and spreads files over them with consistent hashing:
+ * every server gets fs.adamfs.endpoints.virtual.nodes points on a hash
+ * ring, and a file belongs to the server of the first point at or after
+ * the hash of its name. Adding a server to a list of N moves about 1/(N+1)
+ * of the files.
+ *
+ * The name, not the whole path, picks the server. Directories exist on
+ * every server, so renaming one (which is how MapReduce commits task
+ * output) renames it on each server and no file has to move; only renaming
+ * a file to a name owned by another server copies its data. Listings of a
+ * directory are merged from all servers.
+ */
+class AdamFSShards {
+
+	public static final String ENDPOINTS_KEY = "fs.adamfs.endpoints";
+	public static final String VIRTUAL_NODES_KEY = "fs.adamfs.endpoints.virtual.nodes";
+	public static final int VIRTUAL_NODES_DEFAULT = 128;
+	public static final String DEFAULT_HOST = "localhost";
+	public static final int DEFAULT_PORT = 9999;
+
+	private final String[] endpoints;
+	private final AdamFSConnectionPool[] pools;
+	private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+	AdamFSShards(URI uri, Configuration conf) throws IOException {
+		String list = uri.getAuthority() == null ? null
+				: conf.get(ENDPOINTS_KEY + "." + uri.getAuthority());
+		if (list == null) {
+			list = conf.get(ENDPOINTS_KEY);
+		}
+		if (list == null) {
+			list = (uri.getHost() == null ? DEFAULT_HOST : uri.getHost()) + ":"
+					+ (uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+		}
+		List<String> parsed = new ArrayList<String>();
+		for (String endpoint : list.split(",")) {
+			if (endpoint.trim().length() > 0) {
+				parsed.add(endpoint.trim());
+			}
+		}
+		if (parsed.isEmpty()) {
+			throw new IOException("<AdamFS:ENDPOINTS> no api-server in " + ENDPOINTS_KEY);
+		}
+		endpoints = parsed.toArray(new String[parsed.size()]);
+		pools = new AdamFSConnectionPool[endpoints.length];
+		int virtualNodes = Math.max(1, conf.getInt(VIRTUAL_NODES_KEY, VIRTUAL_NODES_DEFAULT));
+		for (int i = 0; i < endpoints.length; i++) {
+			String endpoint = endpoints[i];
+			int colon = endpoint.lastIndexOf(':');
+			String host = colon < 0 ? endpoint : endpoint.substring(0, colon);
+			int port = DEFAULT_PORT;
+			if (colon >= 0) {
+				try {
+					port = Integer.parseInt(endpoint.substring(colon + 1));
+				} catch (NumberFormatException e) {
+					throw new IOException("<AdamFS:ENDPOINTS> bad port in " + endpoint);
+				}
+			}
+			pools[i] = new AdamFSConnectionPool(host, port, conf);
+			for (int v = 0; v < virtualNodes; v++) {
+				ring.put(MD5Hash.digest(host + ":" + port + "#" + v).halfDigest(), i);
+			}
+		}
+	}
+
+	/** Number of api-servers. */
+	public int size() {
+		return pools.length;
+	}
+
+	public boolean isSharded() {
+		return pools.length > 1;
+	}
+
+	public AdamFSConnectionPool get(int shard) {
+		return pools[shard];
+	}
+
+	/** host:port of a server, as configured. */
+	public String getEndpoint(int shard) {
+		return endpoints[shard];
+	}
+
+	/** The server that owns the file at path. */
+	public int shardFor(String path) {
+		if (pools.length == 1) {
+			return 0;
+		}
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		Map.Entry<Long, Integer> point = ring.ceilingEntry(MD5Hash.digest(name).halfDigest());
+		return (point != null ? point : ring.firstEntry()).getValue();
+	}
+
+	/** Pool of the server that owns the file at path. */
+	public AdamFSConnectionPool forPath(String path) {
+		return pools[shardFor(path)];
+	}
+
+	public void setProtocolVersion(int version) {
+		for (AdamFSConnectionPool pool : pools) {
+			pool.setProtocolVersion(version);
+		}
+	}
+
+	/** Protocol version all servers speak; they are kept on the same one. */
+	public int getProtocolVersion() {
+		return pools[0].getProtocolVersion();
+	}
+
+	public void close() {
+		for (AdamFSConnectionPool pool : pools) {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Bounded LRU cache of LOOKUP results, keyed by absolute path string.
+ *
+ * Entries live for fs.adamfs.cache.ttl ms. Paths the server said do not
+ * exist are remembered too (negative entries, fs.adamfs.cache.negative.ttl
+ * ms) since create() and mkdirs() probe the same missing paths repeatedly.
+ * AdamFileSystem invalidates entries on its own create, delete, rename and
+ * mkdirs; changes made by other clients show up once the TTL runs out.
+ */
+class AdamFSStatusCache {
+
+	public static final String CACHE_ENABLED_KEY = "fs.adamfs.cache.enabled";
+	public static final boolean CACHE_ENABLED_DEFAULT = true;
+	public static final String CACHE_SIZE_KEY = "fs.adamfs.cache.size";
+	public static final int CACHE_SIZE_DEFAULT = 10000;
+	public static final String CACHE_TTL_KEY = "fs.adamfs.cache.ttl";
+	public static final long CACHE_TTL_DEFAULT = 5000; // ms
+	public static final String CACHE_NEGATIVE_TTL_KEY = "fs.adamfs.cache.negative.ttl";
+	public static final long CACHE_NEGATIVE_TTL_DEFAULT = 1000; // ms
+
+	private static class CachedStatus {
+		final FileStatus status; // null for a path that does not exist
+		final long expires;
+
+		CachedStatus(FileStatus status, long expires) {
+			this.status = status;
+			this.expires = expires;
+		}
+	}
+
+	/** Result of a lookup that found a negative entry. */
+	static final FileStatus MISSING = new FileStatus();
+
+	private final long ttl;
+	private final long negativeTtl;
+	private final LinkedHashMap<String, CachedStatus> entries;
+
+	private long hits = 0;
+	private long negativeHits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	AdamFSStatusCache(Configuration conf) {
+		final int maxSize = Math.max(1, conf.getInt(CACHE_SIZE_KEY, CACHE_SIZE_DEFAULT));
+		this.ttl = conf.getLong(CACHE_TTL_KEY, CACHE_TTL_DEFAULT);
+		this.negativeTtl = conf.getLong(CACHE_NEGATIVE_TTL_KEY, CACHE_NEGATIVE_TTL_DEFAULT);
+		// access order, so the eldest entry is the least recently used
+		this.entries = new LinkedHashMap<String, CachedStatus>(Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatus> eldest) {
+				if (size() > maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached status, {@link #MISSING} for a negative entry, or
+	 *         null if nothing (unexpired) is cached
+	 */
+	public synchronized FileStatus get(String path) {
+		CachedStatus entry = entries.get(path);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (entry.expires <= System.currentTimeMillis()) {
+			entries.remove(path);
+			misses++;
+			return null;
+		}
+		if (entry.status == null) {
+			negativeHits++;
+			return MISSING;
+		}
+		hits++;
+		return entry.status;
+	}
+
+	public synchronized void put(String path, FileStatus status) {
+		if (ttl > 0) {
+			entries.put(path, new CachedStatus(status, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	public synchronized void putMissing(String path) {
+		if (negativeTtl > 0) {
+			entries.put(path, new CachedStatus(null, System.currentTimeMillis() + negativeTtl));
+		}
+	}
+
+	/**
+	 * Forget a path that was just created or changed, and its ancestors,
+	 * which may have been cached as missing or now have a new mod time.
+	 */
+	public synchronized void invalidate(String path) {
+		Path p = new Path(path);
+		while (p != null) {
+			entries.remove(p.toUri().getPath());
+			p = p.getParent();
+		}
+		entries.remove(path);
+	}
+
+	/** Forget a path, everything under it, and its ancestors. */
+	public synchronized void invalidateTree(String path) {
+		invalidate(path);
+		String prefix = path.endsWith("/") ? path : path + "/";
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getNegativeHits() {
+		return negativeHits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,161 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Lists many directories of an {@link AdamFileSystem} at once, at most
+ * fs.adamfs.list.concurrency at a time, and hands out what they hold as
+ * the listings arrive. Recursive walks list every directory as soon as its
+ * parent's listing names it, so a tree takes about as many round trips as
+ * it is deep, not as many as it has directories.
+ *
+ * Entries come in no particular order. Listers run ahead of the consumer
+ * and keep what it has not taken yet; a directory that is deleted during
+ * the walk is skipped, any other failure ends the walk and is thrown by
+ * hasNext().
+ */
+class AdamFSTreeWalker implements AdamFSRemoteIterator<FileStatus> {
+
+	public static final String LIST_CONCURRENCY_KEY = "fs.adamfs.list.concurrency";
+	public static final int LIST_CONCURRENCY_DEFAULT = 16;
+
+	private final AdamFileSystem fs;
+	private final Executor executor;
+	private final int concurrency;
+	private final boolean recursive;
+	private final boolean directories;
+
+	// guarded by this
+	private final LinkedList<Path> waiting = new LinkedList<Path>(); // to be listed
+	private final LinkedList<FileStatus> found = new LinkedList<FileStatus>();
+	private int running = 0;
+	private IOException error = null;
+
+	/**
+	 * @param recursive list the directories found as well
+	 * @param directories hand out directories, not only files
+	 */
+	AdamFSTreeWalker(AdamFileSystem fs, Executor executor, int concurrency,
+			boolean recursive, boolean directories) {
+		this.fs = fs;
+		this.executor = executor;
+		this.concurrency = Math.max(1, concurrency);
+		this.recursive = recursive;
+		this.directories = directories;
+	}
+
+	/** Hand out an entry that needs no listing, e.g. a file the walk starts at. */
+	synchronized void add(FileStatus status) {
+		found.addLast(status);
+	}
+
+	/** Start listing a directory. */
+	synchronized void list(Path dir) throws IOException {
+		if (running < concurrency) {
+			running++;
+			try {
+				executor.execute(new Lister(dir));
+			} catch (RejectedExecutionException e) {
+				running--;
+				throw new IOException("<AdamFS:TREEWALKER> file system is closed");
+			}
+		} else {
+			waiting.addLast(dir);
+		}
+	}
+
+	public synchronized boolean hasNext() throws IOException {
+		while (found.isEmpty() && error == null && running > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("<AdamFS:TREEWALKER> interrupted waiting for a listing");
+			}
+		}
+		if (found.isEmpty() && error != null) {
+			throw error;
+		}
+		return !found.isEmpty();
+	}
+
+	public synchronized FileStatus next() throws IOException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return found.removeFirst();
+	}
+
+	/** Lists one directory, then whatever is waiting, until nothing is. */
+	private class Lister implements Runnable {
+		private Path dir;
+
+		Lister(Path dir) {
+			this.dir = dir;
+		}
+
+		public void run() {
+			while (dir != null) {
+				FileStatus[] children = null;
+				IOException failure = null;
+				try {
+					children = fs.list_status(dir);
+				} catch (FileNotFoundException e) {
+					children = new FileStatus[0]; // deleted since its parent was listed
+				} catch (IOException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					// e.g. a malformed reply; still let the waiters go
+					failure = new IOException("<AdamFS:TREEWALKER> listing " + dir + " failed: " + e);
+					failure.initCause(e);
+				}
+				synchronized (AdamFSTreeWalker.this) {
+					if (failure != null && error == null) {
+						error = failure;
+						waiting.clear();
+					}
+					if (children != null && error == null) {
+						for (FileStatus child : children) {
+							if (!child.isDir()) {
+								found.addLast(child);
+								continue;
+							}
+							if (directories) {
+								found.addLast(child);
+							}
+							if (recursive) {
+								waiting.addLast(child.getPath());
+							}
+						}
+					}
+					dir = waiting.poll();
+					// hand what is left to idle capacity
+					while (dir != null && !waiting.isEmpty() && running < concurrency) {
+						Path next = waiting.removeLast();
+						running++;
+						try {
+							executor.execute(new Lister(next));
+						} catch (RejectedExecutionException e) {
+							running--;
+							waiting.addLast(next);
+							break;
+						}
+					}
+					if (dir == null) {
+						running--;
+					}
+					AdamFSTreeWalker.this.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * One vectored read of {@link AdamFSInputStream}: many ranges of a file,
+ * as columnar readers ask for them (the footer, then scattered column
+ * chunks), in a handful of round trips instead of one per range.
+ *
+ * The ranges are sorted and merged: a range that starts within
+ * fs.adamfs.vectored.merge.gap bytes of the end of the one before is read
+ * with it, gap included, as long as the merged read stays within
+ * fs.adamfs.vectored.merge.max bytes. The merged reads are pipelined on one
+ * read session, up to fs.adamfs.readahead.window bytes in flight, and each
+ * range's future completes as soon as the read that holds it has arrived;
+ * its buffer is a slice of the merged one.
+ */
+class AdamFSVectoredRead implements Runnable {
+
+	public static final String VECTORED_MERGE_GAP_KEY = "fs.adamfs.vectored.merge.gap";
+	public static final int VECTORED_MERGE_GAP_DEFAULT = 32 * 1024;
+	public static final String VECTORED_MERGE_MAX_KEY = "fs.adamfs.vectored.merge.max";
+	public static final int VECTORED_MERGE_MAX_DEFAULT = 1024 * 1024;
+
+	// ranges read with one READ request
+	private static class Merged {
+		final long pos;
+		int len;
+		final List<AdamFSFileRange> ranges = new ArrayList<AdamFSFileRange>();
+		long sent;
+
+		Merged(AdamFSFileRange first) {
+			pos = first.getOffset();
+			len = first.getLength();
+			ranges.add(first);
+		}
+	}
+
+	private static final Comparator<AdamFSFileRange> BY_OFFSET = new Comparator<AdamFSFileRange>() {
+		public int compare(AdamFSFileRange a, AdamFSFileRange b) {
+			return a.getOffset() < b.getOffset() ? -1 : a.getOffset() > b.getOffset() ? 1 : 0;
+		}
+	};
+
+	private final AdamFSInputStream stream;
+	private final List<Merged> reads = new ArrayList<Merged>();
+	private final long window;
+
+	/**
+	 * Ranges past the end of the file fail right away, empty ones complete
+	 * right away; the rest are merged for {@link #run}.
+	 */
+	AdamFSVectoredRead(AdamFSInputStream stream, List<? extends AdamFSFileRange> ranges,
+			long fileLength, int gap, int maxMerged, long window) {
+		this.stream = stream;
+		this.window = Math.max(1, window);
+		List<AdamFSFileRange> sorted = new ArrayList<AdamFSFileRange>(ranges);
+		Collections.sort(sorted, BY_OFFSET);
+		Merged last = null;
+		for (AdamFSFileRange range : sorted) {
+			if (range.getOffset() + range.getLength() > fileLength) {
+				range.getData().setException(new EOFException(
+						"<AdamFS:VECTORED> range " + range + " is past the end of the file"));
+				continue;
+			}
+			if (range.getLength() == 0) {
+				range.getData().set(ByteBuffer.allocate(0));
+				continue;
+			}
+			long end = range.getOffset() + range.getLength();
+			if (last != null && range.getOffset() <= last.pos + last.len + gap
+					&& Math.max(end, last.pos + last.len) - last.pos <= maxMerged) {
+				last.len = (int) (Math.max(end, last.pos + last.len) - last.pos);
+				last.ranges.add(range);
+			} else {
+				last = new Merged(range);
+				reads.add(last);
+			}
+		}
+	}
+
+	/** Number of READ requests the ranges were merged into. */
+	int getReadCount() {
+		return reads.size();
+	}
+
+	public void run() {
+		if (reads.isEmpty()) {
+			return;
+		}
+		AdamFSConnection session = null;
+		int next = 0;
+		try {
+			session = stream.borrow_pread_session();
+			LinkedList<Merged> inflight = new LinkedList<Merged>();
+			long inflightBytes = 0;
+			while (next < reads.size() || !inflight.isEmpty()) {
+				if (next < reads.size() && (inflight.isEmpty() || inflightBytes < window)) {
+					Merged read = reads.get(next++);
+					read.sent = System.nanoTime();
+					stream.request_range(session, read.pos, read.len);
+					inflight.addLast(read);
+					inflightBytes += read.len;
+					continue;
+				}
+				Merged read = inflight.removeFirst();
+				inflightBytes -= read.len;
+				ByteBuffer data = ByteBuffer.allocate(read.len);
+				int n = stream.receive_range(session, read.pos, read.len, data, read.sent);
+				if (n < read.len) {
+					if (session.isBroken()) {
+						throw new IOException("<AdamFS:VECTORED> connection closed mid-read");
+					}
+					// the file shrank; the session is still in step
+					fail(read, new EOFException("<AdamFS:VECTORED> end of file reached at "
+							+ (read.pos + Math.max(0, n))));
+					continue;
+				}
+				stream.count_read(n);
+				for (AdamFSFileRange range : read.ranges) {
+					ByteBuffer slice = data.duplicate();
+					slice.position((int) (range.getOffset() - read.pos));
+					slice.limit(slice.position() + range.getLength());
+					range.getData().set(slice.slice());
+				}
+			}
+		} catch (IOException e) {
+			if (session != null) {
+				session.markBroken(); // replies may still be on the wire
+			}
+			for (Merged read : reads) {
+				fail(read, e);
+			}
+		} finally {
+			if (session != null) {
+				stream.release_pread_session(session);
+			}
+		}
+	}
+
+	private static void fail(Merged read, IOException e) {
+		for (AdamFSFileRange range : read.ranges) {
+			range.getData().setException(e); // no-op for ranges already done
+		}
+	}
+}
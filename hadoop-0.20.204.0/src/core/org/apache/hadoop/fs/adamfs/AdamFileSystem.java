@@ -1,21 +1,44 @@
 package org.apache.hadoop.fs.adamfs;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.Progressable;
 
 public class AdamFileSystem extends FileSystem {
@@ -32,9 +55,27 @@ public class AdamFileSystem extends FileSystem {
 	private Path workingDir;
 	private static String fs_default_name;
 
-	private Socket apiSocket = null;
-	private PrintWriter out = null;
-	private BufferedReader in = null;
+	public static final String LIST_PAGE_SIZE_KEY = "fs.adamfs.list.page.size";
+	public static final int LIST_PAGE_SIZE_DEFAULT = 1000;
+	public static final String DELETE_BATCH_SIZE_KEY = "fs.adamfs.delete.batch.size";
+	public static final int DELETE_BATCH_SIZE_DEFAULT = 1000;
+	public static final String PARALLEL_ENABLED_KEY = "fs.adamfs.parallel.enabled";
+	public static final boolean PARALLEL_ENABLED_DEFAULT = true;
+	public static final String PARALLEL_THRESHOLD_KEY = "fs.adamfs.parallel.threshold";
+	public static final long PARALLEL_THRESHOLD_DEFAULT = 64 * 1024 * 1024;
+	public static final String PARALLEL_PART_SIZE_KEY = "fs.adamfs.parallel.part.size";
+	public static final int PARALLEL_PART_SIZE_DEFAULT = 8 * 1024 * 1024;
+	public static final String PARALLEL_CONCURRENCY_KEY = "fs.adamfs.parallel.concurrency";
+	public static final int PARALLEL_CONCURRENCY_DEFAULT = 4;
+
+	private AdamFSShards shards = null; // one pool per api-server
+	private Set<String> capabilities = AdamFSProtocol.NO_CAPABILITIES;
+	private AdamFSCompression.Policy compression = null;
+	private AdamFSStatusCache statusCache = null; // null if disabled
+	private AdamFSLocationCache locationCache = null;
+	private AdamFSBlockCache blockCache = null; // JVM wide, null if disabled
+	private ExecutorService transfers = null; // part uploads and downloads
+	private static final AdamFSMetrics METRICS = AdamFSMetrics.get();
 
 	AdamFileSystem() throws UnknownHostException, IOException {
 		//LOG.info("<AdamFS> AdamFileSystem constructor called");
@@ -50,16 +91,98 @@ public class AdamFileSystem extends FileSystem {
 		setConf(conf);
 		fs_default_name = conf.get("fs.default.name", "file:///");
 		//LOG.info("<AdamFS> fs.default.name: " + fs_default_name);
-		this.uri = URI.create(uri.getScheme() + "://" + uri.getAuthority());
+		this.uri = uri.getAuthority() == null ? URI.create(uri.getScheme() + ":///")
+				: URI.create(uri.getScheme() + "://" + uri.getAuthority());
 		//LOG.info("<AdamFS> uri at initialize: " + uri);
 		// conf.set("mapred.system.dir", "/home/adam/hadoop/AdamFS/temp");
 		this.workingDir = new Path("/user", System.getProperty("user.name"))
 				.makeQualified(this);
 		//LOG.info("<AdamFS> workingDir: " + this.workingDir);
 		statistics = getStatistics(uri.getScheme(), getClass());
-		initiate_connection();
-		out.println("AdamFS SAYS HI, URI: "+this.uri);
-		close_connection();
+		shards = new AdamFSShards(this.uri, conf);
+		if (conf.getBoolean(AdamFSStatusCache.CACHE_ENABLED_KEY,
+				AdamFSStatusCache.CACHE_ENABLED_DEFAULT)) {
+			statusCache = new AdamFSStatusCache(conf);
+		}
+		locationCache = new AdamFSLocationCache(conf);
+		blockCache = AdamFSBlockCache.get(conf);
+		transfers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Daemon(r);
+				t.setName("AdamFS transfer " + t.getId());
+				return t;
+			}
+		});
+		if (conf.getBoolean(AdamFSMetrics.METRICS_ENABLED_KEY, AdamFSMetrics.METRICS_ENABLED_DEFAULT)) {
+			AdamFSMetrics.register();
+		}
+		negotiate_protocol(conf);
+	}
+
+	/**
+	 * Say hello and agree on a protocol version. The hello always goes out in
+	 * text; if we offer version 2 we also wait briefly for a "HI" reply.
+	 * Servers that predate version 2 just hang up (or stay silent until the
+	 * timeout), and then we keep talking the text protocol. With several
+	 * api-servers every one is asked, and we use the lowest version and the
+	 * capabilities they all have.
+	 */
+	private void negotiate_protocol(Configuration conf) throws IOException {
+		int wanted = conf.getInt(AdamFSProtocol.PROTOCOL_VERSION_KEY,
+				AdamFSProtocol.PROTOCOL_VERSION_DEFAULT);
+		int version = wanted;
+		Set<String> common = null;
+		for (int i = 0; i < shards.size(); i++) {
+			String reply = say_hello(shards.get(i), wanted, conf);
+			version = Math.min(version, reply == null ? AdamFSProtocol.VERSION_TEXT
+					: AdamFSProtocol.parseHelloVersion(reply, wanted));
+			if (common == null) {
+				common = new HashSet<String>(AdamFSProtocol.parseHelloCapabilities(reply));
+			} else {
+				common.retainAll(AdamFSProtocol.parseHelloCapabilities(reply));
+			}
+		}
+		version = Math.max(AdamFSProtocol.VERSION_TEXT, version);
+		if (version >= AdamFSProtocol.VERSION_BINARY) {
+			capabilities = common;
+		}
+		shards.setProtocolVersion(version);
+		compression = new AdamFSCompression.Policy(conf, version, capabilities);
+		//LOG.info("<AdamFS> protocol version: " + version + ", capabilities: " + capabilities);
+	}
+
+	/** The server's reply to our hello, null if it is too old to send one. */
+	private String say_hello(AdamFSConnectionPool pool, int wanted, Configuration conf)
+			throws IOException {
+		AdamFSConnection conn = pool.borrowFresh(); // pool starts out at version 1
+		try {
+			if (wanted < AdamFSProtocol.VERSION_BINARY) {
+				conn.send_line(AdamFSProtocol.HELLO + this.uri);
+				return null;
+			}
+			conn.send_line(AdamFSProtocol.HELLO + this.uri
+					+ AdamFSProtocol.HELLO_VERSION + wanted);
+			conn.setReadTimeout(conf.getInt(AdamFSProtocol.HELLO_TIMEOUT_KEY,
+					AdamFSProtocol.HELLO_TIMEOUT_DEFAULT));
+			return conn.get_response();
+		} catch (IOException e) {
+			// timed out or reset, an old server
+			//LOG.info("<AdamFS> no hello reply, using text protocol");
+			return null;
+		} finally {
+			pool.invalidate(conn); // the server hangs up after the hello
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		if (transfers != null) {
+			transfers.shutdown();
+		}
+		if (shards != null) {
+			shards.close();
+		}
 	}
 
 	@Override
@@ -67,43 +190,136 @@ public class AdamFileSystem extends FileSystem {
 		//LOG.info("<AdamFS:open>");
 		//LOG.info("<AdamFS:open> opening stream for file: " + f);
 		Path abs_path = makeAbsolute(f);
+		statistics.incrementReadOps(1);
+		long trips = METRICS.threadRoundTrips();
+		if (blockCache != null) {
+			// small files are read through the JVM wide cache, which needs
+			// the modification time; the session waits for the first miss
+			FileStatus fstat = getFileStatus(f);
+			if (!fstat.isDir() && blockCache.accepts(fstat.getLen())) {
+				String path = abs_path.toString();
+				AdamFSCompression codec = compression.forPath(path);
+				AdamFSInputStream in = new AdamFSInputStream(this.fs_default_name.toString(),
+						shards.forPath(path), path, fstat.getLen(), fstat.getModificationTime(),
+						codec != null && codec.isEnabled() ? codec : null, blockCache,
+						qualify(path).toString(),
+						getConf(), transfers, statistics);
+				METRICS.streamOpened(METRICS.threadRoundTrips() - trips);
+				return new AdamFSDataInputStream(in);
+			}
+		}
 		// Tell file system api-server to stream data this way
-		initiate_connection();
-		send_command("07", abs_path.toString()); // RP1
-		String response = get_response(); // RP4
-		// Don't close the socket connect, Hadoop will close it after inputstream ends
-		// Parse the response
-		String resp_id = response.substring(0, 2);
-		String success_code = response.substring(2, 3); // did we open the file?
-		String data = response.substring(3, response.length()); // total file length
-		//log_response(resp_id, success_code, data, "open");
-		if (success_code.compareTo("1") == 0) {
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_OPEN)
+				.addString(abs_path.toString());
+		AdamFSCompression codec = compression.forPath(abs_path.toString());
+		if (codec != null && codec.isEnabled()) {
+			request.addString(codec.getName()); // offer compressed replies
+		}
+		AdamFSConnectionPool pool = shards.forPath(abs_path.toString());
+		AdamFSConnection conn = pool.borrowForStream();
+		AdamFSResponse response = send_get(conn, request); // RP1, RP4
+		if (response == null) { // stale pooled connection, retry on a new one
+			pool.invalidate(conn);
+			conn = pool.borrowFresh();
+			response = send_get(conn, request);
+		}
+		if (response == null) {
+			pool.invalidate(conn);
+			throw new IOException("<AdamFS:open> api-server closed the connection");
+		}
+		// Don't release the connection, the inputstream gives it back to the pool when it closes
+		//log_response(response, "open");
+		if (response.isSuccess()) { // did we open the file?
 			//LOG.info("<AdamFS:open> "+f.toString()+" opened");
 			//LOG.info("<AdamFS:open> reading data in from AdamFSInputStream");
+			long length = response.nextLong(); // *** RP5 *** total file length
+			if (codec != null && codec.isEnabled() && response.hasMore()
+					&& codec.getName().equals(response.nextString())) {
+				conn.setCompression(codec); // the server took the offer
+			}
 			// Return the SocketInputStream
-			return new FSDataInputStream(
-					new AdamFSInputStream(this.fs_default_name.toString(),
-							this.apiSocket, Long.parseLong(data))); // *** RP5 ***
+			AdamFSInputStream in = new AdamFSInputStream(this.fs_default_name.toString(),
+					pool, conn, abs_path.toString(), length, getConf(),
+					transfers, statistics);
+			METRICS.streamOpened(METRICS.threadRoundTrips() - trips);
+			return new AdamFSDataInputStream(in);
 		} else {
 			// if the file system failed to open the file
-			close_connection();
+			pool.release(conn);
 			throw new IOException("<AdamFS:open> file system failed to open file");
 		}
 	}
 
+	/**
+	 * Upload a local file. Single files are sent with FileChannel.transferTo
+	 * on the stream create() sets up, so with fs.adamfs.nio.enabled the data
+	 * never passes through the Java heap. Directories take the generic path.
+	 */
+	@Override
+	public void copyFromLocalFile(boolean delSrc, boolean overwrite, Path src, Path dst)
+			throws IOException {
+		LocalFileSystem local = getLocal(getConf());
+		File file = local.pathToFile(src);
+		if (!file.isFile()) {
+			super.copyFromLocalFile(delSrc, overwrite, src, dst);
+			return;
+		}
+		Path target = dst;
+		if (exists(dst) && getFileStatus(dst).isDir()) {
+			target = new Path(dst, src.getName());
+		}
+		FSDataOutputStream out = create(target, overwrite);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			OutputStream wrapped = out.getWrappedStream();
+			long sent = wrapped instanceof AdamFSParallelOutputStream
+					? ((AdamFSParallelOutputStream) wrapped).transferFrom(channel, 0, length)
+					: ((AdamFSOutputStream) wrapped).transferFrom(channel, 0, length);
+			if (sent < length) {
+				throw new IOException("<AdamFS:copyFromLocalFile> " + file + " shrank while copying");
+			}
+			statistics.incrementBytesWritten(sent);
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeStream(out);
+			in.close();
+		}
+		if (delSrc) {
+			local.delete(src, false);
+		}
+	}
+
 	@Override
 	// Create a new file and open an FSDataOutputStream that's connected to it.
 	public FSDataOutputStream create(Path f, FsPermission permission,
 			boolean overwrite, int bufferSize, short replication, long blockSize,
 			Progressable progress) throws IOException {
+		statistics.incrementWriteOps(1);
+		long trips = METRICS.threadRoundTrips();
+		FSDataOutputStream out = create_stream(f, permission, overwrite, bufferSize,
+				replication, blockSize, progress);
+		METRICS.streamCreated(METRICS.threadRoundTrips() - trips);
+		return out;
+	}
+
+	private FSDataOutputStream create_stream(Path f, FsPermission permission,
+			boolean overwrite, int bufferSize, short replication, long blockSize,
+			Progressable progress) throws IOException {
 		//LOG.info("<AdamFS:create>");
 		//LOG.info("<AdamFS:create> file: "+f);
 		// What does a Progressable do?
 		
 		Path abs_path = makeAbsolute(f);
-		String response = null;
-		String resp_id = null;
-		String success_code = null;
+		AdamFSConnectionPool pool = shards.forPath(abs_path.toString());
+		AdamFSResponse response = null;
+		boolean success = false;
+		if (pool.getProtocolVersion() >= AdamFSProtocol.VERSION_BINARY
+				&& capabilities.contains(AdamFSProtocol.CAP_COMPOUND)) {
+			return create_compound(f, abs_path.toString(), pool, overwrite);
+		}
 		
 		// Step 1: existence test
 		boolean exists = exists(f);
@@ -123,7 +339,7 @@ public class AdamFileSystem extends FileSystem {
 			// get the parent path
 			Path parent = abs_path.getParent();
 			if (parent != null) {
-				if (!this.mkdirs(new Path("adamfs", "localhost:9999", parent.toString()), permission)) {
+				if (!this.mkdirs(qualify(parent.toString()), permission)) {
 					throw new IOException("<AdamFS:create> error creating directory: " + f.toString());
 				}
 			}
@@ -132,37 +348,56 @@ public class AdamFileSystem extends FileSystem {
 		// Step 3: open the file for writing
 		// create file to write to if it doesn't exist already
 		if (!exists) {
-			response = init_send_get_close("05", abs_path.toString()); // CREATE FILE
-			// Parse the response
-			resp_id = response.substring(0, 2);
-			success_code = response.substring(2, 3);
-			//log_response(resp_id, success_code, "", "create");
+			response = init_send_get_close(pool, new AdamFSRequest(AdamFSProtocol.OP_CREATE)
+					.addString(abs_path.toString())); // CREATE FILE
+			success = response.isSuccess();
+			invalidate_status(abs_path.toString());
+			//log_response(response, "create");
 		} else {
 			// file exists and is enabled to overwrite
-			success_code = "1"; // go ahead and begin streaming
+			success = true; // go ahead and begin streaming
+		}
+		// Servers that take writes at an offset get the parts uploaded in
+		// parallel; the file is only final once the stream commits it
+		if (success && use_parallel_write(pool)) {
+			return parallel_stream(pool, abs_path.toString());
 		}
 		// If the file was created, write to it
-		if (success_code.compareTo("1") == 0) { // success_code 1
+		if (success) { // success_code 1
 			//LOG.info("<Adamfs:create> successfully created file: "+abs_path.toString()+" for OutputStream");
 			// Step 4: create and return the stream
 			// Send a command to api-server indicating Hadoop is going to
 			// stream bytes. Design api-server to receive command,
 			// then process streamed bytes in a loop until outstream closes. 
-			initiate_connection();
-			send_command("06", abs_path.toString()); // SETUP WRITE
-			response = get_response();
-			// Don't close socket connection, it will get closed by the OutputStream
-			// Parse the response
-			resp_id = response.substring(0, 2);
-			success_code = response.substring(2, 3);
-			//log_response(resp_id, success_code, "", "create");
-			if (success_code.compareTo("1") == 0) {
+			// Servers that can ack chunks get the framed write instead.
+			boolean chunked = pool.getProtocolVersion() >= AdamFSProtocol.VERSION_BINARY
+					&& capabilities.contains(AdamFSProtocol.CAP_CHUNKED_WRITE);
+			AdamFSRequest request = new AdamFSRequest(chunked
+					? AdamFSProtocol.OP_WRITE_OPEN : AdamFSProtocol.OP_SETUP_WRITE)
+					.addString(abs_path.toString());
+			AdamFSConnection conn = pool.borrowForStream();
+			response = send_get(conn, request); // SETUP WRITE
+			if (response == null) { // stale pooled connection, retry on a new one
+				pool.invalidate(conn);
+				conn = pool.borrowFresh();
+				response = send_get(conn, request);
+			}
+			if (response == null) {
+				pool.invalidate(conn);
+				throw new IOException("<AdamFS:create> api-server closed the connection");
+			}
+			// Don't release the connection, the OutputStream takes care of it
+			//log_response(response, "create");
+			if (response.isSuccess()) {
 				//LOG.info("<AdamFS:create> writing data out SocketOutputStream to file system");
 				// Return the SocketOutputStream, Hadoop will close it when done
-				return new FSDataOutputStream(new AdamFSOutputStream(
-						apiSocket.getOutputStream(), abs_path.toString()), statistics);
+				invalidate_status(abs_path.toString()); // truncated for overwrite
+				return new FSDataOutputStream(new AdamFSOutputStream(pool, conn,
+						abs_path.toString(), statusCache, chunked, 0,
+						chunked ? compression.forPath(abs_path.toString()) : null,
+						getConf()), statistics);
 			} else {
-				close_connection(); // Failed to open the file
+				pool.release(conn); // Failed to open the file
 				throw new IOException("<AdamFS:create> failed to establish connection for socket stream");
 			}
 		} else { // success_code 0
@@ -172,12 +407,188 @@ public class AdamFileSystem extends FileSystem {
 		}
 	}
 
+	/**
+	 * create() in one round trip, for servers with COMPOUND: the parent
+	 * directories, the existence check, CREATE and the write session go in
+	 * one request to the file's api-server. The parent directories are made
+	 * on the other api-servers at the same time.
+	 */
+	private FSDataOutputStream create_compound(Path f, String path, AdamFSConnectionPool pool,
+			boolean overwrite) throws IOException {
+		boolean parallel = use_parallel_write(pool);
+		boolean chunked = capabilities.contains(AdamFSProtocol.CAP_CHUNKED_WRITE);
+		Path parent = new Path(path).getParent();
+		AdamFSRequest mkdir = parent == null ? null
+				: new AdamFSRequest(AdamFSProtocol.OP_MKDIR).addString(parent.toString());
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_COMPOUND);
+		if (mkdir != null) {
+			request.addRequest(mkdir, AdamFSProtocol.COMPOUND_CONTINUE);
+		}
+		// an existing file stops the run unless it may be overwritten; either
+		// way the reply tells a file from a directory
+		request.addRequest(new AdamFSRequest(AdamFSProtocol.OP_LOOKUP).addString(path),
+				overwrite ? AdamFSProtocol.COMPOUND_CONTINUE : AdamFSProtocol.COMPOUND_NEGATE);
+		request.addRequest(new AdamFSRequest(AdamFSProtocol.OP_CREATE).addString(path),
+				AdamFSProtocol.COMPOUND_CONTINUE);
+		if (!parallel) { // parallel uploads open their own sessions
+			request.addRequest(new AdamFSRequest(chunked
+					? AdamFSProtocol.OP_WRITE_OPEN : AdamFSProtocol.OP_SETUP_WRITE)
+					.addString(path), 0);
+		}
+		// directories exist on every api-server
+		List<AdamFSFuture<AdamFSResponse>> others = new ArrayList<AdamFSFuture<AdamFSResponse>>();
+		if (mkdir != null && shards.isSharded()) {
+			int owner = shards.shardFor(path);
+			for (int s=0; s<shards.size(); s++) {
+				if (s != owner) {
+					others.add(call_async(shards.get(s), mkdir));
+				}
+			}
+		}
+
+		AdamFSConnection conn = null;
+		AdamFSResponse response;
+		if (parallel) {
+			response = init_send_get_close(pool, request);
+		} else {
+			conn = pool.borrowForStream();
+			response = send_get(conn, request);
+			if (response == null) { // stale pooled connection, retry on a new one
+				pool.invalidate(conn);
+				conn = pool.borrowFresh();
+				response = send_get(conn, request);
+			}
+			if (response == null) {
+				pool.invalidate(conn);
+				throw new IOException("<AdamFS:create> api-server closed the connection");
+			}
+		}
+		invalidate_status(path);
+		boolean opened = false;
+		try {
+			AdamFSResponse made = mkdir == null ? null : response.nextResponse(AdamFSProtocol.OP_MKDIR);
+			AdamFSResponse lookup = response.nextResponse(AdamFSProtocol.OP_LOOKUP);
+			if (lookup.isSuccess()) {
+				if (read_file_status(lookup, f).isDir()) {
+					throw new IOException("<AdamFS:create> cannot overwrite directory: " + f.toString());
+				} else if (!overwrite) {
+					throw new IOException("<AdamFS:create> cannot overwrite file : " + f.toString() +
+							"without overwrite flag set to true");
+				}
+			}
+			// the file's own server only has to have made them if the file failed
+			boolean dirs = made == null || made.isSuccess() || response.isSuccess();
+			for (AdamFSFuture<AdamFSResponse> other : others) {
+				dirs &= other.getChecked().isSuccess();
+			}
+			if (!dirs) {
+				throw new IOException("<AdamFS:create> error creating directory: " + f.toString());
+			}
+			if (!response.isSuccess()) {
+				throw new IOException("<AdamFS:create> failed to create file: " + path +
+						" for OutputStream");
+			}
+			FSDataOutputStream out = parallel ? parallel_stream(pool, path)
+					: new FSDataOutputStream(new AdamFSOutputStream(pool, conn, path, statusCache,
+							chunked, 0, chunked ? compression.forPath(path) : null, getConf()),
+							statistics);
+			opened = true;
+			return out;
+		} finally {
+			if (!opened && conn != null) {
+				if (response.isSuccess()) {
+					pool.invalidate(conn); // a write session is open on it
+				} else {
+					pool.release(conn);
+				}
+			}
+		}
+	}
+
+	private boolean use_parallel_write(AdamFSConnectionPool pool) {
+		return pool.getProtocolVersion() >= AdamFSProtocol.VERSION_BINARY
+				&& capabilities.contains(AdamFSProtocol.CAP_PARALLEL_WRITE)
+				&& getConf().getBoolean(PARALLEL_ENABLED_KEY, PARALLEL_ENABLED_DEFAULT);
+	}
+
+	private FSDataOutputStream parallel_stream(AdamFSConnectionPool pool, String path)
+			throws IOException {
+		Configuration conf = getConf();
+		return new FSDataOutputStream(new AdamFSParallelOutputStream(pool,
+				path, statusCache, transfers,
+				conf.getInt(PARALLEL_PART_SIZE_KEY, PARALLEL_PART_SIZE_DEFAULT),
+				conf.getInt(AdamFSOutputStream.WRITE_CHUNK_SIZE_KEY,
+						AdamFSOutputStream.WRITE_CHUNK_SIZE_DEFAULT),
+				conf.getInt(PARALLEL_CONCURRENCY_KEY, PARALLEL_CONCURRENCY_DEFAULT),
+				conf.getLong(PARALLEL_THRESHOLD_KEY, PARALLEL_THRESHOLD_DEFAULT),
+				compression.forPath(path)), statistics);
+	}
+
+	/**
+	 * Append to an existing file, on servers with the APPEND capability;
+	 * WRITE_APPEND sets up a chunked write session after the end of the
+	 * file. With COMPOUND the file is looked up in the same round trip.
+	 */
 	@Override
 	public FSDataOutputStream append(Path f, int bufferSize, Progressable progress)
 			throws IOException {
-		FileStatus fstat = getFileStatus(f);
-		return this.create(f, fstat.getPermission(), false, bufferSize,
-				fstat.getReplication(), fstat.getBlockSize(), progress);
+		String path = makeAbsolute(f).toString();
+		AdamFSConnectionPool pool = shards.forPath(path);
+		if (pool.getProtocolVersion() < AdamFSProtocol.VERSION_BINARY
+				|| !capabilities.contains(AdamFSProtocol.CAP_APPEND)) {
+			throw new IOException("<AdamFS:append> api-server does not support append: " + f);
+		}
+		statistics.incrementWriteOps(1);
+		boolean compound = capabilities.contains(AdamFSProtocol.CAP_COMPOUND);
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_WRITE_APPEND).addString(path);
+		if (compound) {
+			request = new AdamFSRequest(AdamFSProtocol.OP_COMPOUND)
+					.addRequest(new AdamFSRequest(AdamFSProtocol.OP_LOOKUP).addString(path), 0)
+					.addRequest(request, 0);
+		} else if (getFileStatus(f).isDir()) {
+			throw new IOException("<AdamFS:append> cannot append to directory: " + f);
+		}
+		AdamFSConnection conn = pool.borrowForStream();
+		AdamFSResponse response = send_get(conn, request);
+		if (response == null) { // stale pooled connection, retry on a new one
+			pool.invalidate(conn);
+			conn = pool.borrowFresh();
+			response = send_get(conn, request);
+		}
+		if (response == null) {
+			pool.invalidate(conn);
+			throw new IOException("<AdamFS:append> api-server closed the connection");
+		}
+		invalidate_status(path);
+		boolean opened = false;
+		try {
+			if (compound) {
+				AdamFSResponse lookup = response.nextResponse(AdamFSProtocol.OP_LOOKUP);
+				if (!lookup.isSuccess()) {
+					throw new FileNotFoundException("File does not exist: " + f);
+				} else if (read_file_status(lookup, f).isDir()) {
+					throw new IOException("<AdamFS:append> cannot append to directory: " + f);
+				}
+				response = response.nextResponse(AdamFSProtocol.OP_WRITE_APPEND);
+			}
+			if (!response.isSuccess()) {
+				throw new IOException("<AdamFS:append> failed to append to file: " + path);
+			}
+			long length = response.nextLong(); // chunks go on from here
+			FSDataOutputStream out = new FSDataOutputStream(new AdamFSOutputStream(pool, conn,
+					path, statusCache, true, length, compression.forPath(path), getConf()),
+					statistics, length);
+			opened = true;
+			return out;
+		} finally {
+			if (!opened) {
+				if (response.isSuccess()) {
+					pool.invalidate(conn); // a write session is open on it
+				} else {
+					pool.release(conn);
+				}
+			}
+		}
 	}
 
 	@Override
@@ -185,13 +596,34 @@ public class AdamFileSystem extends FileSystem {
 //		LOG.info("<AdamFS:RENAME> !!!");
 		String src_abs = makeAbsolute(src).toString();
 		String dst_abs = makeAbsolute(dst).toString();
+		statistics.incrementWriteOps(1);
 //		LOG.info("<AdamFS:RENAME> src: "+src_abs+", dst: "+dst_abs);
-		String response = init_send_get_close("09", src_abs+":"+dst_abs);
-		String resp_id = response.substring(0, 2);
-		String success_code = response.substring(2, 3);
-		//log_response(resp_id, success_code, "", "rename");
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_RENAME)
+				.addString(src_abs).addString(dst_abs);
+		AdamFSResponse response;
+		if (!shards.isSharded()) {
+			response = init_send_get_close(shards.get(0), request);
+		} else {
+			// directories exist on every server, files on the one owning their name
+			FileStatus fstat;
+			try {
+				fstat = getFileStatus(src);
+			} catch (FileNotFoundException e) {
+				return false;
+			}
+			if (fstat.isDir()) {
+				response = all_succeeded(call_all(request));
+			} else if (shards.shardFor(src_abs) != shards.shardFor(dst_abs)) {
+				return move_between_shards(src, dst);
+			} else {
+				response = init_send_get_close(shards.forPath(src_abs), request);
+			}
+		}
+		invalidate_status_tree(src_abs);
+		invalidate_status_tree(dst_abs);
+		//log_response(response, "rename");
 		boolean result = false;
-		if (success_code.compareTo("1") == 0) { // success_code 1
+		if (response.isSuccess()) { // success_code 1
 			result = true;
 		} else {
 			if (getFileStatus(dst).isDir()) { // move srcdir into dstdir
@@ -203,6 +635,27 @@ public class AdamFileSystem extends FileSystem {
 		return result;
 	}
 
+	/**
+	 * Rename a file to a name another api-server owns: copy it over, then
+	 * delete the original. Like rename, never overwrites an existing file.
+	 */
+	private boolean move_between_shards(Path src, Path dst) throws IOException {
+		try {
+			if (getFileStatus(dst).isDir()) { // move into dstdir
+				return rename(src, new Path(dst, src.getName()));
+			}
+			return false;
+		} catch (FileNotFoundException e) {
+			// dst is free
+		}
+		try {
+			return FileUtil.copy(this, src, this, dst, true, getConf());
+		} finally {
+			invalidate_status_tree(makeAbsolute(src).toString());
+			invalidate_status_tree(makeAbsolute(dst).toString());
+		}
+	}
+
 	@Override
 	@Deprecated
 	public boolean delete(Path f) throws IOException {
@@ -211,27 +664,39 @@ public class AdamFileSystem extends FileSystem {
 
 	@Override
 	public boolean delete(Path f, boolean recursive) throws IOException {
+		statistics.incrementWriteOps(1);
+		try {
+			return delete_uncached(f, recursive);
+		} finally {
+			invalidate_status_tree(makeAbsolute(f).toString());
+		}
+	}
+
+	private boolean delete_uncached(Path f, boolean recursive) throws IOException {
 		/* If Path f is a single file, delete
 		 * Else if isDir, recursively delete children before deleting directory f
 		 * */
 		//LOG.info("<AdamFS:delete>");
 		String path = makeAbsolute(f).toString();
-		String response = null;
-		String resp_id = null;
-		String success_code = null;
-		String data = null;
+		AdamFSResponse response = null;
+		
+		if (recursive && capabilities.contains(AdamFSProtocol.CAP_DELETE_RECURSIVE)) {
+			// let the api-servers walk the tree in one request each
+			response = any_succeeded(call_all(new AdamFSRequest(AdamFSProtocol.OP_DELETE_RECURSIVE)
+					.addString(path)));
+			//log_response(response, "delete");
+			return response.isSuccess();
+		}
 		
 		try {
 			FileStatus fstat = this.getFileStatus(f);
 			if (!fstat.isDir()) {
 				// Delete a single file
 				//LOG.info("<AdamFS:delete> deleting single file: "+path);
-				response = init_send_get_close("03", path); // DELETE
-				// Parse the response
-				resp_id = response.substring(0, 2);
-				success_code = response.substring(2, 3);
-				//log_response(resp_id, success_code, "", "delete");
-				if (success_code.compareTo("1") == 0) { // success_code 1
+				response = init_send_get_close(shards.forPath(path),
+						new AdamFSRequest(AdamFSProtocol.OP_DELETE).addString(path)); // DELETE
+				//log_response(response, "delete");
+				if (response.isSuccess()) { // success_code 1
 					return true; // FILE DELETED
 				} else { // success_code 0
 					// Other file system failed to delete
@@ -242,37 +707,30 @@ public class AdamFileSystem extends FileSystem {
 				// Recursively delete directory contents
 				//LOG.info("<AdamFS:delete> recursively deleting directory contents in: "+path);
 
-				response = init_send_get_close("02", path);
-				// Parse the response
-				resp_id = response.substring(0, 2);
-				success_code = response.substring(2, 3);
-				data = response.substring(3, response.length());
-				//log_response(resp_id, success_code, data, "delete");
-				if (success_code.compareTo("1") == 0) { // list-files succeeded
-					if (data.compareTo("") == 0) {
+				List<String> files = list_names(path);
+				//log_response(response, "delete");
+				if (files != null) { // list-files succeeded
+					if (files.isEmpty()) {
 						// there are no files to delete in this directory,
 						// so delete the directory itself
 						//LOG.info("<AdamFS:delete> finally deleting directory: "+path);
-						response = init_send_get_close("03", path); // DELETE
-						// Parse the response
-						resp_id = response.substring(0, 2);
-						success_code = response.substring(2, 3);
-						//log_response(resp_id, success_code, "", "delete");
-						if (success_code.compareTo("0") == 0) {
+						response = any_succeeded(call_all(new AdamFSRequest(AdamFSProtocol.OP_DELETE)
+								.addString(path))); // DELETE on every server
+						//log_response(response, "delete");
+						if (!response.isSuccess()) {
 							// failed to delete
 							return false;
 						}
 						return true; // DIRECTORY DELETED
 					} else {
 						// delete the array of containing files/directories
-						String[] files = data.split("[ ]"); // array of filenames and/or directories
-						for (int i=0; i<files.length; i++) {
+						for (String file : files) {
 							// don't forget to prepend the original path so other file system
 							// knows what to delete
-							this.delete(new Path("adamfs", "localhost:9999", path+"/"+files[i]), true);
+							this.delete(qualify(path+"/"+file), true);
 						}
 						// finally delete the directory that did have files
-						return this.delete(new Path("adamfs", "localhost:9999", path), true);
+						return this.delete(qualify(path), true);
 					}
 				} else { // success code 0 
 					// failed to list files...bad if we get here
@@ -285,45 +743,301 @@ public class AdamFileSystem extends FileSystem {
 		}
 	}
 
+	/**
+	 * Delete many paths at once, e.g. a committer cleaning up task attempt
+	 * directories. Servers that support it get them in batches of
+	 * fs.adamfs.delete.batch.size paths per message; otherwise each path is
+	 * deleted on its own. With several api-servers every batch goes to each
+	 * of them, and a path counts as deleted if any server deleted it.
+	 * @return one result per path, as {@link #delete(Path, boolean)} would
+	 */
+	public boolean[] delete(Path[] paths, boolean recursive) throws IOException {
+		boolean[] results = new boolean[paths.length];
+		if (!capabilities.contains(AdamFSProtocol.CAP_DELETE_BATCH)) {
+			for (int i=0; i<paths.length; i++) {
+				results[i] = delete(paths[i], recursive);
+			}
+			return results;
+		}
+		int batchSize = Math.max(1, getConf().getInt(DELETE_BATCH_SIZE_KEY,
+				DELETE_BATCH_SIZE_DEFAULT));
+		// issue every batch before waiting for the first reply
+		List<AdamFSFuture<AdamFSResponse>> batches = new ArrayList<AdamFSFuture<AdamFSResponse>>();
+		for (int start=0; start<paths.length; start+=batchSize) {
+			AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_DELETE_BATCH)
+					.addBoolean(recursive);
+			for (int i=start; i<Math.min(paths.length, start+batchSize); i++) {
+				request.addString(makeAbsolute(paths[i]).toString());
+			}
+			for (int s=0; s<shards.size(); s++) {
+				batches.add(call_async(shards.get(s), request));
+			}
+		}
+		for (Path path : paths) {
+			invalidate_status_tree(makeAbsolute(path).toString());
+		}
+		int start = 0;
+		for (int b=0; b<batches.size(); b++) {
+			AdamFSResponse response = batches.get(b).getChecked();
+			//log_response(response, "delete");
+			int end = Math.min(paths.length, start+batchSize);
+			for (int i=start; i<end; i++) {
+				results[i] |= response.isSuccess() && response.hasMore() && response.nextBoolean();
+			}
+			if ((b+1) % shards.size() == 0) {
+				start = end;
+			}
+		}
+		return results;
+	}
+
 	@Override
 	public FileStatus[] listStatus(Path f) throws IOException {
 		//LOG.info("<AdamFS:listStatus>");
 		try {
-			FileStatus fstat = this.getFileStatus(f);
-			if (!fstat.isDir()) {
-				//LOG.info("<AdamFS:listStatus> file IS NOT a directory");
-				return new FileStatus[]{fstat};
-			} else {
-				//LOG.info("<AdamFS:listStatus> file IS a directory");
-				String path = makeAbsolute(f).toString();
-				FileStatus[] ret = null;
-				
-				String response = init_send_get_close("02", path);
-				
-				// Parse the response
-				String resp_id = response.substring(0, 2);
-				String success_code = response.substring(2, 3);
-				String data = response.substring(3, response.length());
-				//log_response(resp_id, success_code, data, "listStatus");
-				if (success_code.compareTo("1") == 0) {
-					String[] files = data.split("[ ]"); // array of files
-					ret = new FileStatus[files.length]; // populate array with empty FileStatus objects
-					for (int i=0; i<files.length; i++) {
-						// create a new FileStatus object for each file
-						ret[i] = this.getFileStatus(new Path("adamfs", "localhost:9999", path+"/"+files[i])); 
-					}
-					return ret;
-				} else { // 0
-					// response success code = failure
-					return new FileStatus[0];
-				}
-			} // end if isDir
+			return list_status(f);
 		} catch (Exception e) {
 			//LOG.info("<AdamFS:listStatus> failed to list file status because file did not exist.");
 			return new FileStatus[0];
 		}
 	}
 
+	/** listStatus(), but failures are thrown instead of listing nothing. */
+	FileStatus[] list_status(Path f) throws IOException {
+		statistics.incrementReadOps(1);
+		if (capabilities.contains(AdamFSProtocol.CAP_LIST_STATUS)) {
+			// optimistically assume a directory, saves the LOOKUP round trip
+			FileStatus[] listing = list_status_paged(makeAbsolute(f).toString());
+			if (listing != null) {
+				return listing;
+			}
+		}
+		FileStatus fstat = this.getFileStatus(f);
+		if (!fstat.isDir()) {
+			//LOG.info("<AdamFS:listStatus> file IS NOT a directory");
+			return new FileStatus[]{fstat};
+		} else {
+			//LOG.info("<AdamFS:listStatus> file IS a directory");
+			String path = makeAbsolute(f).toString();
+			FileStatus[] ret = null;
+			
+			List<String> files = list_names(path); // list of files
+			
+			//log_response(response, "listStatus");
+			if (files != null) {
+				// look up every child at once, the replies arrive as they are ready
+				List<AdamFSFuture<FileStatus>> lookups =
+					new ArrayList<AdamFSFuture<FileStatus>>(files.size());
+				for (String file : files) {
+					lookups.add(this.getFileStatusAsync(qualify(path+"/"+file)));
+				}
+				ret = new FileStatus[files.size()]; // populate array with empty FileStatus objects
+				for (int i=0; i<files.size(); i++) {
+					// create a new FileStatus object for each file
+					ret[i] = lookups.get(i).getChecked(); 
+				}
+				return ret;
+			} else { // 0
+				// response success code = failure
+				return new FileStatus[0];
+			}
+		} // end if isDir
+	}
+
+	/**
+	 * The files under f, or f itself if it is a file, handed out as the
+	 * listings arrive; with recursive also the files of every directory
+	 * below. Directories are listed fs.adamfs.list.concurrency at a time
+	 * (see {@link AdamFSTreeWalker}), so a deep partitioned tree is listed
+	 * in about as many round trips as it is deep.
+	 */
+	public AdamFSRemoteIterator<FileStatus> listFiles(Path f, boolean recursive)
+			throws IOException {
+		FileStatus fstat = getFileStatus(makeQualified(f));
+		AdamFSTreeWalker walker = tree_walker(recursive, false);
+		if (fstat.isDir()) {
+			walker.list(fstat.getPath());
+		} else {
+			walker.add(fstat);
+		}
+		return walker;
+	}
+
+	/**
+	 * Servers with the SUMMARY capability add up the tree themselves, in one
+	 * round trip each; otherwise the tree is walked as by
+	 * {@link #listFiles}, in parallel.
+	 */
+	@Override
+	public ContentSummary getContentSummary(Path f) throws IOException {
+		FileStatus fstat = getFileStatus(makeQualified(f));
+		if (!fstat.isDir()) {
+			return new ContentSummary(fstat.getLen(), 1, 0);
+		}
+		if (capabilities.contains(AdamFSProtocol.CAP_CONTENT_SUMMARY)) {
+			statistics.incrementReadOps(1);
+			AdamFSResponse[] responses = call_all(new AdamFSRequest(AdamFSProtocol.OP_CONTENT_SUMMARY)
+					.addString(makeAbsolute(f).toString()));
+			if (all_succeeded(responses).isSuccess()) {
+				// files live on one server, directories on all of them
+				long length = 0, files = 0, dirs = 0;
+				for (AdamFSResponse response : responses) {
+					length += response.nextLong();
+					files += response.nextLong();
+					dirs = Math.max(dirs, response.nextLong());
+				}
+				return new ContentSummary(length, files, dirs);
+			}
+		}
+		AdamFSTreeWalker walker = tree_walker(true, true);
+		walker.list(fstat.getPath());
+		long length = 0, files = 0, dirs = 1;
+		while (walker.hasNext()) {
+			FileStatus child = walker.next();
+			if (child.isDir()) {
+				dirs++;
+			} else {
+				files++;
+				length += child.getLen();
+			}
+		}
+		return new ContentSummary(length, files, dirs);
+	}
+
+	/**
+	 * Servers with the CHECKSUM capability checksum the file next to the
+	 * data, as HDFS does, so distcp -update can skip files that did not
+	 * change without reading them. Null without it, as FileSystem has it,
+	 * and for directories.
+	 */
+	@Override
+	public FileChecksum getFileChecksum(Path f) throws IOException {
+		if (!capabilities.contains(AdamFSProtocol.CAP_CHECKSUM)) {
+			return null;
+		}
+		String path = makeAbsolute(f).toString();
+		statistics.incrementReadOps(1);
+		AdamFSResponse response = init_send_get_close(shards.forPath(path),
+				new AdamFSRequest(AdamFSProtocol.OP_CHECKSUM).addString(path));
+		if (!response.isSuccess()) {
+			if (getFileStatus(f).isDir()) { // throws FileNotFoundException if there is nothing
+				return null;
+			}
+			throw new IOException("<AdamFS:getFileChecksum> api-server could not checksum " + path);
+		}
+		int bytes_per_crc = (int) response.nextLong();
+		long crc_per_block = response.nextLong();
+		MD5Hash md5 = new MD5Hash(response.nextString());
+		return new MD5MD5CRC32FileChecksum(bytes_per_crc, crc_per_block, md5);
+	}
+
+	@Override
+	public FileStatus[] globStatus(Path pathPattern) throws IOException {
+		return globStatus(pathPattern, null);
+	}
+
+	/**
+	 * Glob a level of the pattern at a time: the directories a component
+	 * with wildcards applies to are all listed at once, as by
+	 * {@link #listFiles}, so input paths like /logs/2011-*&#47;*&#47;part-*
+	 * take a round trip per level rather than per directory. Components
+	 * without wildcards are looked up, in parallel, only at the end.
+	 */
+	@Override
+	public FileStatus[] globStatus(Path pathPattern, PathFilter filter) throws IOException {
+		String pattern = makeQualified(pathPattern).toUri().getPath();
+		if (braces_span_levels(pattern)) {
+			return filter == null ? super.globStatus(pathPattern)
+					: super.globStatus(pathPattern, filter);
+		}
+		List<Path> paths = new ArrayList<Path>();
+		paths.add(qualify("/"));
+		List<FileStatus> matched = null; // statuses of paths, null until listed
+		boolean hasGlob = false;
+		String[] components = pattern.split("/");
+		for (int i = 0; i < components.length && !paths.isEmpty(); i++) {
+			if (components[i].length() == 0) {
+				continue;
+			}
+			GlobPattern glob = new GlobPattern(components[i]);
+			if (!glob.hasWildcard()) {
+				String name = components[i].replaceAll("\\\\(.)", "$1");
+				List<Path> next = new ArrayList<Path>(paths.size());
+				for (Path parent : paths) {
+					next.add(new Path(parent, name));
+				}
+				paths = next;
+				matched = null;
+				continue;
+			}
+			hasGlob = true;
+			boolean last = i == components.length - 1;
+			AdamFSTreeWalker walker = tree_walker(false, true);
+			Set<String> listed = new HashSet<String>();
+			for (Path parent : paths) {
+				listed.add(parent.toUri().getPath());
+				walker.list(parent);
+			}
+			paths = new ArrayList<Path>();
+			matched = new ArrayList<FileStatus>();
+			while (walker.hasNext()) {
+				FileStatus child = walker.next();
+				Path path = child.getPath();
+				// listing a file lists the file itself
+				if (path.getParent() == null || !listed.contains(path.getParent().toUri().getPath())
+						|| !glob.matches(path.getName()) || (!last && !child.isDir())) {
+					continue;
+				}
+				paths.add(path);
+				matched.add(child);
+			}
+		}
+		if (matched == null) { // ends in plain names, look them up
+			List<AdamFSFuture<FileStatus>> lookups = new ArrayList<AdamFSFuture<FileStatus>>();
+			for (Path path : paths) {
+				lookups.add(getFileStatusAsync(path));
+			}
+			matched = new ArrayList<FileStatus>();
+			for (AdamFSFuture<FileStatus> lookup : lookups) {
+				try {
+					matched.add(lookup.getChecked());
+				} catch (FileNotFoundException e) {
+					// no match
+				}
+			}
+		}
+		List<FileStatus> results = new ArrayList<FileStatus>();
+		for (FileStatus fstat : matched) {
+			if (filter == null || filter.accept(fstat.getPath())) {
+				results.add(fstat);
+			}
+		}
+		if (results.isEmpty() && !hasGlob) {
+			return null; // as FileSystem does for a missing path without wildcards
+		}
+		FileStatus[] ret = results.toArray(new FileStatus[results.size()]);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/** True if a {a,b} group of the pattern holds a '/'; FileSystem globs those. */
+	private static boolean braces_span_levels(String pattern) {
+		int depth = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '{') {
+				depth++;
+			} else if (c == '}' && depth > 0) {
+				depth--;
+			} else if (c == '/' && depth > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public void setWorkingDirectory(Path new_dir) {
 		this.workingDir = new_dir;
@@ -338,9 +1052,14 @@ public class AdamFileSystem extends FileSystem {
 	public boolean mkdirs(Path f, FsPermission permission) throws IOException {
 		//LOG.info("<AdamFS:mkdirs>");
 		//LOG.info("<AdamFS:mkdirs> creating directory Path f: " + f);
+		if (shards.getProtocolVersion() >= AdamFSProtocol.VERSION_BINARY
+				&& capabilities.contains(AdamFSProtocol.CAP_COMPOUND)) {
+			return mkdirs_compound(f);
+		}
 		if (exists(f)) {
 			return true;
 		}
+		statistics.incrementWriteOps(1);
 		/*
 		 * Interesting note from HDFS: all the users of mkdirs() are used to expect
 		 * 'true' even if a new directory is not created.
@@ -348,13 +1067,13 @@ public class AdamFileSystem extends FileSystem {
 //		URI uri = f.toUri();
 		String path = makeAbsolute(f).toString();
 		
-		String response = init_send_get_close("04", path); // MKDIR
+		// directories exist on every api-server
+		AdamFSResponse response = all_succeeded(call_all(
+				new AdamFSRequest(AdamFSProtocol.OP_MKDIR).addString(path))); // MKDIR
+		invalidate_status(path);
 		
-		// Parse the response
-		String resp_id = response.substring(0, 2);
-		String success_code = response.substring(2, 3);
-		//log_response(resp_id, success_code, "", "mkdirs");
-		if (success_code.compareTo("1") == 0) {
+		//log_response(response, "mkdirs");
+		if (response.isSuccess()) {
 			// return true after the file has been created
 			return exists(f);
 		} else {
@@ -363,55 +1082,339 @@ public class AdamFileSystem extends FileSystem {
 		}
 	}
 
+	/**
+	 * mkdirs() for servers with COMPOUND: MKDIR and a LOOKUP of the result
+	 * in one round trip per api-server, instead of a lookup before and after.
+	 */
+	private boolean mkdirs_compound(Path f) throws IOException {
+		String path = makeAbsolute(f).toString();
+		if (statusCache != null) {
+			FileStatus cached = statusCache.get(path);
+			if (cached != null && cached != AdamFSStatusCache.MISSING && cached.isDir()) {
+				return true;
+			}
+		}
+		statistics.incrementWriteOps(1);
+		// MKDIR of an existing directory may fail, the lookup decides
+		AdamFSRequest request = new AdamFSRequest(AdamFSProtocol.OP_COMPOUND)
+				.addRequest(new AdamFSRequest(AdamFSProtocol.OP_MKDIR).addString(path),
+						AdamFSProtocol.COMPOUND_CONTINUE)
+				.addRequest(new AdamFSRequest(AdamFSProtocol.OP_LOOKUP).addString(path), 0);
+		// directories exist on every api-server
+		AdamFSResponse[] responses = call_all(request);
+		invalidate_status(path);
+		FileStatus fstat = null;
+		for (AdamFSResponse response : responses) {
+			response.nextResponse(AdamFSProtocol.OP_MKDIR);
+			AdamFSResponse lookup = response.nextResponse(AdamFSProtocol.OP_LOOKUP);
+			if (!lookup.isSuccess()) {
+				return false;
+			}
+			fstat = read_file_status(lookup, f);
+			if (!fstat.isDir()) {
+				return false;
+			}
+		}
+		if (statusCache != null) {
+			statusCache.put(path, fstat);
+		}
+		return true;
+	}
+
 	@Override
 	public FileStatus getFileStatus(Path f) throws IOException {
 		//LOG.info("<AdamFS:getFileStatus>");
 		//LOG.info("<AdamFS:getFileStatus> Path f: " + f);
-		String path = makeAbsolute(f).toString();
-		
-		String response = init_send_get_close("01", path); // LOOKUP
+		statistics.incrementReadOps(1);
+		return getFileStatusAsync(f).getChecked();
+	}
 
-		// Parse the response
-		String resp_id = response.substring(0, 2);
-		String success_code = response.substring(2, 3);
-		String data = response.substring(3, response.length());
-		//log_response(resp_id, success_code, data, "getFileStatus");
-		
-		if (success_code.compareTo("1") == 0) {
-			String[] params = data.split("[ ]");
-			Boolean bool = false;
-			if (params[1].compareTo("1") == 0) {
-				bool = true;
-			}
-			return new FileStatus(Long.parseLong(params[0]), // long length
-					bool, // boolean isdir
-					1, // int block_replication always 1
-					Long.parseLong(params[2]), // long blocksize
-					Long.parseLong(params[3]), // long mod_time
-					Long.parseLong(params[4]), // long access_time
-					new FsPermission(params[5]), // FsPermission permission
-					params[6], // String owner
-					params[7], // String group
-					f); // Path path
-		} else {
-			throw new FileNotFoundException("File does not exist: " + f);
+	/**
+	 * Look up a file without waiting for the reply. On a binary connection
+	 * many lookups can be in flight at once; the future fails with
+	 * FileNotFoundException if the path does not exist.
+	 */
+	public AdamFSFuture<FileStatus> getFileStatusAsync(final Path f) throws IOException {
+		final String path = makeAbsolute(f).toString();
+		if (statusCache != null) {
+			FileStatus cached = statusCache.get(path);
+			if (cached == AdamFSStatusCache.MISSING) {
+				return AdamFSFuture.failed(new FileNotFoundException("File does not exist: " + f));
+			} else if (cached != null) {
+				return AdamFSFuture.completed(with_path(cached, f));
+			}
 		}
+		return call_async(shards.forPath(path),
+				new AdamFSRequest(AdamFSProtocol.OP_LOOKUP).addString(path)) // LOOKUP
+				.then(new AdamFSFuture.Function<AdamFSResponse, FileStatus>() {
+			public FileStatus apply(AdamFSResponse response) throws IOException {
+				//log_response(response, "getFileStatus");
+				if (response.isSuccess()) {
+					FileStatus fstat = read_file_status(response, f);
+					if (statusCache != null) {
+						statusCache.put(path, fstat);
+					}
+					return fstat;
+				} else {
+					if (statusCache != null) {
+						statusCache.putMissing(path);
+					}
+					throw new FileNotFoundException("File does not exist: " + f);
+				}
+			}
+		});
+	}
+
+	/** Lookups answered from the metadata cache. */
+	public long getStatusCacheHits() {
+		return statusCache == null ? 0 : statusCache.getHits() + statusCache.getNegativeHits();
+	}
+
+	/** Lookups that had to go to the api-server. */
+	public long getStatusCacheMisses() {
+		return statusCache == null ? 0 : statusCache.getMisses();
+	}
+
+	/** Asynchronous {@link #exists(Path)}. */
+	public AdamFSFuture<Boolean> existsAsync(Path f) throws IOException {
+		final AdamFSFuture<Boolean> result = new AdamFSFuture<Boolean>();
+		getFileStatusAsync(f).addCallback(new AdamFSFuture.Callback<FileStatus>() {
+			public void done(AdamFSFuture<FileStatus> lookup) {
+				Throwable e = lookup.getException();
+				if (e == null) {
+					result.set(Boolean.TRUE);
+				} else if (e instanceof FileNotFoundException) {
+					result.set(Boolean.FALSE);
+				} else {
+					result.setException(e);
+				}
+			}
+		});
+		return result;
 	}
 	
-//	@Override
-//	public BlockLocation[] getFileBlockLocations(FileStatus file, long start,
-//			long len) throws IOException {
-//		String path = makeAbsolute(file.getPath()).toString();
-//		String response = init_send_get_close("08", path); // GET FILE LOCATIONS
-//		return null;
-//	}
+	/**
+	 * Ask the api-server where the blocks of the file live, so splits line up
+	 * with block boundaries and tasks can be scheduled next to the data. The
+	 * whole file's list is fetched and cached; ranges are cut out locally.
+	 * Servers that cannot answer get the default single location.
+	 */
+	@Override
+	public BlockLocation[] getFileBlockLocations(FileStatus file, long start,
+			long len) throws IOException {
+		if (file == null) {
+			return null;
+		}
+		if (start < 0 || len < 0) {
+			throw new IllegalArgumentException("Invalid start or len parameter");
+		}
+		if (file.getLen() < start) {
+			return new BlockLocation[0];
+		}
+		String path = makeAbsolute(file.getPath()).toString();
+		BlockLocation[] blocks = locationCache.get(path, file);
+		if (blocks == null) {
+			AdamFSResponse response;
+			try {
+				response = init_send_get_close(shards.forPath(path),
+						new AdamFSRequest(AdamFSProtocol.OP_BLOCK_LOCATIONS)
+						.addString(path).addLong(0).addLong(file.getLen())); // GET FILE LOCATIONS
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				LOG.debug("<AdamFS:getFileBlockLocations> " + path + ": " + e);
+				return super.getFileBlockLocations(file, start, len);
+			}
+			//log_response(response, "getFileBlockLocations");
+			if (!response.isSuccess()) {
+				return super.getFileBlockLocations(file, start, len);
+			}
+			blocks = read_block_locations(response);
+			locationCache.put(path, file, blocks);
+		}
+		return AdamFSLocationCache.overlapping(blocks, start, len);
+	}
 	
 	//Utility functions
 	
-	private void log_response(String resp_id, String success_code, String data,
-			String method) {
-		LOG.info("<AdamFS:" + method + "> resp_id: " + resp_id + ", success_code: "
-				+ success_code + ", data: " + data);
+	private void log_response(AdamFSResponse response, String method) {
+		LOG.info("<AdamFS:" + method + "> resp_id: " + response.getOpcode() + ", success_code: "
+				+ response.getStatus() + ", data: " + response.getData());
+	}
+
+	/**
+	 * Parse the file status fields of a LOOKUP reply:
+	 * length isdir blocksize mod_time access_time permission owner group
+	 */
+	private FileStatus read_file_status(AdamFSResponse response, Path f) throws IOException {
+		long length = response.nextLong();
+		boolean isdir = response.nextBoolean();
+		long blocksize = response.nextLong();
+		long mod_time = response.nextLong();
+		long access_time = response.nextLong();
+		FsPermission permission = response.nextPermission();
+		String owner = response.nextString();
+		String group = response.nextString();
+		return new FileStatus(length, // long length
+				isdir, // boolean isdir
+				1, // int block_replication always 1
+				blocksize, // long blocksize
+				mod_time, // long mod_time
+				access_time, // long access_time
+				permission, // FsPermission permission
+				owner, // String owner
+				group, // String group
+				f); // Path path
+	}
+
+	/**
+	 * List a directory with one LIST_STATUS round trip per page of
+	 * fs.adamfs.list.page.size entries, instead of a LOOKUP per child.
+	 * Returns null if the server could not list the path, e.g. because it
+	 * is a file or does not exist.
+	 *
+	 * With several api-servers each is paged through at the same time and
+	 * the listings are merged: a directory shows up once, however many
+	 * servers have it, and a file with the status its owner reports.
+	 */
+	private FileStatus[] list_status_paged(String path) throws IOException {
+		int pageSize = getConf().getInt(LIST_PAGE_SIZE_KEY, LIST_PAGE_SIZE_DEFAULT);
+		Map<String, FileStatus> ret = new LinkedHashMap<String, FileStatus>();
+		String[] tokens = new String[shards.size()]; // null once a server is done
+		Arrays.fill(tokens, "");
+		boolean listed = false;
+		int remaining = tokens.length;
+		while (remaining > 0) {
+			// one page from every server that has more, all in flight at once
+			List<AdamFSFuture<AdamFSResponse>> pages = new ArrayList<AdamFSFuture<AdamFSResponse>>();
+			for (int s=0; s<tokens.length; s++) {
+				pages.add(tokens[s] == null ? null : call_async(shards.get(s),
+						new AdamFSRequest(AdamFSProtocol.OP_LIST_STATUS)
+						.addString(path).addString(tokens[s]).addLong(pageSize)));
+			}
+			for (int s=0; s<tokens.length; s++) {
+				if (pages.get(s) == null) {
+					continue;
+				}
+				AdamFSResponse response = pages.get(s).getChecked();
+				//log_response(response, "listStatus");
+				if (!response.isSuccess()) {
+					tokens[s] = null; // not a directory there
+					remaining--;
+					continue;
+				}
+				listed = true;
+				String token = response.nextString();
+				while (response.hasMore()) {
+					String file = response.nextString();
+					FileStatus fstat = read_file_status(response, qualify(path+"/"+file));
+					FileStatus seen = ret.get(file);
+					if (seen == null || (!fstat.isDir() && shards.shardFor(path+"/"+file) == s)) {
+						ret.put(file, fstat);
+					}
+				}
+				tokens[s] = token.length() > 0 ? token : null;
+				if (tokens[s] == null) {
+					remaining--;
+				}
+			}
+		}
+		if (!listed) {
+			return null;
+		}
+		if (statusCache != null) {
+			for (FileStatus fstat : ret.values()) {
+				statusCache.put(makeAbsolute(fstat.getPath()).toString(), fstat);
+			}
+		}
+		return ret.values().toArray(new FileStatus[ret.size()]);
+	}
+
+	/**
+	 * The names in a directory, merged from the LIST replies of all
+	 * api-servers; null if none of them could list it.
+	 */
+	private List<String> list_names(String path) throws IOException {
+		AdamFSResponse[] responses = call_all(new AdamFSRequest(AdamFSProtocol.OP_LIST)
+				.addString(path));
+		Set<String> names = null;
+		for (AdamFSResponse response : responses) {
+			if (response.isSuccess()) {
+				if (names == null) {
+					names = new LinkedHashSet<String>();
+				}
+				names.addAll(read_names(response));
+			}
+		}
+		return names == null ? null : new ArrayList<String>(names);
+	}
+
+	private AdamFSTreeWalker tree_walker(boolean recursive, boolean directories) {
+		return new AdamFSTreeWalker(this, transfers, getConf().getInt(
+				AdamFSTreeWalker.LIST_CONCURRENCY_KEY, AdamFSTreeWalker.LIST_CONCURRENCY_DEFAULT),
+				recursive, directories);
+	}
+
+	/** A path of this file system, e.g. for the FileStatus of a child. */
+	private Path qualify(String path) {
+		return new Path(uri.getScheme(), uri.getAuthority(), path);
+	}
+
+	/** The same status for the path the caller asked about. */
+	private FileStatus with_path(FileStatus fstat, Path f) {
+		return new FileStatus(fstat.getLen(), fstat.isDir(), fstat.getReplication(),
+				fstat.getBlockSize(), fstat.getModificationTime(), fstat.getAccessTime(),
+				fstat.getPermission(), fstat.getOwner(), fstat.getGroup(), f);
+	}
+
+	private void invalidate_status(String path) {
+		if (statusCache != null) {
+			statusCache.invalidate(path);
+		}
+		if (blockCache != null) {
+			blockCache.invalidate(qualify(path).toString());
+		}
+	}
+
+	private void invalidate_status_tree(String path) {
+		if (statusCache != null) {
+			statusCache.invalidateTree(path);
+		}
+		locationCache.invalidateTree(path);
+		if (blockCache != null) {
+			blockCache.invalidateTree(qualify(path).toString());
+		}
+	}
+
+	/**
+	 * Parse a BLOCK_LOCATIONS reply, per block:
+	 * offset length host_count host...
+	 */
+	private BlockLocation[] read_block_locations(AdamFSResponse response) throws IOException {
+		List<BlockLocation> ret = new ArrayList<BlockLocation>();
+		while (response.hasMore()) {
+			long offset = response.nextLong();
+			long length = response.nextLong();
+			int count = (int) response.nextLong();
+			if (count < 0) {
+				throw new IOException("<AdamFS:getFileBlockLocations> bad host count " + count);
+			}
+			String[] hosts = new String[count];
+			for (int i = 0; i < count; i++) {
+				hosts[i] = response.nextString();
+			}
+			ret.add(new BlockLocation(hosts, hosts, offset, length));
+		}
+		return ret.toArray(new BlockLocation[ret.size()]);
+	}
+
+	/** The names in a LIST reply. */
+	private List<String> read_names(AdamFSResponse response) throws IOException {
+		List<String> names = new ArrayList<String>();
+		while (response.hasMore()) {
+			names.add(response.nextString());
+		}
+		return names;
 	}
 	
 	public Path makeAbsolute(Path f) {
@@ -422,38 +1425,108 @@ public class AdamFileSystem extends FileSystem {
 					fs_default_name.length()));
 			return stripped_path;
 		}
+		if (f.toUri().getScheme() != null) {
+			// qualified with this file system's URI, which need not be the default
+			return new Path(f.toUri().getPath());
+		}
 		return f;
 	}
 
 
 	// Network API functions
 
-	private void initiate_connection() throws UnknownHostException, IOException {
-		this.apiSocket = new Socket("localhost", 9999);
-		this.in = new BufferedReader(new InputStreamReader(apiSocket.getInputStream()));
-		this.out = new PrintWriter(apiSocket.getOutputStream(), true);
+	/**
+	 * Send one request and read its reply. Returns null if the connection
+	 * turned out to be dead, so callers can retry on a fresh one.
+	 */
+	private AdamFSResponse send_get(AdamFSConnection conn, AdamFSRequest request) {
+		try {
+			AdamFSResponse response = conn.call(request);
+			if (response == null) {
+				conn.markBroken();
+			}
+			return response;
+		} catch (IOException e) {
+			conn.markBroken();
+			return null;
+		}
 	}
 	
-	private void send_command(String req_id, String data) {
-		this.out.println(req_id + data);
+	/**
+	 * Issue a request to one api-server without waiting for its reply.
+	 * Binary connections multiplex it onto a shared channel; text
+	 * connections can only do one exchange at a time, so the call completes
+	 * before this returns.
+	 */
+	private AdamFSFuture<AdamFSResponse> call_async(AdamFSConnectionPool pool,
+			AdamFSRequest request) throws IOException {
+		if (pool.getProtocolVersion() < AdamFSProtocol.VERSION_BINARY) {
+			return AdamFSFuture.completed(send_get_pooled(pool, request));
+		}
+		AdamFSChannel channel = pool.getChannel();
+		try {
+			return channel.call(request);
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			// the channel died before the request went out, send it on a new one
+			return pool.getChannel().call(request);
+		}
 	}
-	
-	private String get_response() throws IOException {
-		// Note: this must receive a newline or carriage return
-		return in.readLine();
+
+	private AdamFSResponse init_send_get_close(AdamFSConnectionPool pool, AdamFSRequest request)
+			throws UnknownHostException, IOException {
+		return call_async(pool, request).getChecked();
 	}
-	
-	private void close_connection() throws IOException {
-		in.close();
-		out.close();
-		apiSocket.close();
+
+	/** Send the request to every api-server; the replies in server order. */
+	private AdamFSResponse[] call_all(AdamFSRequest request) throws IOException {
+		List<AdamFSFuture<AdamFSResponse>> calls = new ArrayList<AdamFSFuture<AdamFSResponse>>();
+		for (int s=0; s<shards.size(); s++) {
+			calls.add(call_async(shards.get(s), request));
+		}
+		AdamFSResponse[] responses = new AdamFSResponse[calls.size()];
+		for (int s=0; s<responses.length; s++) {
+			responses[s] = calls.get(s).getChecked();
+		}
+		return responses;
 	}
-	
-	private String init_send_get_close(String req_id, String data) throws UnknownHostException, IOException {
-		initiate_connection();
-		send_command(req_id, data);
-		String response = get_response();
-		close_connection();
+
+	/** The first failed reply, or the last one if all succeeded. */
+	private AdamFSResponse all_succeeded(AdamFSResponse[] responses) {
+		for (AdamFSResponse response : responses) {
+			if (!response.isSuccess()) {
+				return response;
+			}
+		}
+		return responses[responses.length - 1];
+	}
+
+	/** The first successful reply, or the last one if none succeeded. */
+	private AdamFSResponse any_succeeded(AdamFSResponse[] responses) {
+		for (AdamFSResponse response : responses) {
+			if (response.isSuccess()) {
+				return response;
+			}
+		}
+		return responses[responses.length - 1];
+	}
+
+	/** One exchange on a connection borrowed from the pool. */
+	private AdamFSResponse send_get_pooled(AdamFSConnectionPool pool, AdamFSRequest request)
+			throws IOException {
+		AdamFSConnection conn = pool.borrow();
+		AdamFSResponse response = send_get(conn, request);
+		if (response == null) {
+			// the pooled connection went stale, retry once on a new one
+			pool.invalidate(conn);
+			conn = pool.borrowFresh();
+			response = send_get(conn, request);
+		}
+		pool.release(conn); // invalidates it if it broke
+		if (response == null) {
+			throw new IOException("<AdamFS> api-server closed the connection");
+		}
 		return response;
 	}
 } // end class
@@ -0,0 +1,553 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Client benchmarks against an {@link AdamFSServer} started in the same JVM
+ * over a temporary directory, so numbers only depend on the client, the
+ * protocol and the server. The server advertises only the capabilities
+ * given with -caps, so the client can be compared with and without them. Each benchmark runs warmup iterations and then measured
+ * ones of -time seconds each, and reports the mean and standard deviation of
+ * the per-iteration scores. Fixtures are written straight into the server's
+ * directory and are not part of the timing.
+ *
+ * <pre>
+ * hadoop org.apache.hadoop.fs.adamfs.AdamFSBenchmark [-D key=value ...]
+ *     [-bench status,list,delete,seqread,randread,create,write]
+ *     [-caps LISTSTATUS,RDELETE,BDELETE] [-port 9999]
+ *     [-dir tmpdir] [-warmup 2] [-iterations 5] [-time 1] [-entries 1000,10000,100000]
+ *     [-buffers 4096,65536,1048576] [-size 67108864] [-data random|text]
+ * </pre>
+ *
+ * Client settings are taken from -D, e.g. -D fs.adamfs.protocol.version=1
+ * or -D fs.adamfs.readahead.enabled=false. The metadata cache is turned off
+ * unless set explicitly, so status and list measure round trips. File data
+ * is random unless -data text asks for compressible text, e.g. to measure
+ * -caps DEFLATE with -D fs.adamfs.compression.codec=deflate.
+ */
+public class AdamFSBenchmark extends Configured implements Tool {
+
+	private static final String[] ALL = {
+		"status", "list", "delete", "seqread", "randread", "create", "write"
+	};
+	private static final long MB = 1024 * 1024;
+
+	private static final String OPS_PER_SEC = "ops/s";
+	private static final String MS_PER_OP = "ms/op";
+	private static final String MB_PER_SEC = "MB/s";
+
+	/** One benchmark with one parameter value. */
+	private abstract static class Benchmark {
+		final String name;
+		final String param;
+		final String unit;
+
+		Benchmark(String name, String param, String unit) {
+			this.name = name;
+			this.param = param;
+			this.unit = unit;
+		}
+
+		void setup() throws IOException {
+		}
+
+		/** Runs before every op, untimed. */
+		void prepare() throws IOException {
+		}
+
+		/** One timed op. Returns the bytes it moved, 0 for metadata ops. */
+		abstract long run() throws IOException;
+
+		void teardown() throws IOException {
+		}
+	}
+
+	private PrintStream out = System.out;
+	private FileSystem fs;
+	private AdamFSServer server;
+	private AdamFSLocalStorage storage; // maps paths to the server's files
+	private final Random random = new Random(0);
+
+	private int warmup = 2;
+	private int iterations = 5;
+	private long iterationNanos = 1000L * 1000 * 1000;
+	private int[] entries = { 1000, 10000, 100000 };
+	private int[] buffers = { 4096, 64 * 1024, 1024 * 1024 };
+	private long fileSize = 64 * MB;
+	private boolean textData = false;
+	private int deleteFanout = 10;
+	private int deleteFiles = 100;
+
+	public int run(String[] args) throws Exception {
+		List<String> benches = Arrays.asList(ALL);
+		Set<String> caps = new HashSet<String>();
+		int port = 9999;
+		File dir = null;
+		for (int i = 0; i < args.length; i++) {
+			if (i + 1 >= args.length) {
+				return usage();
+			}
+			String opt = args[i];
+			String value = args[++i];
+			if (opt.equals("-bench")) {
+				benches = Arrays.asList(value.split(","));
+			} else if (opt.equals("-caps")) {
+				caps.addAll(Arrays.asList(value.split(",")));
+			} else if (opt.equals("-port")) {
+				port = Integer.parseInt(value);
+			} else if (opt.equals("-dir")) {
+				dir = new File(value);
+			} else if (opt.equals("-warmup")) {
+				warmup = Integer.parseInt(value);
+			} else if (opt.equals("-iterations")) {
+				iterations = Math.max(1, Integer.parseInt(value));
+			} else if (opt.equals("-time")) {
+				iterationNanos = (long) (Double.parseDouble(value) * 1e9);
+			} else if (opt.equals("-entries")) {
+				entries = parseInts(value);
+			} else if (opt.equals("-buffers")) {
+				buffers = parseInts(value);
+			} else if (opt.equals("-size")) {
+				fileSize = Long.parseLong(value);
+			} else if (opt.equals("-data") && (value.equals("random") || value.equals("text"))) {
+				textData = value.equals("text");
+			} else {
+				return usage();
+			}
+		}
+		for (String bench : benches) {
+			if (!Arrays.asList(ALL).contains(bench)) {
+				return usage();
+			}
+		}
+
+		if (dir == null) {
+			dir = File.createTempFile("adamfs-bench", "");
+			dir.delete();
+		}
+		if (!dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("cannot create " + dir);
+		}
+		storage = new AdamFSLocalStorage(dir, getConf());
+		server = new AdamFSServer(getConf(), storage, "localhost", port, caps);
+		server.start();
+		try {
+			Configuration conf = new Configuration(getConf());
+			String uri = "adamfs://localhost:" + server.getPort();
+			conf.set("fs.adamfs.impl", AdamFileSystem.class.getName());
+			conf.set("fs.default.name", uri);
+			if (conf.get(AdamFSStatusCache.CACHE_ENABLED_KEY) == null) {
+				conf.setBoolean(AdamFSStatusCache.CACHE_ENABLED_KEY, false);
+			}
+			conf.setBoolean("fs.adamfs.impl.disable.cache", true);
+			fs = FileSystem.get(URI.create(uri), conf);
+			try {
+				out.println("# server " + uri
+						+ " over " + storage.getRoot()
+						+ (caps.isEmpty() ? "" : ", capabilities " + caps));
+				out.println(String.format("%-10s %10s %4s %14s %12s  %s",
+						"Benchmark", "(param)", "Cnt", "Score", "Error", "Units"));
+				for (String bench : benches) {
+					for (Benchmark b : create(bench)) {
+						measure(b);
+					}
+				}
+				printMetrics();
+			} finally {
+				fs.close();
+			}
+		} finally {
+			server.stop();
+			deleteTree(dir);
+		}
+		return 0;
+	}
+
+	private int usage() {
+		System.err.println("Usage: AdamFSBenchmark [-bench " + join(ALL) + "]"
+				+ " [-caps cap,...] [-port port] [-dir tmpdir] [-warmup n] [-iterations n]"
+				+ " [-time seconds] [-entries n,...] [-buffers bytes,...] [-size bytes]"
+				+ " [-data random|text]");
+		ToolRunner.printGenericCommandUsage(System.err);
+		return -1;
+	}
+
+	private List<Benchmark> create(String bench) {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		if (bench.equals("status")) {
+			list.add(statusBenchmark());
+		} else if (bench.equals("list")) {
+			for (int n : entries) {
+				list.add(listBenchmark(n));
+			}
+		} else if (bench.equals("delete")) {
+			list.add(deleteBenchmark());
+		} else if (bench.equals("seqread")) {
+			for (int size : buffers) {
+				list.add(sequentialReadBenchmark(size));
+			}
+		} else if (bench.equals("randread")) {
+			for (int size : buffers) {
+				list.add(randomReadBenchmark(size));
+			}
+		} else if (bench.equals("create")) {
+			list.add(createBenchmark());
+		} else if (bench.equals("write")) {
+			for (int size : buffers) {
+				list.add(writeBenchmark(size));
+			}
+		}
+		return list;
+	}
+
+	// ---------------------------------------------------------------
+	// Benchmarks
+	// ---------------------------------------------------------------
+
+	/** getFileStatus of one existing file. */
+	private Benchmark statusBenchmark() {
+		return new Benchmark("status", "-", OPS_PER_SEC) {
+			final Path path = new Path("/status/file");
+
+			void setup() throws IOException {
+				localFile(path, 0);
+			}
+
+			long run() throws IOException {
+				fs.getFileStatus(path);
+				return 0;
+			}
+		};
+	}
+
+	/** listStatus of a directory of n files. */
+	private Benchmark listBenchmark(final int n) {
+		return new Benchmark("list", Integer.toString(n), MS_PER_OP) {
+			final Path path = new Path("/list" + n);
+
+			void setup() throws IOException {
+				File dir = storage.toLocal(path.toString());
+				dir.mkdirs();
+				for (int i = 0; i < n; i++) {
+					new File(dir, "part-" + i).createNewFile();
+				}
+			}
+
+			long run() throws IOException {
+				int found = fs.listStatus(path).length;
+				if (found != n) {
+					throw new IOException("listed " + found + " of " + n + " entries");
+				}
+				return 0;
+			}
+
+			void teardown() {
+				deleteTree(new File(storage.getRoot(), path.getName()));
+			}
+		};
+	}
+
+	/** Recursive delete of a tree of deleteFanout directories of deleteFiles files. */
+	private Benchmark deleteBenchmark() {
+		return new Benchmark("delete", deleteFanout + "x" + deleteFiles, MS_PER_OP) {
+			final Path path = new Path("/delete");
+
+			void prepare() throws IOException {
+				File dir = storage.toLocal(path.toString());
+				for (int d = 0; d < deleteFanout; d++) {
+					File sub = new File(dir, "dir-" + d);
+					sub.mkdirs();
+					for (int i = 0; i < deleteFiles; i++) {
+						new File(sub, "part-" + i).createNewFile();
+					}
+				}
+			}
+
+			long run() throws IOException {
+				if (!fs.delete(path, true)) {
+					throw new IOException("delete of " + path + " failed");
+				}
+				return 0;
+			}
+		};
+	}
+
+	/** open, read the whole file with bufferSize reads, close. */
+	private Benchmark sequentialReadBenchmark(final int bufferSize) {
+		return new Benchmark("seqread", Integer.toString(bufferSize), MB_PER_SEC) {
+			final Path path = new Path("/read/file");
+			final byte[] buf = new byte[bufferSize];
+
+			void setup() throws IOException {
+				if (!storage.toLocal(path.toString()).exists()) {
+					localFile(path, fileSize);
+				}
+			}
+
+			long run() throws IOException {
+				FSDataInputStream in = fs.open(path, bufferSize);
+				long total = 0;
+				try {
+					int n;
+					while ((n = in.read(buf, 0, buf.length)) > 0) {
+						total += n;
+					}
+				} finally {
+					in.close();
+				}
+				if (total != fileSize) {
+					throw new IOException("read " + total + " of " + fileSize + " bytes");
+				}
+				return total;
+			}
+		};
+	}
+
+	/** seek to a random offset and readFully bufferSize bytes, on one open stream. */
+	private Benchmark randomReadBenchmark(final int bufferSize) {
+		return new Benchmark("randread", Integer.toString(bufferSize), MB_PER_SEC) {
+			final Path path = new Path("/read/file");
+			final byte[] buf = new byte[bufferSize];
+			FSDataInputStream in;
+
+			void setup() throws IOException {
+				if (!storage.toLocal(path.toString()).exists()) {
+					localFile(path, fileSize);
+				}
+				in = fs.open(path, bufferSize);
+			}
+
+			long run() throws IOException {
+				long range = Math.max(1, fileSize - bufferSize);
+				in.seek((random.nextLong() & Long.MAX_VALUE) % range);
+				in.readFully(buf, 0, (int) Math.min(bufferSize, fileSize));
+				return buf.length;
+			}
+
+			void teardown() throws IOException {
+				in.close();
+			}
+		};
+	}
+
+	/** create and close an empty file in an existing directory. */
+	private Benchmark createBenchmark() {
+		return new Benchmark("create", "-", OPS_PER_SEC) {
+			final Path dir = new Path("/create");
+			int next = 0;
+
+			void setup() throws IOException {
+				storage.toLocal(dir.toString()).mkdirs();
+			}
+
+			long run() throws IOException {
+				fs.create(new Path(dir, "file-" + next++)).close();
+				return 0;
+			}
+
+			void teardown() {
+				deleteTree(new File(storage.getRoot(), dir.getName()));
+			}
+		};
+	}
+
+	/** create a file of -size bytes with bufferSize writes, close. */
+	private Benchmark writeBenchmark(final int bufferSize) {
+		return new Benchmark("write", Integer.toString(bufferSize), MB_PER_SEC) {
+			final Path path = new Path("/write/file");
+			final byte[] buf = new byte[bufferSize];
+
+			void setup() throws IOException {
+				fill(buf);
+				storage.toLocal(path.getParent().toString()).mkdirs();
+			}
+
+			long run() throws IOException {
+				FSDataOutputStream stream = fs.create(path, true, bufferSize);
+				try {
+					for (long done = 0; done < fileSize; done += buf.length) {
+						stream.write(buf, 0, (int) Math.min(buf.length, fileSize - done));
+					}
+				} finally {
+					stream.close();
+				}
+				return fileSize;
+			}
+
+			void teardown() {
+				deleteTree(new File(storage.getRoot(), path.getParent().getName()));
+			}
+		};
+	}
+
+	// ---------------------------------------------------------------
+	// Harness
+	// ---------------------------------------------------------------
+
+	private void measure(Benchmark b) throws IOException {
+		b.setup();
+		try {
+			for (int i = 0; i < warmup; i++) {
+				iteration(b);
+			}
+			double[] scores = new double[iterations];
+			for (int i = 0; i < iterations; i++) {
+				scores[i] = iteration(b);
+			}
+			double mean = 0;
+			for (double s : scores) {
+				mean += s;
+			}
+			mean /= scores.length;
+			double var = 0;
+			for (double s : scores) {
+				var += (s - mean) * (s - mean);
+			}
+			double stddev = scores.length > 1 ? Math.sqrt(var / (scores.length - 1)) : 0;
+			out.println(String.format("%-10s %10s %4d %14.3f %s %10.3f  %s",
+					b.name, b.param, scores.length, mean, "+-", stddev, b.unit));
+		} finally {
+			b.teardown();
+		}
+	}
+
+	/** Run ops until -time seconds of them have been timed, at least one. */
+	private double iteration(Benchmark b) throws IOException {
+		long timed = 0;
+		long ops = 0;
+		long bytes = 0;
+		do {
+			b.prepare();
+			long start = System.nanoTime();
+			bytes += b.run();
+			timed += System.nanoTime() - start;
+			ops++;
+		} while (timed < iterationNanos);
+		double seconds = timed / 1e9;
+		if (b.unit == MS_PER_OP) {
+			return seconds * 1000 / ops;
+		} else if (b.unit == MB_PER_SEC) {
+			return bytes / (double) MB / seconds;
+		}
+		return ops / seconds;
+	}
+
+	/** Client side request counts and latencies over the whole run. */
+	private void printMetrics() {
+		AdamFSMetrics metrics = AdamFSMetrics.get();
+		out.println();
+		out.println(String.format("# %-16s %10s %8s %10s %10s", "op", "requests", "errors",
+				"p50 us", "p99 us"));
+		for (int op = 1; op <= AdamFSProtocol.MAX_OPCODE; op++) {
+			if (metrics.getRequests(op) == 0) {
+				continue;
+			}
+			out.println(String.format("# %-16s %10d %8d %10d %10d", AdamFSProtocol.opcodeName(op),
+					metrics.getRequests(op), metrics.getErrors(op),
+					metrics.getLatencyPercentile(op, 50), metrics.getLatencyPercentile(op, 99)));
+		}
+		out.println(String.format("# connections opened %d, reused %d;"
+				+ " round trips per open %.2f, per create %.2f",
+				metrics.getConnectionsOpened(), metrics.getConnectionsReused(),
+				metrics.getRoundTripsPerOpen(), metrics.getRoundTripsPerCreate()));
+		if (metrics.getCompressionSaved() != 0) {
+			out.println(String.format("# compression saved %d MB", metrics.getCompressionSaved() / MB));
+		}
+		if (metrics.getBlockCacheHits() + metrics.getBlockCacheMisses() > 0) {
+			out.println(String.format("# block cache hits %d, misses %d, evictions %d",
+					metrics.getBlockCacheHits(), metrics.getBlockCacheMisses(),
+					metrics.getBlockCacheEvictions()));
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Fixtures
+	// ---------------------------------------------------------------
+
+	/** Write a file of random bytes straight into the server's directory. */
+	private void localFile(Path path, long length) throws IOException {
+		File f = storage.toLocal(path.toString());
+		f.getParentFile().mkdirs();
+		OutputStream stream = new FileOutputStream(f);
+		try {
+			byte[] buf = new byte[(int) Math.min(MB, Math.max(1, length))];
+			fill(buf);
+			for (long done = 0; done < length; done += buf.length) {
+				stream.write(buf, 0, (int) Math.min(buf.length, length - done));
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/** Random bytes, or with -data text lines of words that deflate about 3:1. */
+	private void fill(byte[] buf) {
+		if (!textData) {
+			random.nextBytes(buf);
+			return;
+		}
+		String[] words = {
+			"the", "adamfs", "client", "reads", "and", "writes", "blocks", "over", "a",
+			"socket", "to", "api-server", "INFO", "WARN", "map", "reduce", "task", "attempt"
+		};
+		int i = 0;
+		while (i < buf.length) {
+			byte[] word = (words[random.nextInt(words.length)]
+					+ (random.nextInt(12) == 0 ? "\n" : " ")).getBytes();
+			int n = Math.min(word.length, buf.length - i);
+			System.arraycopy(word, 0, buf, i, n);
+			i += n;
+		}
+	}
+
+	private static void deleteTree(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		f.delete();
+	}
+
+	private static int[] parseInts(String value) {
+		String[] parts = value.split(",");
+		int[] ret = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			ret[i] = Integer.parseInt(parts[i].trim());
+		}
+		return ret;
+	}
+
+	private static String join(String[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (String v : values) {
+			sb.append(sb.length() > 0 ? "," : "").append(v);
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.exit(ToolRunner.run(new Configuration(), new AdamFSBenchmark(), args));
+	}
+}
@@ -0,0 +1,158 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.io.MD5Hash;
+
+/**
+ * File checksums for the CHECKSUM op of an {@link AdamFSServer}, computed
+ * as HDFS computes MD5MD5CRC32FileChecksum: a CRC32 per
+ * fs.adamfs.server.bytes.per.checksum bytes, an MD5 of the CRCs of each
+ * block and an MD5 of the block MD5s. With the same block size and bytes
+ * per checksum, a file copied from HDFS gets the checksum it had there.
+ *
+ * Reading a whole file is expensive, so the last
+ * fs.adamfs.server.checksum.cache.size checksums are kept and handed out
+ * again while the file has the length and modification time it had when
+ * it was read. A file rewritten to the same length within the store's
+ * timestamp granularity keeps its old checksum until it is evicted.
+ */
+class AdamFSChecksums {
+
+	public static final String SERVER_BYTES_PER_CHECKSUM_KEY = "fs.adamfs.server.bytes.per.checksum";
+	public static final String SERVER_CHECKSUM_CACHE_SIZE_KEY = "fs.adamfs.server.checksum.cache.size";
+	public static final int SERVER_CHECKSUM_CACHE_SIZE_DEFAULT = 10000;
+
+	private static final int READ_SIZE = 1024 * 1024;
+
+	/** A file's checksum and the file it was computed from. */
+	static class Checksum {
+		final long length;
+		final long modificationTime;
+		final int bytesPerCrc;
+		final long crcPerBlock; // 0 for files of one block, as HDFS has it
+		final MD5Hash md5;
+
+		Checksum(long length, long modificationTime, int bytesPerCrc, long crcPerBlock,
+				MD5Hash md5) {
+			this.length = length;
+			this.modificationTime = modificationTime;
+			this.bytesPerCrc = bytesPerCrc;
+			this.crcPerBlock = crcPerBlock;
+			this.md5 = md5;
+		}
+	}
+
+	private final AdamFSStorage storage;
+	private final int bytesPerCrc;
+	private final Map<String, Checksum> cache; // null if off; guarded by itself
+
+	AdamFSChecksums(Configuration conf, AdamFSStorage storage) {
+		this.storage = storage;
+		bytesPerCrc = Math.max(1, conf.getInt(SERVER_BYTES_PER_CHECKSUM_KEY,
+				conf.getInt("io.bytes.per.checksum", 512)));
+		final int size = conf.getInt(SERVER_CHECKSUM_CACHE_SIZE_KEY,
+				SERVER_CHECKSUM_CACHE_SIZE_DEFAULT);
+		cache = size <= 0 ? null : new LinkedHashMap<String, Checksum>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Checksum> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/** The checksum of a file, null if path is not a file. May read all of it. */
+	Checksum get(String path) throws IOException {
+		FileStatus status = storage.getFileStatus(path);
+		if (status == null || status.isDir()) {
+			return null;
+		}
+		if (cache != null) {
+			Checksum cached;
+			synchronized (cache) {
+				cached = cache.get(path);
+			}
+			if (cached != null && cached.length == status.getLen()
+					&& cached.modificationTime == status.getModificationTime()) {
+				return cached;
+			}
+		}
+		AdamFSStorage.Reader reader = storage.openForRead(path);
+		if (reader == null) {
+			return null; // deleted meanwhile
+		}
+		Checksum sum;
+		try {
+			sum = compute(reader, status, bytesPerCrc);
+		} finally {
+			reader.close();
+		}
+		// written to while it was read; answer, but do not keep it
+		FileStatus after = storage.getFileStatus(path);
+		if (cache != null && after != null && after.getLen() == sum.length
+				&& after.getModificationTime() == sum.modificationTime) {
+			synchronized (cache) {
+				cache.put(path, sum);
+			}
+		}
+		return sum;
+	}
+
+	/** Read the file from start to end and checksum it. */
+	static Checksum compute(AdamFSStorage.Reader reader, FileStatus status, int bytesPerCrc)
+			throws IOException {
+		long length = status.getLen();
+		long blockSize = Math.max(bytesPerCrc, status.getBlockSize() / bytesPerCrc * bytesPerCrc);
+		MessageDigest fileMd5 = md5();
+		MessageDigest blockMd5 = md5();
+		CRC32 crc = new CRC32();
+		byte[] crcBytes = new byte[4];
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(bytesPerCrc, READ_SIZE / bytesPerCrc * bytesPerCrc));
+		long pos = 0;
+		while (pos < length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length - pos));
+			while (buffer.hasRemaining()) {
+				if (reader.read(pos + buffer.position(), buffer) < 0) {
+					throw new IOException("<AdamFS:CHECKSUM> file shrank while reading it");
+				}
+			}
+			byte[] data = buffer.array();
+			for (int off = 0; off < buffer.limit(); off += bytesPerCrc) {
+				crc.reset();
+				crc.update(data, off, Math.min(bytesPerCrc, buffer.limit() - off));
+				int value = (int) crc.getValue();
+				crcBytes[0] = (byte) (value >>> 24);
+				crcBytes[1] = (byte) (value >>> 16);
+				crcBytes[2] = (byte) (value >>> 8);
+				crcBytes[3] = (byte) value;
+				blockMd5.update(crcBytes);
+				long end = pos + off + bytesPerCrc;
+				if (end % blockSize == 0 || end >= length) { // last chunk of a block
+					fileMd5.update(blockMd5.digest());
+				}
+			}
+			pos += buffer.limit();
+		}
+		long crcPerBlock = length > blockSize ? blockSize / bytesPerCrc : 0;
+		return new Checksum(length, status.getModificationTime(), bytesPerCrc, crcPerBlock,
+				new MD5Hash(fileMd5.digest()));
+	}
+
+	private static MessageDigest md5() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("<AdamFS:CHECKSUM> no MD5: " + e);
+		}
+	}
+}
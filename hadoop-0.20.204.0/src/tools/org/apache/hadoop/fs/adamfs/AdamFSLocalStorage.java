@@ -0,0 +1,331 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * {@link AdamFSStorage} over a directory of the local file system, named by
+ * fs.adamfs.server.local.root, that stands for "/".
+ *
+ * Reads never copy file data through the JVM heap: files of at most
+ * fs.adamfs.server.local.mmap.max.size bytes are memory-mapped and ranges
+ * are written to the socket straight from the mapping; bigger files (or
+ * all, with the setting at 0) go out with FileChannel.transferTo, i.e.
+ * sendfile. Writes go through positional FileChannel writes of the
+ * buffers the server received, and sync() is fdatasync.
+ *
+ * A mapping is only released when it is garbage collected, so it is made
+ * once per file and shared by every read session on it, for as long as
+ * the file keeps the length and modification time it was mapped with.
+ * At most fs.adamfs.server.local.mmap.files files are mapped at a time;
+ * others are read with transferTo until a delete or rename frees a slot.
+ * Opening files over and over thus does not pile up mappings toward
+ * vm.max_map_count.
+ */
+public class AdamFSLocalStorage implements AdamFSStorage {
+
+	public static final String LOCAL_ROOT_KEY = "fs.adamfs.server.local.root";
+	public static final String LOCAL_MMAP_MAX_SIZE_KEY = "fs.adamfs.server.local.mmap.max.size";
+	public static final long LOCAL_MMAP_MAX_SIZE_DEFAULT = 64 * 1024 * 1024;
+	public static final String LOCAL_MMAP_FILES_KEY = "fs.adamfs.server.local.mmap.files";
+	public static final int LOCAL_MMAP_FILES_DEFAULT = 256;
+	public static final String LOCAL_BLOCK_SIZE_KEY = "fs.adamfs.server.local.block.size";
+	public static final long LOCAL_BLOCK_SIZE_DEFAULT = 64 * 1024 * 1024;
+
+	private File root;
+	private String rootPath;
+	private long mmapMaxSize;
+	private int mmapFiles;
+	private long blockSize;
+	// by local path; guarded by itself
+	private final Map<String, Mapping> mappings = new HashMap<String, Mapping>();
+	private final String owner = System.getProperty("user.name");
+
+	/** For fs.adamfs.server.storage.class; the root comes from the configuration. */
+	public AdamFSLocalStorage() {
+	}
+
+	/** A storage over root, with the other settings from conf. */
+	public AdamFSLocalStorage(File root, Configuration conf) throws IOException {
+		Configuration copy = new Configuration(conf);
+		copy.set(LOCAL_ROOT_KEY, root.getPath());
+		initialize(copy);
+	}
+
+	public void initialize(Configuration conf) throws IOException {
+		String dir = conf.get(LOCAL_ROOT_KEY);
+		if (dir == null) {
+			throw new IOException("<AdamFS:STORAGE> " + LOCAL_ROOT_KEY + " is not set");
+		}
+		root = new File(dir).getCanonicalFile();
+		rootPath = root.getPath();
+		if (!root.isDirectory()) {
+			throw new IOException("<AdamFS:STORAGE> " + root + " is not a directory");
+		}
+		mmapMaxSize = Math.min(Integer.MAX_VALUE,
+				conf.getLong(LOCAL_MMAP_MAX_SIZE_KEY, LOCAL_MMAP_MAX_SIZE_DEFAULT));
+		mmapFiles = Math.max(0, conf.getInt(LOCAL_MMAP_FILES_KEY, LOCAL_MMAP_FILES_DEFAULT));
+		blockSize = conf.getLong(LOCAL_BLOCK_SIZE_KEY, LOCAL_BLOCK_SIZE_DEFAULT);
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/** The local file behind a path of the served file system. */
+	public File toLocal(String path) throws IOException {
+		int scheme = path.indexOf("://");
+		if (scheme >= 0) { // qualified, drop scheme and authority
+			int slash = path.indexOf('/', scheme + 3);
+			path = slash < 0 ? "/" : path.substring(slash);
+		}
+		File f = new File(root, path).getCanonicalFile();
+		if (!f.getPath().equals(rootPath) && !f.getPath().startsWith(rootPath + File.separator)) {
+			throw new IOException("<AdamFS:STORAGE> path outside the root: " + path);
+		}
+		return f;
+	}
+
+	public FileStatus getFileStatus(String path) throws IOException {
+		File f = toLocal(path);
+		if (!f.exists()) {
+			return null;
+		}
+		boolean dir = f.isDirectory();
+		return new FileStatus(dir ? 0 : f.length(), dir, 1, blockSize, f.lastModified(),
+				f.lastModified(), new FsPermission((short) (dir ? 0755 : 0644)), owner,
+				"supergroup", new Path(path));
+	}
+
+	public String[] list(String path) throws IOException {
+		String[] names = toLocal(path).list();
+		if (names != null) {
+			Arrays.sort(names);
+		}
+		return names;
+	}
+
+	public ContentSummary getContentSummary(String path) throws IOException {
+		File f = toLocal(path);
+		if (!f.exists()) {
+			return null;
+		}
+		long[] sums = new long[3]; // length, files, directories
+		addUp(f, sums);
+		return new ContentSummary(sums[0], sums[1], sums[2]);
+	}
+
+	private static void addUp(File f, long[] sums) {
+		File[] children = f.listFiles();
+		if (children == null) {
+			sums[0] += f.length();
+			sums[1]++;
+			return;
+		}
+		sums[2]++;
+		for (File child : children) {
+			addUp(child, sums);
+		}
+	}
+
+	public boolean delete(String path, boolean recursive) throws IOException {
+		File f = toLocal(path);
+		if (!f.exists() || f.equals(root)) {
+			return false;
+		}
+		forget(f);
+		return recursive ? deleteTree(f) : f.delete();
+	}
+
+	public boolean mkdirs(String path) throws IOException {
+		File f = toLocal(path);
+		return f.mkdirs() || f.isDirectory();
+	}
+
+	public boolean rename(String src, String dst) throws IOException {
+		File from = toLocal(src);
+		File to = toLocal(dst);
+		if (!from.exists() || to.exists() || from.equals(root)) {
+			return false;
+		}
+		forget(from);
+		return from.renameTo(to);
+	}
+
+	public Reader openForRead(String path) throws IOException {
+		File f = toLocal(path);
+		if (!f.isFile()) {
+			return null;
+		}
+		FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+		try {
+			return new LocalReader(channel, map(f.getPath(), f.lastModified(), channel));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The shared mapping of the file open on channel, mapped now if there
+	 * is none for its length and modification time; null if the file is
+	 * to be read with transferTo.
+	 */
+	private MappedByteBuffer map(String key, long modificationTime, FileChannel channel)
+			throws IOException {
+		long size = channel.size();
+		if (size <= 0 || size > mmapMaxSize) {
+			return null;
+		}
+		synchronized (mappings) {
+			Mapping m = mappings.get(key);
+			if (m != null && m.length == size && m.modificationTime == modificationTime) {
+				return m.map;
+			}
+			if (m == null && mappings.size() >= mmapFiles) {
+				return null; // no slot, not worth a mapping that lingers
+			}
+		}
+		// map outside the lock; if two opens race, one mapping is kept
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		synchronized (mappings) {
+			Mapping m = mappings.get(key);
+			if (m != null && m.length == size && m.modificationTime == modificationTime) {
+				return m.map;
+			}
+			// a changed file's old mapping goes once its sessions are done
+			mappings.put(key, new Mapping(size, modificationTime, map));
+			return map;
+		}
+	}
+
+	/** Drop the mappings of f and of everything under it. */
+	private void forget(File f) {
+		String prefix = f.getPath() + File.separator;
+		synchronized (mappings) {
+			Iterator<String> it = mappings.keySet().iterator();
+			while (it.hasNext()) {
+				String key = it.next();
+				if (key.equals(f.getPath()) || key.startsWith(prefix)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public Writer openForWrite(String path, boolean truncate) throws IOException {
+		File f = toLocal(path);
+		if (f.isDirectory() || !f.getParentFile().isDirectory()) {
+			return null;
+		}
+		FileChannel channel = new RandomAccessFile(f, "rw").getChannel();
+		if (truncate) {
+			channel.truncate(0);
+		}
+		return new LocalWriter(channel);
+	}
+
+	public void close() {
+	}
+
+	private static boolean deleteTree(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		return f.delete();
+	}
+
+	/** A file's mapping and the file it was made from. */
+	private static class Mapping {
+		final long length;
+		final long modificationTime;
+		final MappedByteBuffer map;
+
+		Mapping(long length, long modificationTime, MappedByteBuffer map) {
+			this.length = length;
+			this.modificationTime = modificationTime;
+			this.map = map;
+		}
+	}
+
+	private static class LocalReader implements Reader {
+		private final FileChannel channel;
+		private final MappedByteBuffer map; // shared, null if the file is read with transferTo
+
+		LocalReader(FileChannel channel, MappedByteBuffer map) {
+			this.channel = channel;
+			this.map = map;
+		}
+
+		public long length() throws IOException {
+			return channel.size();
+		}
+
+		public long transferTo(long pos, long count, WritableByteChannel target)
+				throws IOException {
+			if (map == null || pos + count > map.capacity()) { // grown since it was mapped
+				return channel.transferTo(pos, count, target);
+			}
+			ByteBuffer range = map.duplicate();
+			range.limit((int) (pos + count));
+			range.position((int) pos);
+			return target.write(range);
+		}
+
+		public int read(long pos, ByteBuffer dst) throws IOException {
+			return channel.read(dst, pos);
+		}
+
+		public void close() throws IOException {
+			channel.close(); // the mapping stays for the next session
+		}
+	}
+
+	private static class LocalWriter implements Writer {
+		private final FileChannel channel;
+
+		LocalWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public long length() throws IOException {
+			return channel.size();
+		}
+
+		public void write(long pos, ByteBuffer src) throws IOException {
+			while (src.hasRemaining()) {
+				pos += channel.write(src, pos);
+			}
+		}
+
+		public void truncate(long length) throws IOException {
+			channel.truncate(length);
+		}
+
+		public void sync() throws IOException {
+			channel.force(false);
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,1395 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.adamfs.AdamFSWireFields.Args;
+import org.apache.hadoop.fs.adamfs.AdamFSWireFields.BinaryArgs;
+import org.apache.hadoop.fs.adamfs.AdamFSWireFields.BinaryReply;
+import org.apache.hadoop.fs.adamfs.AdamFSWireFields.Reply;
+import org.apache.hadoop.fs.adamfs.AdamFSWireFields.TextArgs;
+import org.apache.hadoop.fs.adamfs.AdamFSWireFields.TextReply;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.Daemon;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Reference api-server. It speaks both protocol versions and answers every
+ * op code the client sends, the optional ones for the capabilities in
+ * fs.adamfs.server.capabilities (all of them by default), and keeps the
+ * files in a pluggable {@link AdamFSStorage}.
+ *
+ * Connections are non-blocking and served by fs.adamfs.server.event.loops
+ * selector threads; an acceptor hands each new connection to one of them.
+ * A connection's requests are handled in order as they arrive and requests
+ * pipelined by the client are answered back to back. READ replies are the
+ * frame header followed by the file range, which the storage writes to the
+ * socket itself (see {@link AdamFSLocalStorage} for mmap and sendfile); only
+ * DEFLATE replies are built in memory.
+ *
+ * Memory per connection is bounded. Requests are read into a buffer of
+ * fs.adamfs.server.buffer.size bytes that only grows to hold a frame bigger
+ * than that, up to fs.adamfs.server.max.frame.size, and shrinks back once
+ * it is empty; raw SETUP_WRITE data is written out as each buffer full
+ * arrives. Once fs.adamfs.server.output.limit bytes of replies are queued
+ * for a client that does not read them, its requests are left unread until
+ * the queue drains.
+ *
+ * Storage calls run on the event loops, so a slow store holds up the other
+ * connections of the same loop; a store over the network should answer
+ * from a cache or be given more loops. CHECKSUM, which reads whole files,
+ * is the exception: it runs on one of fs.adamfs.server.checksum.threads
+ * threads (see {@link AdamFSChecksums}) and only the requests after it on
+ * the same connection wait for it.
+ *
+ * <pre>
+ * hadoop org.apache.hadoop.fs.adamfs.AdamFSServer [-D key=value ...]
+ *     [-root dir] [-host localhost] [-port 9999] [-caps cap,...]
+ * </pre>
+ */
+public class AdamFSServer {
+	public static final Log LOG = LogFactory.getLog(AdamFSServer.class);
+
+	public static final String SERVER_STORAGE_CLASS_KEY = "fs.adamfs.server.storage.class";
+	public static final String SERVER_CAPABILITIES_KEY = "fs.adamfs.server.capabilities";
+	public static final String SERVER_EVENT_LOOPS_KEY = "fs.adamfs.server.event.loops";
+	public static final String SERVER_BUFFER_SIZE_KEY = "fs.adamfs.server.buffer.size";
+	public static final int SERVER_BUFFER_SIZE_DEFAULT = 64 * 1024;
+	public static final String SERVER_MAX_FRAME_SIZE_KEY = "fs.adamfs.server.max.frame.size";
+	public static final int SERVER_MAX_FRAME_SIZE_DEFAULT = 64 * 1024 * 1024;
+	public static final String SERVER_OUTPUT_LIMIT_KEY = "fs.adamfs.server.output.limit";
+	public static final long SERVER_OUTPUT_LIMIT_DEFAULT = 16 * 1024 * 1024;
+	public static final String SERVER_CHECKSUM_THREADS_KEY = "fs.adamfs.server.checksum.threads";
+	public static final int SERVER_CHECKSUM_THREADS_DEFAULT = 2;
+
+	/** Every optional feature this server has. */
+	public static final String[] ALL_CAPABILITIES = {
+		AdamFSProtocol.CAP_LIST_STATUS, AdamFSProtocol.CAP_DELETE_RECURSIVE,
+		AdamFSProtocol.CAP_DELETE_BATCH, AdamFSProtocol.CAP_CHUNKED_WRITE,
+		AdamFSProtocol.CAP_PARALLEL_WRITE, AdamFSProtocol.CAP_DEFLATE,
+		AdamFSProtocol.CAP_COMPOUND, AdamFSProtocol.CAP_APPEND,
+		AdamFSProtocol.CAP_CONTENT_SUMMARY, AdamFSProtocol.CAP_CHECKSUM
+	};
+
+	private static final int MAX_LINE = 64 * 1024;
+	private static final int MAX_GATHER = 64; // reply buffers per write call
+
+	// what a connection is doing, i.e. how the next bytes are read
+	private static final int DETECT = 0; // waiting for MAGIC or a text line
+	private static final int TEXT = 1;
+	private static final int TEXT_READ = 2; // v1 OPEN session
+	private static final int BINARY = 3;
+	private static final int BINARY_READ = 4; // v2 OPEN session
+	private static final int CHUNKED_WRITE = 5; // WRITE_OPEN or WRITE_APPEND session
+	private static final int RAW_WRITE = 6; // SETUP_WRITE, the rest is the file
+
+	private final AdamFSStorage storage;
+	private final String host;
+	private final int port;
+	private final Set<String> capabilities;
+	private final int eventLoopCount;
+	private final int bufferSize;
+	private final int maxFrameSize;
+	private final long outputLimit;
+	private final AdamFSChecksums checksums;
+	private final int checksumThreads;
+	private ServerSocketChannel server;
+	private EventLoop[] loops;
+	private ExecutorService checksummers;
+	private Daemon acceptor;
+	private volatile boolean running = false;
+
+	/**
+	 * @param storage where the files are, already initialized
+	 * @param host address to listen on, also the host in block locations
+	 * @param port port to listen on, 0 for any free one
+	 * @param capabilities optional features to have, null for the ones in
+	 *        fs.adamfs.server.capabilities
+	 */
+	public AdamFSServer(Configuration conf, AdamFSStorage storage, String host, int port,
+			Set<String> capabilities) {
+		this.storage = storage;
+		this.host = host;
+		this.port = port;
+		if (capabilities == null) {
+			capabilities = new LinkedHashSet<String>(Arrays.asList(
+					conf.getStrings(SERVER_CAPABILITIES_KEY, ALL_CAPABILITIES)));
+		}
+		this.capabilities = capabilities;
+		eventLoopCount = Math.max(1, conf.getInt(SERVER_EVENT_LOOPS_KEY,
+				Runtime.getRuntime().availableProcessors()));
+		bufferSize = Math.max(4096, conf.getInt(SERVER_BUFFER_SIZE_KEY, SERVER_BUFFER_SIZE_DEFAULT));
+		maxFrameSize = Math.max(bufferSize,
+				conf.getInt(SERVER_MAX_FRAME_SIZE_KEY, SERVER_MAX_FRAME_SIZE_DEFAULT));
+		outputLimit = conf.getLong(SERVER_OUTPUT_LIMIT_KEY, SERVER_OUTPUT_LIMIT_DEFAULT);
+		checksums = new AdamFSChecksums(conf, storage);
+		checksumThreads = Math.max(1, conf.getInt(SERVER_CHECKSUM_THREADS_KEY,
+				SERVER_CHECKSUM_THREADS_DEFAULT));
+	}
+
+	/** The storage named by fs.adamfs.server.storage.class, initialized. */
+	public static AdamFSStorage createStorage(Configuration conf) throws IOException {
+		Class<? extends AdamFSStorage> cls = conf.getClass(SERVER_STORAGE_CLASS_KEY,
+				AdamFSLocalStorage.class, AdamFSStorage.class);
+		AdamFSStorage storage = ReflectionUtils.newInstance(cls, conf);
+		storage.initialize(conf);
+		return storage;
+	}
+
+	public synchronized void start() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(host, port), 128);
+		running = true;
+		checksummers = Executors.newFixedThreadPool(checksumThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Daemon(r);
+				t.setName("AdamFS server " + getPort() + " checksum " + t.getId());
+				return t;
+			}
+		});
+		loops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Daemon thread = new Daemon(loops[i]);
+			thread.setName("AdamFS server " + getPort() + " event loop " + i);
+			loops[i].thread = thread;
+			thread.start();
+		}
+		acceptor = new Daemon(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		});
+		acceptor.setName("AdamFS server " + getPort() + " acceptor");
+		acceptor.start();
+	}
+
+	/** Stop accepting, hang up on every client and close the storage. */
+	public void stop() {
+		running = false;
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+			LOG.debug("<AdamFS:SERVER> error closing server socket", e);
+		}
+		if (checksummers != null) {
+			checksummers.shutdownNow();
+		}
+		if (loops != null) {
+			for (EventLoop loop : loops) {
+				loop.selector.wakeup();
+				try {
+					loop.thread.join(10000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		try {
+			storage.close();
+		} catch (IOException e) {
+			LOG.warn("<AdamFS:SERVER> error closing the storage", e);
+		}
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	public AdamFSStorage getStorage() {
+		return storage;
+	}
+
+	private void acceptLoop() {
+		int next = 0;
+		while (running) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				if (running) {
+					LOG.warn("<AdamFS:SERVER> accept failed", e);
+				}
+				return;
+			}
+			loops[next++ % loops.length].add(channel);
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Event loops
+	// ---------------------------------------------------------------
+
+	private class EventLoop implements Runnable {
+		final Selector selector;
+		final Queue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); // from other threads
+		final Set<Connection> connections = new HashSet<Connection>();
+		Thread thread;
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(SocketChannel channel) {
+			added.add(channel);
+			selector.wakeup();
+		}
+
+		/** Run task on this loop's thread. */
+		void post(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					SocketChannel channel;
+					while ((channel = added.poll()) != null) {
+						register(channel);
+					}
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							LOG.warn("<AdamFS:SERVER> event loop task failed", e);
+						}
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						handle((Connection) key.attachment(), key.isValid() && key.isReadable(),
+								key.isValid() && key.isWritable());
+					}
+				}
+			} catch (IOException e) {
+				LOG.error("<AdamFS:SERVER> event loop failed", e);
+			} finally {
+				for (Connection c : new ArrayList<Connection>(connections)) {
+					c.close();
+				}
+				SocketChannel channel;
+				while ((channel = added.poll()) != null) {
+					closeQuietly(channel);
+				}
+				closeQuietly(selector);
+			}
+		}
+
+		/** Let a connection go on, closing it if it fails. */
+		void handle(Connection c, boolean readable, boolean writable) {
+			try {
+				c.handle(readable, writable);
+			} catch (EOFException e) {
+				c.close(); // client hung up
+			} catch (IOException e) {
+				if (running) {
+					LOG.debug("<AdamFS:SERVER> connection failed", e);
+				}
+				c.close();
+			} catch (RuntimeException e) {
+				// not the loop's other connections
+				LOG.warn("<AdamFS:SERVER> connection failed", e);
+				c.close();
+			}
+		}
+
+		private void register(SocketChannel channel) {
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				Connection c = new Connection(this, channel);
+				c.key = channel.register(selector, SelectionKey.OP_READ, c);
+				connections.add(c);
+			} catch (IOException e) {
+				LOG.debug("<AdamFS:SERVER> cannot take connection", e);
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		try {
+			if (c != null) {
+				c.close();
+			}
+		} catch (IOException e) {
+			// nothing left to do with it
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Queued output
+	// ---------------------------------------------------------------
+
+	/** Something to send; written as the socket takes it. */
+	private abstract static class Out {
+		abstract long remaining();
+
+		/** Write what the socket takes, return the number of bytes written. */
+		abstract long write(SocketChannel channel) throws IOException;
+
+		/** Called once it is sent, or when the connection closes. */
+		void done() {
+		}
+	}
+
+	private static class BufferOut extends Out {
+		final ByteBuffer buffer;
+
+		BufferOut(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		long remaining() {
+			return buffer.remaining();
+		}
+
+		long write(SocketChannel channel) throws IOException {
+			return channel.write(buffer);
+		}
+	}
+
+	/** A file range, sent by the storage without passing through the heap. */
+	private static class RangeOut extends Out {
+		final AdamFSStorage.Reader reader;
+		long pos;
+		long remaining;
+
+		RangeOut(AdamFSStorage.Reader reader, long pos, long length) {
+			this.reader = reader;
+			this.pos = pos;
+			this.remaining = length;
+		}
+
+		long remaining() {
+			return remaining;
+		}
+
+		long write(SocketChannel channel) throws IOException {
+			long n = reader.transferTo(pos, remaining, channel);
+			if (n == 0 && reader.length() < pos + remaining) {
+				// the reply header promised these bytes, the stream is lost
+				throw new IOException("<AdamFS:SERVER> file shrank while sending it");
+			}
+			pos += n;
+			remaining -= n;
+			return n;
+		}
+	}
+
+	/** Closes a reader once the replies queued before it are sent. */
+	private static class CloseOut extends Out {
+		final Closeable closeable;
+
+		CloseOut(Closeable closeable) {
+			this.closeable = closeable;
+		}
+
+		long remaining() {
+			return 0;
+		}
+
+		long write(SocketChannel channel) {
+			return 0;
+		}
+
+		void done() {
+			closeQuietly(closeable);
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Connections
+	// ---------------------------------------------------------------
+
+	private class Connection {
+		final EventLoop loop;
+		final SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(bufferSize); // filled from the socket
+		int needed = 0; // bytes a partial request needs in the buffer
+		final LinkedList<Out> out = new LinkedList<Out>();
+		long queued = 0;
+		int mode = DETECT;
+		boolean eof = false;
+		boolean closing = false; // hang up once out is sent
+		boolean waiting = false; // for a CHECKSUM; later requests stay unread
+		boolean closed = false;
+
+		final DataInputBuffer fields = new DataInputBuffer();
+		AdamFSStorage.Reader reader; // OPEN session
+		boolean deflate;
+		AdamFSStorage.Writer writer; // write session
+		long rawOffset;
+		String atPath; // file of the last WRITE_AT, kept open for the next
+		AdamFSStorage.Writer atWriter;
+		final CRC32 crc = new CRC32();
+		Deflater deflater;
+		Inflater inflater;
+		byte[] scratch;
+
+		Connection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		void handle(boolean readable, boolean writable) throws IOException {
+			if (writable) {
+				flush();
+			}
+			if (readable && !closing) {
+				if (channel.read(in) < 0) {
+					eof = true;
+				}
+			}
+			while (process()) {
+				flush();
+			}
+			flush();
+			if (eof && !closing) {
+				if (mode == RAW_WRITE) {
+					finishRawWrite();
+				}
+				closing = true;
+			}
+			if (closing && out.isEmpty()) {
+				close();
+				return;
+			}
+			int ops = out.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+			if (!closing && !waiting && queued < outputLimit) {
+				ops |= SelectionKey.OP_READ;
+			}
+			key.interestOps(ops);
+		}
+
+		/** Handle the complete requests in the buffer. Returns true if there were any. */
+		boolean process() throws IOException {
+			boolean progress = false;
+			in.flip();
+			try {
+				while (!closing && !waiting && queued < outputLimit && step()) {
+					progress = true;
+				}
+			} finally {
+				in.compact();
+			}
+			if (needed > in.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.min(maxFrameSize + 4,
+						Math.max(needed, in.capacity() * 2)));
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			} else if (in.position() == 0 && in.capacity() > bufferSize) {
+				in = ByteBuffer.allocate(bufferSize);
+			}
+			return progress;
+		}
+
+		/** Handle one request if it is all there. */
+		private boolean step() throws IOException {
+			needed = 0;
+			switch (mode) {
+			case DETECT: {
+				if (in.remaining() < AdamFSProtocol.MAGIC.length) {
+					return false;
+				}
+				byte[] head = new byte[AdamFSProtocol.MAGIC.length];
+				in.duplicate().get(head);
+				if (Arrays.equals(head, AdamFSProtocol.MAGIC)) {
+					in.position(in.position() + head.length);
+					mode = BINARY;
+				} else {
+					mode = TEXT;
+				}
+				return true;
+			}
+			case TEXT:
+			case TEXT_READ: {
+				String line = nextLine();
+				if (line == null) {
+					return false;
+				}
+				if (mode == TEXT) {
+					textRequest(line);
+				} else {
+					textRange(line);
+				}
+				return true;
+			}
+			case RAW_WRITE: {
+				if (!in.hasRemaining()) {
+					return false;
+				}
+				int n = in.remaining();
+				if (writer != null) {
+					writer.write(rawOffset, in);
+				}
+				in.position(in.limit());
+				rawOffset += n;
+				return true;
+			}
+			default: {
+				if (in.remaining() < 4) {
+					return false;
+				}
+				int length = in.getInt(in.position());
+				if (length < 3 || length > maxFrameSize) {
+					throw new IOException("<AdamFS:SERVER> bad frame length " + length);
+				}
+				if (in.remaining() < 4 + length) {
+					needed = 4 + length;
+					return false;
+				}
+				int start = in.arrayOffset() + in.position() + 4;
+				in.position(in.position() + 4 + length);
+				fields.reset(in.array(), start, length);
+				int opcode = fields.readUnsignedByte();
+				int requestId = WritableUtils.readVInt(fields);
+				fields.readUnsignedByte(); // status, unused in requests
+				if (mode == BINARY) {
+					binaryRequest(opcode, requestId);
+				} else if (mode == BINARY_READ) {
+					binaryRange(opcode, requestId);
+				} else {
+					chunk(opcode, requestId);
+				}
+				return true;
+			}
+			}
+		}
+
+		private String nextLine() throws IOException {
+			byte[] b = in.array();
+			int start = in.arrayOffset() + in.position();
+			int end = in.arrayOffset() + in.limit();
+			for (int i = start; i < end; i++) {
+				if (b[i] == '\n') {
+					int len = i > start && b[i - 1] == '\r' ? i - 1 - start : i - start;
+					in.position(in.position() + i + 1 - start);
+					return new String(b, start, len, "UTF-8");
+				}
+			}
+			if (in.remaining() >= MAX_LINE) {
+				throw new IOException("<AdamFS:SERVER> request line too long");
+			}
+			needed = in.remaining() + 1;
+			return null;
+		}
+
+		// -----------------------------------------------------------
+		// Version 1
+		// -----------------------------------------------------------
+
+		private void textRequest(String line) throws IOException {
+			if (line.startsWith(AdamFSProtocol.HELLO)) {
+				// the client hangs up after the hello either way
+				if (line.contains(AdamFSProtocol.HELLO_VERSION)) {
+					StringBuilder reply = new StringBuilder(AdamFSProtocol.HELLO_REPLY)
+							.append(AdamFSProtocol.VERSION_BINARY);
+					for (String cap : capabilities) {
+						reply.append(' ').append(cap);
+					}
+					sendLine(reply.toString());
+				}
+				closing = true;
+				return;
+			}
+			int opcode;
+			try {
+				opcode = Integer.parseInt(line.substring(0, 2));
+			} catch (RuntimeException e) {
+				return; // not a request
+			}
+			String data = line.substring(2);
+			String op = AdamFSProtocol.opcodeText(opcode);
+			switch (opcode) {
+			case AdamFSProtocol.OP_OPEN: {
+				reader = storage.openForRead(data);
+				if (reader == null) {
+					sendLine(op + "0");
+					return;
+				}
+				sendLine(op + "1" + reader.length());
+				mode = TEXT_READ;
+				return;
+			}
+			case AdamFSProtocol.OP_SETUP_WRITE: {
+				boolean ok = openWrite(opcode, data, null);
+				sendLine(op + (ok ? "1" : "0"));
+				closing = !ok; // the client sends the file anyway
+				return;
+			}
+			case AdamFSProtocol.OP_CHECKSUM:
+				checksum(opcode, 0, data);
+				return;
+			default: {
+				// only two field ops take more than a path, and a path may hold ':'
+				Args args = opcode == AdamFSProtocol.OP_RENAME
+						|| opcode == AdamFSProtocol.OP_BLOCK_LOCATIONS
+						? new TextArgs(data.split(":")) : new TextArgs(new String[] { data });
+				StringBuilder reply = new StringBuilder();
+				boolean ok = executeSafely(opcode, args, new TextReply(reply));
+				sendLine(op + (ok ? "1" : "0") + reply);
+			}
+			}
+		}
+
+		/** "position:length" is answered with the raw bytes, "00" ends the session. */
+		private void textRange(String line) throws IOException {
+			if (line.equals(AdamFSProtocol.opcodeText(AdamFSProtocol.OP_END_STREAM))) {
+				endReadSession(TEXT);
+				return;
+			}
+			int colon = line.indexOf(':');
+			long pos;
+			long len;
+			try {
+				pos = Long.parseLong(line.substring(0, colon));
+				len = Long.parseLong(line.substring(colon + 1));
+			} catch (RuntimeException e) {
+				throw new IOException("<AdamFS:SERVER> bad range request " + line);
+			}
+			long n = pos < 0 ? 0 : Math.max(0, Math.min(len, reader.length() - pos));
+			if (n > 0) {
+				queue(new RangeOut(reader, pos, n));
+			}
+		}
+
+		private void sendLine(String line) throws IOException {
+			queue(new BufferOut(ByteBuffer.wrap((line + "\n").getBytes("UTF-8"))));
+		}
+
+		// -----------------------------------------------------------
+		// Version 2
+		// -----------------------------------------------------------
+
+		private void binaryRequest(int opcode, int requestId) throws IOException {
+			Args args = new BinaryArgs(fields);
+			DataOutputBuffer reply = new DataOutputBuffer();
+			boolean ok;
+			switch (opcode) {
+			case AdamFSProtocol.OP_OPEN: {
+				String path = args.nextString();
+				deflate = args.hasMore()
+						&& args.nextString().equals(AdamFSCompression.CODEC_DEFLATE)
+						&& capabilities.contains(AdamFSProtocol.CAP_DEFLATE);
+				reader = storage.openForRead(path);
+				ok = reader != null;
+				if (ok) {
+					WritableUtils.writeVLong(reply, reader.length());
+					if (deflate) {
+						Text.writeString(reply, AdamFSCompression.CODEC_DEFLATE);
+					}
+					mode = BINARY_READ;
+				}
+				break;
+			}
+			case AdamFSProtocol.OP_SETUP_WRITE:
+			case AdamFSProtocol.OP_WRITE_OPEN:
+			case AdamFSProtocol.OP_WRITE_APPEND: {
+				ok = openWrite(opcode, args.nextString(), new BinaryReply(reply));
+				if (!ok && opcode == AdamFSProtocol.OP_SETUP_WRITE) {
+					closing = true; // the file data that follows cannot be parsed
+				}
+				break;
+			}
+			case AdamFSProtocol.OP_WRITE_AT:
+				ok = capabilities.contains(AdamFSProtocol.CAP_PARALLEL_WRITE) && writeAt(args);
+				break;
+			case AdamFSProtocol.OP_COMMIT:
+				ok = capabilities.contains(AdamFSProtocol.CAP_PARALLEL_WRITE)
+						&& commit(args.nextString(), args.nextLong());
+				break;
+			case AdamFSProtocol.OP_COMPOUND:
+				ok = compound(reply);
+				break;
+			case AdamFSProtocol.OP_CHECKSUM:
+				checksum(opcode, requestId, args.nextString());
+				return;
+			case AdamFSProtocol.OP_END_STREAM:
+				return; // no session to end
+			default:
+				ok = executeSafely(opcode, args, new BinaryReply(reply));
+			}
+			sendFrame(opcode, requestId, ok, reply);
+		}
+
+		/**
+		 * Run the entries of a COMPOUND frame until one fails. Only the last
+		 * entry may open a write session, which then goes on after the reply.
+		 */
+		private boolean compound(DataOutputBuffer reply) throws IOException {
+			if (!capabilities.contains(AdamFSProtocol.CAP_COMPOUND)) {
+				return false;
+			}
+			DataOutputBuffer entryReply = new DataOutputBuffer();
+			DataInputBuffer entry = new DataInputBuffer();
+			boolean ok = true;
+			while (ok && fields.getPosition() < fields.getLength()) {
+				int flags = WritableUtils.readVInt(fields);
+				int opcode = WritableUtils.readVInt(fields);
+				int length = WritableUtils.readVInt(fields);
+				entry.reset(fields.getData(), fields.getPosition(), length);
+				fields.skip(length);
+				entryReply.reset();
+				Args args = new BinaryArgs(entry);
+				boolean success;
+				if (opcode == AdamFSProtocol.OP_SETUP_WRITE
+						|| opcode == AdamFSProtocol.OP_WRITE_OPEN
+						|| opcode == AdamFSProtocol.OP_WRITE_APPEND) {
+					success = fields.getPosition() == fields.getLength() // sessions come last
+							&& openWrite(opcode, args.nextString(), new BinaryReply(entryReply));
+				} else {
+					success = executeSafely(opcode, args, new BinaryReply(entryReply));
+				}
+				WritableUtils.writeVInt(reply,
+						success ? AdamFSProtocol.STATUS_SUCCESS : AdamFSProtocol.STATUS_FAILURE);
+				WritableUtils.writeVInt(reply, entryReply.getLength());
+				reply.write(entryReply.getData(), 0, entryReply.getLength());
+				if (success == ((flags & AdamFSProtocol.COMPOUND_NEGATE) != 0)
+						&& (flags & AdamFSProtocol.COMPOUND_CONTINUE) == 0) {
+					ok = false;
+				}
+			}
+			if (!ok && writer != null) { // a negated session entry; nobody writes to it
+				closeQuietly(writer);
+				writer = null;
+				mode = BINARY;
+			}
+			return ok;
+		}
+
+		/** READ answered with the range, END_STREAM ends the session. */
+		private void binaryRange(int opcode, int requestId) throws IOException {
+			if (opcode == AdamFSProtocol.OP_END_STREAM) {
+				endReadSession(BINARY);
+				return;
+			}
+			if (opcode != AdamFSProtocol.OP_READ) {
+				throw new IOException("<AdamFS:SERVER> op " + AdamFSProtocol.opcodeName(opcode)
+						+ " in a read session");
+			}
+			long pos = WritableUtils.readVLong(fields);
+			long len = WritableUtils.readVLong(fields);
+			if (pos < 0 || len < 0) {
+				sendFrame(opcode, requestId, false, null);
+				return;
+			}
+			long n = Math.max(0, Math.min(len, reader.length() - pos));
+			if (deflate && n > 0) {
+				if (n > maxFrameSize) {
+					sendFrame(opcode, requestId, false, null);
+					return;
+				}
+				sendFrame(opcode, requestId, true, deflate(pos, (int) n));
+				return;
+			}
+			queue(new BufferOut(header(opcode, requestId, true, n)));
+			if (n > 0) {
+				queue(new RangeOut(reader, pos, n));
+			}
+		}
+
+		/**
+		 * Answer CHECKSUM from a checksum thread, as it may read the whole
+		 * file. The connection reads no further requests until the reply is
+		 * queued, so replies stay in request order.
+		 */
+		private void checksum(final int opcode, final int requestId, final String path)
+				throws IOException {
+			if (!capabilities.contains(AdamFSProtocol.CAP_CHECKSUM)) {
+				checksummed(opcode, requestId, null);
+				return;
+			}
+			waiting = true;
+			try {
+				checksummers.execute(new Runnable() {
+					public void run() {
+						AdamFSChecksums.Checksum sum = null;
+						try {
+							sum = checksums.get(path);
+						} catch (IOException e) {
+							LOG.debug("<AdamFS:SERVER> checksum of " + path + " failed", e);
+						} catch (RuntimeException e) {
+							LOG.warn("<AdamFS:SERVER> checksum of " + path + " failed", e);
+						}
+						final AdamFSChecksums.Checksum result = sum;
+						loop.post(new Runnable() {
+							public void run() {
+								if (closed) {
+									return;
+								}
+								waiting = false;
+								try {
+									checksummed(opcode, requestId, result);
+								} catch (IOException e) {
+									LOG.debug("<AdamFS:SERVER> connection failed", e);
+									close();
+									return;
+								}
+								loop.handle(Connection.this, false, false);
+							}
+						});
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				waiting = false; // stopping
+				checksummed(opcode, requestId, null);
+			}
+		}
+
+		/** Queue the CHECKSUM reply; sum is null if there is none. */
+		private void checksummed(int opcode, int requestId, AdamFSChecksums.Checksum sum)
+				throws IOException {
+			StringBuilder text = new StringBuilder();
+			DataOutputBuffer fields = new DataOutputBuffer();
+			Reply reply = mode == TEXT ? new TextReply(text) : new BinaryReply(fields);
+			if (sum != null) {
+				reply.addLong(sum.bytesPerCrc);
+				reply.addLong(sum.crcPerBlock);
+				reply.addString(sum.md5.toString());
+			}
+			if (mode == TEXT) {
+				sendLine(AdamFSProtocol.opcodeText(opcode) + (sum != null ? "1" : "0") + text);
+			} else {
+				sendFrame(opcode, requestId, sum != null, fields);
+			}
+		}
+
+		private void endReadSession(int next) {
+			queue(new CloseOut(reader)); // replies still queued may read from it
+			reader = null;
+			mode = next;
+		}
+
+		/** n bytes of the open file from pos as one zlib stream. */
+		private DataOutputBuffer deflate(long pos, int n) throws IOException {
+			byte[] raw = scratch(n);
+			ByteBuffer dst = ByteBuffer.wrap(raw, 0, n);
+			while (dst.hasRemaining()) {
+				if (reader.read(pos + dst.position(), dst) < 0) {
+					throw new IOException("<AdamFS:SERVER> file shrank while reading it");
+				}
+			}
+			if (deflater == null) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+			}
+			deflater.reset();
+			DataOutputBuffer compressed = new DataOutputBuffer(n / 2 + 64);
+			DeflaterOutputStream z = new DeflaterOutputStream(compressed, deflater, 64 * 1024);
+			z.write(raw, 0, n);
+			z.finish();
+			return compressed;
+		}
+
+		// -----------------------------------------------------------
+		// Writes
+		// -----------------------------------------------------------
+
+		/**
+		 * Open the write session of SETUP_WRITE, WRITE_OPEN or WRITE_APPEND.
+		 * Returns false if the op is not offered or the file cannot be
+		 * written; WRITE_APPEND replies with the length it appends at.
+		 */
+		private boolean openWrite(int opcode, String path, Reply reply) throws IOException {
+			boolean append = opcode == AdamFSProtocol.OP_WRITE_APPEND;
+			if (opcode == AdamFSProtocol.OP_WRITE_OPEN
+					&& !capabilities.contains(AdamFSProtocol.CAP_CHUNKED_WRITE)
+					|| append && !capabilities.contains(AdamFSProtocol.CAP_APPEND)) {
+				return false;
+			}
+			AdamFSStorage.Writer w;
+			try {
+				if (append) {
+					FileStatus status = storage.getFileStatus(path);
+					if (status == null || status.isDir()) {
+						return false;
+					}
+				}
+				w = storage.openForWrite(path, !append);
+			} catch (IOException e) {
+				LOG.debug("<AdamFS:SERVER> cannot write " + path, e);
+				return false;
+			}
+			if (w == null) {
+				return false;
+			}
+			writer = w;
+			rawOffset = 0;
+			if (append) {
+				reply.addLong(w.length());
+			}
+			mode = opcode == AdamFSProtocol.OP_SETUP_WRITE ? RAW_WRITE : CHUNKED_WRITE;
+			return true;
+		}
+
+		/** WRITE_CHUNK stores and acks a chunk, WRITE_CLOSE ends the session. */
+		private void chunk(int opcode, int requestId) throws IOException {
+			if (opcode == AdamFSProtocol.OP_WRITE_CHUNK) {
+				long offset = WritableUtils.readVLong(fields);
+				long checksum = WritableUtils.readVLong(fields);
+				ByteBuffer data = data(checksum);
+				if (data != null) {
+					writer.write(offset, data);
+				}
+				sendFrame(opcode, requestId, data != null, null);
+				return;
+			}
+			if (opcode != AdamFSProtocol.OP_WRITE_CLOSE) {
+				throw new IOException("<AdamFS:SERVER> op " + AdamFSProtocol.opcodeName(opcode)
+						+ " in a write session");
+			}
+			long length = WritableUtils.readVLong(fields);
+			AdamFSStorage.Writer w = writer;
+			writer = null;
+			mode = BINARY;
+			boolean ok;
+			try {
+				w.sync();
+				ok = w.length() == length;
+			} finally {
+				w.close();
+			}
+			sendFrame(opcode, requestId, ok, null);
+		}
+
+		/** WRITE_AT: path, offset, CRC32[, codec], data; never truncates. */
+		private boolean writeAt(Args args) throws IOException {
+			String path = args.nextString();
+			long offset = args.nextLong();
+			long checksum = args.nextLong();
+			if (!path.equals(atPath)) {
+				closeQuietly(atWriter);
+				atPath = null;
+				atWriter = storage.openForWrite(path, false);
+				if (atWriter == null) {
+					return false;
+				}
+				atPath = path;
+			}
+			ByteBuffer data = data(checksum);
+			if (data == null) {
+				return false;
+			}
+			atWriter.write(offset, data);
+			return true;
+		}
+
+		/** COMMIT: cut the file to length and make it durable. */
+		private boolean commit(String path, long length) throws IOException {
+			if (path.equals(atPath)) {
+				closeQuietly(atWriter);
+				atPath = null;
+				atWriter = null;
+			}
+			AdamFSStorage.Writer w = storage.openForWrite(path, false);
+			if (w == null) {
+				return false;
+			}
+			try {
+				if (w.length() < length) {
+					return false; // parts are missing
+				}
+				w.truncate(length);
+				w.sync();
+				return true;
+			} finally {
+				w.close();
+			}
+		}
+
+		/**
+		 * The data at the end of a WRITE_CHUNK or WRITE_AT frame, inflated if
+		 * its codec says so; null if it does not match the CRC32.
+		 */
+		private ByteBuffer data(long checksum) throws IOException {
+			String codec = capabilities.contains(AdamFSProtocol.CAP_DEFLATE)
+					? Text.readString(fields) : AdamFSCompression.CODEC_NONE;
+			int start = fields.getPosition();
+			int length = fields.getLength() - start;
+			byte[] b = fields.getData();
+			if (codec.equals(AdamFSCompression.CODEC_DEFLATE)) {
+				if (inflater == null) {
+					inflater = new Inflater();
+				}
+				inflater.reset();
+				inflater.setInput(b, start, length);
+				b = scratch(Math.max(64 * 1024, 4 * length));
+				start = 0;
+				length = 0;
+				try {
+					while (!inflater.finished()) {
+						if (length == b.length) {
+							if (b.length >= maxFrameSize) {
+								return null;
+							}
+							b = scratch(Math.min(maxFrameSize, b.length * 2));
+						}
+						int n = inflater.inflate(b, length, b.length - length);
+						if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+							return null; // truncated
+						}
+						length += n;
+					}
+				} catch (DataFormatException e) {
+					return null;
+				}
+			} else if (!codec.equals(AdamFSCompression.CODEC_NONE)) {
+				return null;
+			}
+			crc.reset();
+			crc.update(b, start, length);
+			return crc.getValue() == checksum ? ByteBuffer.wrap(b, start, length) : null;
+		}
+
+		/** A buffer of at least size bytes, its contents kept when it grows. */
+		private byte[] scratch(int size) {
+			if (scratch == null || scratch.length < size) {
+				byte[] bigger = new byte[Math.max(size, 64 * 1024)];
+				if (scratch != null) {
+					System.arraycopy(scratch, 0, bigger, 0, scratch.length);
+				}
+				scratch = bigger;
+			}
+			return scratch;
+		}
+
+		private void finishRawWrite() {
+			if (writer != null) {
+				closeQuietly(writer);
+				writer = null;
+			}
+		}
+
+		// -----------------------------------------------------------
+		// Output
+		// -----------------------------------------------------------
+
+		private ByteBuffer header(int opcode, int requestId, boolean ok, long fieldsLength) {
+			int header = 1 + WritableUtils.getVIntSize(requestId) + 1;
+			DataOutputBuffer buf = new DataOutputBuffer(4 + header);
+			try {
+				buf.writeInt((int) (header + fieldsLength));
+				buf.writeByte(opcode);
+				WritableUtils.writeVInt(buf, requestId);
+				buf.writeByte(ok ? AdamFSProtocol.STATUS_SUCCESS : AdamFSProtocol.STATUS_FAILURE);
+			} catch (IOException e) {
+				throw new IllegalStateException(e); // in memory
+			}
+			return ByteBuffer.wrap(buf.getData(), 0, buf.getLength());
+		}
+
+		private void sendFrame(int opcode, int requestId, boolean ok, DataOutputBuffer fields) {
+			int length = fields == null ? 0 : fields.getLength();
+			queue(new BufferOut(header(opcode, requestId, ok, length)));
+			if (length > 0) {
+				queue(new BufferOut(ByteBuffer.wrap(fields.getData(), 0, length)));
+			}
+		}
+
+		private void queue(Out o) {
+			out.addLast(o);
+			queued += o.remaining();
+		}
+
+		/** Write queued output until the socket is full; small replies in one call. */
+		void flush() throws IOException {
+			ByteBuffer[] gather = null;
+			while (!out.isEmpty()) {
+				Out first = out.getFirst();
+				if (first.remaining() == 0) {
+					out.removeFirst().done();
+					continue;
+				}
+				long n;
+				if (first instanceof BufferOut && out.size() > 1) {
+					if (gather == null) {
+						gather = new ByteBuffer[MAX_GATHER];
+					}
+					int count = 0;
+					for (Out o : out) {
+						if (!(o instanceof BufferOut) || count == gather.length) {
+							break;
+						}
+						gather[count++] = ((BufferOut) o).buffer;
+					}
+					n = channel.write(gather, 0, count);
+					Arrays.fill(gather, 0, count, null);
+				} else {
+					n = first.write(channel);
+				}
+				queued -= n;
+				if (n == 0) {
+					return; // socket buffer full
+				}
+				while (!out.isEmpty() && out.getFirst().remaining() == 0) {
+					out.removeFirst().done();
+				}
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			loop.connections.remove(this);
+			if (key != null) {
+				key.cancel();
+			}
+			closeQuietly(channel);
+			for (Out o : out) {
+				o.done();
+			}
+			out.clear();
+			closeQuietly(reader);
+			closeQuietly(writer);
+			closeQuietly(atWriter);
+			if (deflater != null) {
+				deflater.end();
+			}
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------
+	// Op codes, shared by both versions
+	// ---------------------------------------------------------------
+
+	/** {@link #execute}, answering failure if the storage throws. */
+	private boolean executeSafely(int opcode, Args args, Reply reply) throws IOException {
+		try {
+			return execute(opcode, args, reply);
+		} catch (IOException e) {
+			LOG.debug("<AdamFS:SERVER> " + AdamFSProtocol.opcodeName(opcode) + " failed", e);
+			return false;
+		} catch (RuntimeException e) {
+			// e.g. a path the storage cannot parse; one bad request
+			LOG.warn("<AdamFS:SERVER> " + AdamFSProtocol.opcodeName(opcode) + " failed", e);
+			return false;
+		}
+	}
+
+	/** Run one metadata op. Returns the status; reply holds the fields. */
+	private boolean execute(int opcode, Args args, Reply reply) throws IOException {
+		switch (opcode) {
+		case AdamFSProtocol.OP_LOOKUP: {
+			FileStatus status = storage.getFileStatus(args.nextString());
+			if (status == null) {
+				return false;
+			}
+			addStatus(status, reply);
+			return true;
+		}
+		case AdamFSProtocol.OP_LIST: {
+			String[] names = storage.list(args.nextString());
+			if (names == null) {
+				return false;
+			}
+			for (String name : names) {
+				reply.addString(name);
+			}
+			return true;
+		}
+		case AdamFSProtocol.OP_DELETE:
+			return storage.delete(args.nextString(), false);
+		case AdamFSProtocol.OP_MKDIR:
+			return storage.mkdirs(args.nextString());
+		case AdamFSProtocol.OP_CREATE: {
+			AdamFSStorage.Writer w = storage.openForWrite(args.nextString(), true);
+			if (w == null) {
+				return false;
+			}
+			w.close();
+			return true;
+		}
+		case AdamFSProtocol.OP_BLOCK_LOCATIONS: {
+			FileStatus status = storage.getFileStatus(args.nextString());
+			if (status == null || status.isDir()) {
+				return false;
+			}
+			long start = args.hasMore() ? args.nextLong() : 0;
+			long length = args.hasMore() ? args.nextLong() : Long.MAX_VALUE;
+			long end = length > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + length;
+			long blockSize = Math.max(1, status.getBlockSize());
+			for (long off = start / blockSize * blockSize; off < Math.min(end, status.getLen());
+					off += blockSize) {
+				reply.addLong(off);
+				reply.addLong(Math.min(blockSize, status.getLen() - off));
+				reply.addLong(1);
+				reply.addString(host);
+			}
+			return true;
+		}
+		case AdamFSProtocol.OP_RENAME:
+			return storage.rename(args.nextString(), args.nextString());
+		case AdamFSProtocol.OP_LIST_STATUS: {
+			if (!capabilities.contains(AdamFSProtocol.CAP_LIST_STATUS)) {
+				return false;
+			}
+			String dir = args.nextString();
+			String token = args.nextString();
+			int max = (int) Math.max(1, Math.min(Integer.MAX_VALUE, args.nextLong()));
+			String[] names = storage.list(dir);
+			if (names == null) {
+				return false;
+			}
+			// the token is the last name sent, so entries added meanwhile do not shift pages
+			int first = 0;
+			if (token.length() > 0) {
+				first = Arrays.binarySearch(names, token);
+				first = first >= 0 ? first + 1 : -first - 1;
+			}
+			int last = (int) Math.min(names.length, (long) first + max);
+			reply.addString(last < names.length ? names[last - 1] : "");
+			String prefix = dir.endsWith("/") ? dir : dir + "/";
+			for (int i = first; i < last; i++) {
+				FileStatus status = storage.getFileStatus(prefix + names[i]);
+				if (status != null) { // unless deleted meanwhile
+					reply.addString(names[i]);
+					addStatus(status, reply);
+				}
+			}
+			return true;
+		}
+		case AdamFSProtocol.OP_DELETE_RECURSIVE:
+			return capabilities.contains(AdamFSProtocol.CAP_DELETE_RECURSIVE)
+					&& storage.delete(args.nextString(), true);
+		case AdamFSProtocol.OP_DELETE_BATCH: {
+			if (!capabilities.contains(AdamFSProtocol.CAP_DELETE_BATCH)) {
+				return false;
+			}
+			boolean recursive = args.nextBoolean();
+			while (args.hasMore()) {
+				reply.addBoolean(storage.delete(args.nextString(), recursive));
+			}
+			return true;
+		}
+		case AdamFSProtocol.OP_CONTENT_SUMMARY: {
+			if (!capabilities.contains(AdamFSProtocol.CAP_CONTENT_SUMMARY)) {
+				return false;
+			}
+			ContentSummary summary = storage.getContentSummary(args.nextString());
+			if (summary == null) {
+				return false;
+			}
+			reply.addLong(summary.getLength());
+			reply.addLong(summary.getFileCount());
+			reply.addLong(summary.getDirectoryCount());
+			return true;
+		}
+		default:
+			return false;
+		}
+	}
+
+	/** LOOKUP fields: length isdir blocksize mod_time access_time permission owner group */
+	private static void addStatus(FileStatus status, Reply reply) throws IOException {
+		reply.addLong(status.getLen());
+		reply.addBoolean(status.isDir());
+		reply.addLong(status.getBlockSize());
+		reply.addLong(status.getModificationTime());
+		reply.addLong(status.getAccessTime());
+		reply.addPermission(status.getPermission().toShort());
+		reply.addString(status.getOwner());
+		reply.addString(status.getGroup());
+	}
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = new Configuration();
+		String[] rest = new GenericOptionsParser(conf, args).getRemainingArgs();
+		String host = "localhost";
+		int port = AdamFSShards.DEFAULT_PORT;
+		Set<String> caps = null;
+		for (int i = 0; i < rest.length; i++) {
+			if (i + 1 >= rest.length) {
+				usage();
+				return;
+			}
+			String opt = rest[i];
+			String value = rest[++i];
+			if (opt.equals("-root")) {
+				conf.set(AdamFSLocalStorage.LOCAL_ROOT_KEY, new File(value).getPath());
+			} else if (opt.equals("-host")) {
+				host = value;
+			} else if (opt.equals("-port")) {
+				port = Integer.parseInt(value);
+			} else if (opt.equals("-caps")) {
+				caps = new LinkedHashSet<String>();
+				for (String cap : value.split(",")) {
+					if (cap.trim().length() > 0) {
+						caps.add(cap.trim());
+					}
+				}
+			} else {
+				usage();
+				return;
+			}
+		}
+		final AdamFSServer server = new AdamFSServer(conf, createStorage(conf), host, port, caps);
+		server.start();
+		LOG.info("<AdamFS:SERVER> serving on " + host + ":" + server.getPort()
+				+ " with capabilities " + server.capabilities);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.stop();
+			}
+		});
+		for (EventLoop loop : server.loops) {
+			loop.thread.join();
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: AdamFSServer [-root dir] [-host host] [-port port]"
+				+ " [-caps cap,...]");
+		GenericOptionsParser.printGenericCommandUsage(System.err);
+	}
+}
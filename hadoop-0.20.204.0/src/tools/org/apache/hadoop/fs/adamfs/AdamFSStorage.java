@@ -0,0 +1,102 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileStatus;
+
+/**
+ * Where an {@link AdamFSServer} keeps the files it serves. The server
+ * speaks the protocol and this does the rest, so putting the api-server in
+ * front of another store means implementing this interface and naming the
+ * class in fs.adamfs.server.storage.class; {@link AdamFSLocalStorage} is
+ * the default.
+ *
+ * Paths are absolute paths of the served file system ("/a/b"), as the
+ * client sent them with any scheme and authority already removed. Methods
+ * are called from the server's event loops, several at once, so they must
+ * be thread safe and should not block for long.
+ */
+public interface AdamFSStorage extends Closeable {
+
+	/** An open file being read; one per read session. */
+	interface Reader extends Closeable {
+		/** Current length of the file. */
+		long length() throws IOException;
+
+		/**
+		 * Write up to count bytes of the file from pos to target, which is a
+		 * non-blocking socket. Returns the number of bytes written, 0 if the
+		 * socket buffer is full.
+		 */
+		long transferTo(long pos, long count, WritableByteChannel target) throws IOException;
+
+		/**
+		 * Read bytes from pos into dst, as for a positional read. Returns
+		 * the number of bytes read, -1 at end of file.
+		 */
+		int read(long pos, ByteBuffer dst) throws IOException;
+	}
+
+	/** An open file being written; one per write session. */
+	interface Writer extends Closeable {
+		/** Current length of the file. */
+		long length() throws IOException;
+
+		/** Write all of src at pos, growing the file as needed. */
+		void write(long pos, ByteBuffer src) throws IOException;
+
+		/** Cut the file to length bytes. */
+		void truncate(long length) throws IOException;
+
+		/** Return once everything written so far is durable. */
+		void sync() throws IOException;
+	}
+
+	/** Called once, before the server takes connections. */
+	void initialize(Configuration conf) throws IOException;
+
+	/**
+	 * Status of a file or directory, null if there is none. Only the
+	 * length, isdir, block size, times, permission, owner and group are sent.
+	 */
+	FileStatus getFileStatus(String path) throws IOException;
+
+	/** Names in a directory, sorted; null if path is not a directory. */
+	String[] list(String path) throws IOException;
+
+	/**
+	 * Total length, file count and directory count of the tree under path,
+	 * path included; null if there is nothing at path.
+	 */
+	ContentSummary getContentSummary(String path) throws IOException;
+
+	/**
+	 * Delete a file or directory; directories that are not empty only if
+	 * recursive. The root is never deleted.
+	 */
+	boolean delete(String path, boolean recursive) throws IOException;
+
+	/** Create a directory and its parents; true if it exists afterwards. */
+	boolean mkdirs(String path) throws IOException;
+
+	/**
+	 * Rename a file or directory. False if src does not exist or dst does;
+	 * the client then retries into the directory dst.
+	 */
+	boolean rename(String src, String dst) throws IOException;
+
+	/** Open a file for reading, null if path is not a file. */
+	Reader openForRead(String path) throws IOException;
+
+	/**
+	 * Open a file for writing, creating it if there is none and cutting it
+	 * to nothing if truncate is set. Null if path is a directory or its
+	 * parent directory does not exist.
+	 */
+	Writer openForWrite(String path, boolean truncate) throws IOException;
+}
@@ -0,0 +1,152 @@
+package org.apache.hadoop.fs.adamfs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Request fields and reply fields of the api-server side in either wire
+ * form, so {@link AdamFSServer} runs an op the same way whichever protocol
+ * version the client speaks.
+ */
+final class AdamFSWireFields {
+
+	private AdamFSWireFields() {
+	}
+
+
+	interface Args {
+		String nextString() throws IOException;
+
+		long nextLong() throws IOException;
+
+		boolean nextBoolean() throws IOException;
+
+		boolean hasMore();
+	}
+
+	interface Reply {
+		void addString(String value) throws IOException;
+
+		void addLong(long value) throws IOException;
+
+		void addBoolean(boolean value) throws IOException;
+
+		void addPermission(int bits) throws IOException;
+	}
+
+	static class BinaryArgs implements Args {
+		private final DataInputBuffer in;
+
+		BinaryArgs(DataInputBuffer in) {
+			this.in = in;
+		}
+
+		public String nextString() throws IOException {
+			return Text.readString(in);
+		}
+
+		public long nextLong() throws IOException {
+			return WritableUtils.readVLong(in);
+		}
+
+		public boolean nextBoolean() throws IOException {
+			return in.readBoolean();
+		}
+
+		public boolean hasMore() {
+			return in.getPosition() < in.getLength();
+		}
+	}
+
+	static class TextArgs implements Args {
+		private final String[] fields;
+		private int next = 0;
+
+		TextArgs(String[] fields) {
+			this.fields = fields;
+		}
+
+		public String nextString() throws IOException {
+			if (next >= fields.length) {
+				throw new IOException("<AdamFS:SERVER> request is missing fields");
+			}
+			return fields[next++];
+		}
+
+		public long nextLong() throws IOException {
+			try {
+				return Long.parseLong(nextString());
+			} catch (NumberFormatException e) {
+				throw new IOException("<AdamFS:SERVER> malformed request field");
+			}
+		}
+
+		public boolean nextBoolean() throws IOException {
+			return nextString().equals("1");
+		}
+
+		public boolean hasMore() {
+			return next < fields.length;
+		}
+	}
+
+	static class BinaryReply implements Reply {
+		private final DataOutputBuffer out;
+
+		BinaryReply(DataOutputBuffer out) {
+			this.out = out;
+		}
+
+		public void addString(String value) throws IOException {
+			Text.writeString(out, value);
+		}
+
+		public void addLong(long value) throws IOException {
+			WritableUtils.writeVLong(out, value);
+		}
+
+		public void addBoolean(boolean value) throws IOException {
+			out.writeBoolean(value);
+		}
+
+		public void addPermission(int bits) throws IOException {
+			WritableUtils.writeVInt(out, bits);
+		}
+	}
+
+	/** Version 1 fields are separated by single spaces. */
+	static class TextReply implements Reply {
+		private final StringBuilder out;
+
+		TextReply(StringBuilder out) {
+			this.out = out;
+		}
+
+		private void add(String value) {
+			if (out.length() > 0) {
+				out.append(' ');
+			}
+			out.append(value);
+		}
+
+		public void addString(String value) {
+			add(value);
+		}
+
+		public void addLong(long value) {
+			add(Long.toString(value));
+		}
+
+		public void addBoolean(boolean value) {
+			add(value ? "1" : "0");
+		}
+
+		public void addPermission(int bits) {
+			add(Integer.toOctalString(bits));
+		}
+	}
+}